@@ -0,0 +1,95 @@
+package kn.testtask.ewallet.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import kn.testtask.ewallet.service.AdmissionControl;
+import kn.testtask.ewallet.service.AsyncOperationPipeline;
+import kn.testtask.ewallet.service.EwalletLockRegistry;
+import kn.testtask.ewallet.service.OperationJournalWriter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// the actuator auto-configuration binds the connection pool gauges (hikaricp.connections.*) of a plain Hikari
+// DataSource bean only; the pools inside the routing data sources are bound here, tagged with their pool name
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder lockMetrics(EwalletLockRegistry lockRegistry) {
+        return registry -> {
+            FunctionCounter.builder("ewallet.lock.acquisitions", lockRegistry, EwalletLockRegistry::getAcquisitions)
+                    .register(registry);
+            FunctionCounter.builder("ewallet.lock.timeouts", lockRegistry, EwalletLockRegistry::getTimeouts)
+                    .register(registry);
+            FunctionCounter.builder("ewallet.lock.wait", lockRegistry,
+                    locks -> locks.getTotalWaitNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1))
+                    .baseUnit("milliseconds")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder admissionMetrics(AdmissionControl admissionControl) {
+        return registry -> {
+            FunctionCounter.builder("ewallet.admission.rejected", admissionControl, AdmissionControl::getRejectedByRate)
+                    .tag("reason", "rate")
+                    .register(registry);
+            FunctionCounter.builder("ewallet.admission.rejected", admissionControl, AdmissionControl::getRejectedByConcurrency)
+                    .tag("reason", "concurrency")
+                    .register(registry);
+            Gauge.builder("ewallet.admission.in.progress", admissionControl, AdmissionControl::getInProgress)
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder asyncOperationMetrics(AsyncOperationPipeline asyncOperationPipeline) {
+        return registry -> Gauge.builder("ewallet.async.queue.size", asyncOperationPipeline, AsyncOperationPipeline::getQueueSize)
+                .register(registry);
+    }
+
+    @Bean
+    public MeterBinder journalMetrics(OperationJournalWriter journalWriter) {
+        return registry -> Gauge.builder("ewallet.journal.queue.size", journalWriter, OperationJournalWriter::getQueueSize)
+                .register(registry);
+    }
+
+    @Bean
+    public MeterBinder connectionPoolMetrics(DataSource dataSource) {
+        return registry -> {
+            for (HikariDataSource pool : routedPools(dataSource)) {
+                if (pool.getMetricsTrackerFactory() == null && pool.getMetricRegistry() == null) {
+                    pool.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(registry));
+                }
+            }
+        };
+    }
+
+    static List<HikariDataSource> routedPools(DataSource dataSource) {
+        List<DataSource> targets = new ArrayList<>();
+        if (dataSource instanceof ReadWriteRoutingDataSource) {
+            targets.add(((ReadWriteRoutingDataSource) dataSource).getPrimary());
+            targets.add(((ReadWriteRoutingDataSource) dataSource).getReplica());
+        } else if (dataSource instanceof ShardRoutingDataSource) {
+            ShardRoutingDataSource shards = (ShardRoutingDataSource) dataSource;
+            for (int shard = 0; shard < shards.getShardCount(); shard++) {
+                targets.add(shards.getShard(shard));
+            }
+        }
+        List<HikariDataSource> pools = new ArrayList<>();
+        for (DataSource target : targets) {
+            if (target instanceof HikariDataSource) {
+                pools.add((HikariDataSource) target);
+            }
+        }
+        return pools;
+    }
+}
@@ -0,0 +1,49 @@
+package kn.testtask.ewallet.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+
+/**
+ * Primary pool from spring.datasource.*, replica pool from ewallet.datasource.replica.*.
+ * The pools are not beans of their own: the application DataSource is the only one that Spring Boot
+ * initializes with schema.sql and data.sql.
+ */
+@Configuration
+@ConditionalOnExpression("${ewallet.datasource.replica.enabled:false} and ${ewallet.shard.count:1} == 1")
+public class ReadWriteDataSourceConfig {
+
+    @Bean
+    @Primary
+    public ReadWriteRoutingDataSource dataSource(DataSourceProperties properties, Environment environment,
+                                                 @Value("${ewallet.datasource.replica.url}") String replicaUrl,
+                                                 @Value("${ewallet.datasource.replica.username:${spring.datasource.username:}}") String replicaUsername,
+                                                 @Value("${ewallet.datasource.replica.password:${spring.datasource.password:}}") String replicaPassword) {
+        Binder binder = Binder.get(environment);
+
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        binder.bind("spring.datasource.hikari", Bindable.ofInstance(primary));
+        primary.setPoolName("primary");
+
+        HikariDataSource replica = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(replicaUrl)
+                .username(replicaUsername)
+                .password(replicaPassword)
+                .build();
+        binder.bind("ewallet.datasource.replica.hikari", Bindable.ofInstance(replica));
+        replica.setPoolName("replica");
+        replica.setReadOnly(true);
+
+        return new ReadWriteRoutingDataSource(primary, replica);
+    }
+}
@@ -0,0 +1,93 @@
+package kn.testtask.ewallet.config;
+
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Gives connections of read-only transactions from the replica while replicaUsable says so,
+ * every other connection from the primary. The connection is taken lazily on the first statement:
+ * the transaction manager asks for it before the read-only flag of the transaction is set.
+ */
+public class ReadWriteRoutingDataSource extends LazyConnectionDataSourceProxy implements Closeable {
+
+    private static final String PRIMARY = "primary";
+
+    private static final String REPLICA = "replica";
+
+    private final DataSource primary;
+
+    private final DataSource replica;
+
+    // the primary only until the replica lag is known
+    private volatile BooleanSupplier replicaUsable = () -> false;
+
+    private final AtomicLong primaryConnections = new AtomicLong();
+
+    private final AtomicLong replicaConnections = new AtomicLong();
+
+    public ReadWriteRoutingDataSource(DataSource primary, DataSource replica) {
+        this.primary = primary;
+        this.replica = replica;
+        AbstractRoutingDataSource routing = new AbstractRoutingDataSource() {
+            @Override
+            protected Object determineCurrentLookupKey() {
+                return lookupKey();
+            }
+        };
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        targets.put(REPLICA, replica);
+        routing.setTargetDataSources(targets);
+        routing.setDefaultTargetDataSource(primary);
+        routing.afterPropertiesSet();
+        setTargetDataSource(routing);
+    }
+
+    private Object lookupKey() {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() && replicaUsable.getAsBoolean()) {
+            replicaConnections.incrementAndGet();
+            return REPLICA;
+        }
+        primaryConnections.incrementAndGet();
+        return PRIMARY;
+    }
+
+    public void setReplicaUsable(BooleanSupplier replicaUsable) {
+        this.replicaUsable = replicaUsable;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    public long getPrimaryConnections() {
+        return primaryConnections.get();
+    }
+
+    public long getReplicaConnections() {
+        return replicaConnections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (replica instanceof Closeable) {
+            ((Closeable) replica).close();
+        }
+        if (primary instanceof Closeable) {
+            ((Closeable) primary).close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package kn.testtask.ewallet.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.boot.jdbc.DataSourceInitializationMode;
+import org.springframework.boot.jdbc.EmbeddedDatabaseConnection;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shard 0 is spring.datasource.*, shards 1..count-1 are ewallet.shard.urls, all with the pool settings
+ * of spring.datasource.hikari.*. Spring Boot initializes shard 0 with schema.sql and data.sql, the other shards
+ * get schema.sql here and sequences restarted at the first id of the shard.
+ */
+@Configuration
+@ConditionalOnExpression("${ewallet.shard.count:1} > 1")
+public class ShardDataSourceConfig {
+
+    @Bean
+    @Primary
+    public ShardRoutingDataSource dataSource(DataSourceProperties properties, Environment environment,
+                                             @Value("${ewallet.shard.count}") int shardCount,
+                                             @Value("${ewallet.shard.urls}") List<String> shardUrls) {
+        if (shardUrls.size() != shardCount - 1) {
+            throw new IllegalStateException("ewallet.shard.urls must have " + (shardCount - 1) + " urls, it has " + shardUrls.size());
+        }
+        Binder binder = Binder.get(environment);
+        List<DataSource> shards = new ArrayList<>(shardCount);
+
+        HikariDataSource first = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        binder.bind("spring.datasource.hikari", Bindable.ofInstance(first));
+        first.setPoolName("shard-0");
+        shards.add(first);
+
+        for (int shard = 1; shard < shardCount; shard++) {
+            String url = shardUrls.get(shard - 1);
+            HikariDataSource pool = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .driverClassName(properties.determineDriverClassName())
+                    .url(url)
+                    .username(properties.determineUsername())
+                    .password(properties.determinePassword())
+                    .build();
+            binder.bind("spring.datasource.hikari", Bindable.ofInstance(pool));
+            pool.setPoolName("shard-" + shard);
+            if (isInitialized(properties, pool)) {
+                initialize(pool, shard);
+            }
+            shards.add(pool);
+        }
+        return new ShardRoutingDataSource(shards);
+    }
+
+    private static boolean isInitialized(DataSourceProperties properties, DataSource shard) {
+        DataSourceInitializationMode mode = properties.getInitializationMode();
+        return mode == DataSourceInitializationMode.ALWAYS
+                || mode == DataSourceInitializationMode.EMBEDDED && EmbeddedDatabaseConnection.isEmbedded(shard);
+    }
+
+    private static void initialize(DataSource shard, int shardNumber) {
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(shard);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(shard);
+        long firstId = ShardRoutingDataSource.firstIdOfShard(shardNumber);
+        jdbcTemplate.execute("ALTER SEQUENCE owner_seq RESTART WITH " + firstId);
+        jdbcTemplate.execute("ALTER SEQUENCE ewallet_seq RESTART WITH " + firstId);
+    }
+}
@@ -0,0 +1,66 @@
+package kn.testtask.ewallet.config;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives connections of the shard of the ShardContext. Every shard hands out ids of a range of its own,
+ * starting at shard << ID_SHARD_SHIFT, so the shard of an owner or an e-wallet is known from its id.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+    public static final int ID_SHARD_SHIFT = 40;
+
+    private final List<DataSource> shards;
+
+    public ShardRoutingDataSource(List<DataSource> shards) {
+        this.shards = new ArrayList<>(shards);
+        Map<Object, Object> targets = new HashMap<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            targets.put(shard, shards.get(shard));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.get(0));
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    // ids of the seed data and of a single database are below the range of shard 1
+    public static int shardOfId(long id, int shardCount) {
+        long shard = id >>> ID_SHARD_SHIFT;
+        return shard < shardCount ? (int) shard : 0;
+    }
+
+    public static long firstIdOfShard(int shard) {
+        return (long) shard << ID_SHARD_SHIFT;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ShardContext.current();
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public DataSource getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DataSource shard : shards) {
+            if (shard instanceof Closeable) {
+                ((Closeable) shard).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package kn.testtask.ewallet.config;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pooled-lo ids from a sequence, with a block of ids per shard: a sequence value v read on a shard
+ * gives the ids v..v+increment_size-1 of that shard. The optimizers of Hibernate keep one block per generator
+ * and would hand out ids read from one shard to entities of another.
+ */
+public class ShardSequenceGenerator implements IdentifierGenerator, Configurable {
+
+    public static final String SEQUENCE_NAME = "sequence_name";
+
+    public static final String INCREMENT_SIZE = "increment_size";
+
+    private String sequenceName;
+
+    private int incrementSize;
+
+    private final Map<Integer, Block> blocks = new ConcurrentHashMap<>();
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        this.sequenceName = ConfigurationHelper.getString(SEQUENCE_NAME, params);
+        this.incrementSize = ConfigurationHelper.getInt(INCREMENT_SIZE, params, 50);
+        if (sequenceName == null) {
+            throw new MappingException("ShardSequenceGenerator needs the parameter " + SEQUENCE_NAME);
+        }
+    }
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        Block block = blocks.computeIfAbsent(ShardContext.current(), shard -> new Block());
+        synchronized (block) {
+            if (block.next == block.end) {
+                block.next = nextSequenceValue(session);
+                block.end = block.next + incrementSize;
+            }
+            return block.next++;
+        }
+    }
+
+    private long nextSequenceValue(SharedSessionContractImplementor session) {
+        String sql = session.getJdbcServices().getDialect().getSequenceNextValString(sequenceName);
+        JdbcCoordinator jdbcCoordinator = session.getJdbcCoordinator();
+        try {
+            PreparedStatement statement = jdbcCoordinator.getStatementPreparer().prepareStatement(sql);
+            try {
+                ResultSet resultSet = jdbcCoordinator.getResultSetReturn().extract(statement);
+                resultSet.next();
+                return resultSet.getLong(1);
+            } finally {
+                jdbcCoordinator.getLogicalConnection().getResourceRegistry().release(statement);
+                jdbcCoordinator.afterStatementExecution();
+            }
+        } catch (SQLException ex) {
+            throw session.getJdbcServices().getSqlExceptionHelper().convert(ex, "Could not read the next value of " + sequenceName, sql);
+        }
+    }
+
+    private static class Block {
+        private long next;
+        private long end;
+    }
+}
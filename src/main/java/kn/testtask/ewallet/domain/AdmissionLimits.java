@@ -0,0 +1,18 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// limits of deposits, withdrawals and transfers, see ewallet.admission.*
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AdmissionLimits {
+    private boolean enabled;
+    // operations per second every owner gets, and how many unused ones are saved up for a burst
+    private double ownerRatePerSecond;
+    private int ownerBurst;
+    // operations in progress at once over all owners
+    private int maxConcurrent;
+}
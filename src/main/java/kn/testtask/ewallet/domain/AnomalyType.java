@@ -0,0 +1,9 @@
+package kn.testtask.ewallet.domain;
+
+public enum AnomalyType {
+    NEGATIVE_BALANCE,
+    // balance differs from the balance rebuilt from the snapshot and the journal
+    BALANCE_MISMATCH,
+    // sum of the balances of a currency differs from its deposits minus withdrawals
+    CURRENCY_TOTAL_MISMATCH
+}
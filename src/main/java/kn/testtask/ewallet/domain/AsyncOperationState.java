@@ -0,0 +1,8 @@
+package kn.testtask.ewallet.domain;
+
+public enum AsyncOperationState {
+    PENDING,
+    APPLIED,
+    REJECTED,
+    FAILED
+}
@@ -0,0 +1,21 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AsyncOperationStatus {
+    private String operationId;
+    private AsyncOperationState state;
+    // e-wallet and its balance after a deposit or withdraw, null for a transfer
+    private Long ewalletId;
+    private Money amount;
+    private String message;
+
+    public static AsyncOperationStatus pending(String operationId) {
+        return new AsyncOperationStatus(operationId, AsyncOperationState.PENDING, null, null, null);
+    }
+}
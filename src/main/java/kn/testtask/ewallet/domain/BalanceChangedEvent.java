@@ -0,0 +1,15 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class BalanceChangedEvent {
+    Long ewalletId;
+    Long ownerId;
+    String currency;
+    OperationType type;
+    // amount of the change, always positive
+    Money amount;
+    // balance of the e-wallet after the change
+    Money balance;
+}
@@ -0,0 +1,18 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BalanceMismatch {
+    private Long ewalletId;
+    // balance stored in Ewallet
+    private BigDecimal amount;
+    // balance rebuilt from snapshot and journal
+    private BigDecimal rebuiltAmount;
+}
@@ -0,0 +1,29 @@
+package kn.testtask.ewallet.domain;
+
+import org.springframework.http.MediaType;
+
+public enum BulkFormat {
+    // one JSON object per line
+    NDJSON("application/x-ndjson"),
+    // header line with the column names, then one row per line
+    CSV("text/csv");
+
+    private final MediaType mediaType;
+
+    BulkFormat(String mediaType) {
+        this.mediaType = MediaType.parseMediaType(mediaType);
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public static BulkFormat fromName(String name) {
+        for (BulkFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
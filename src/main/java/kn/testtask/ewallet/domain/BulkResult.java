@@ -0,0 +1,14 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class BulkResult {
+    long rows;
+    // committed chunks of an import
+    int chunks;
+    long millis;
+    long rowsPerSecond;
+    // why an import stopped, rows of the chunks committed before stay imported
+    String error;
+}
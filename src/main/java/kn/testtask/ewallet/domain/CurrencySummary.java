@@ -0,0 +1,11 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class CurrencySummary {
+    String currency;
+    // sum of the balances of all e-wallets of the owner in this currency
+    Money amount;
+    int ewalletCount;
+}
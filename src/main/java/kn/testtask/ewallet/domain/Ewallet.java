@@ -2,11 +2,12 @@ package kn.testtask.ewallet.domain;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import lombok.Data;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Entity
@@ -15,16 +16,19 @@ import java.time.LocalDateTime;
 public class Ewallet {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "ewallet_seq")
+    @GenericGenerator(name = "ewallet_seq", strategy = "kn.testtask.ewallet.config.ShardSequenceGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "ewallet_seq"),
+            @Parameter(name = "increment_size", value = "50")})
     private Long id;
 
     @NotNull
     private Long owner;
 
-    @NotNull
+    // required of a new e-wallet by EwalletService.addEwallet, but an existing row without one can still change amount
     private String currency;
 
-    private BigDecimal amount;
+    private Money amount;
 
     private String name;
 
@@ -0,0 +1,10 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class EwalletCreatedEvent {
+    Long ewalletId;
+    Long ownerId;
+    String currency;
+}
@@ -0,0 +1,10 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class EwalletDeletedEvent {
+    Long ewalletId;
+    Long ownerId;
+    String currency;
+}
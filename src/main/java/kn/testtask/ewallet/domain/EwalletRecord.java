@@ -0,0 +1,23 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+// e-wallet line of a bulk import or export; an imported e-wallet gets a new id and
+// belongs to the owner with ownerEmail, or to the owner with id owner if ownerEmail is empty
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonPropertyOrder({"id", "owner", "ownerEmail", "currency", "amount", "name"})
+public class EwalletRecord {
+    private Long id;
+    private Long owner;
+    private String ownerEmail;
+    private String currency;
+    private BigDecimal amount;
+    private String name;
+}
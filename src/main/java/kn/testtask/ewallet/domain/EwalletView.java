@@ -0,0 +1,18 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Value;
+
+import java.time.LocalDateTime;
+
+// read-only projection of Ewallet, same JSON shape as the entity
+@Value
+public class EwalletView {
+    Long id;
+    Long owner;
+    String currency;
+    Money amount;
+    String name;
+    @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
+    LocalDateTime updateDateTime;
+}
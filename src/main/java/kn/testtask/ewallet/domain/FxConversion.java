@@ -0,0 +1,17 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+// received leg of a cross-currency transfer
+@Value
+public class FxConversion {
+    Long ewalletId;
+    String fromCurrency;
+    String toCurrency;
+    Money amount;
+    Money convertedAmount;
+    BigDecimal rate;
+    long rateVersion;
+}
@@ -0,0 +1,17 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+// one unit of baseCurrency costs rate units of quoteCurrency
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FxRate {
+    private String baseCurrency;
+    private String quoteCurrency;
+    private BigDecimal rate;
+}
@@ -0,0 +1,48 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of FX rates of one version. Version 0 is the empty set used until the first load.
+ */
+@Value
+public class FxRateSnapshot {
+
+    public static final FxRateSnapshot EMPTY = new FxRateSnapshot(0, null, Collections.emptyList());
+
+    long version;
+    @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
+    LocalDateTime loadDateTime;
+    List<FxRate> rates;
+    @JsonIgnore
+    Map<String, BigDecimal> ratesByPair;
+
+    public FxRateSnapshot(long version, LocalDateTime loadDateTime, List<FxRate> rates) {
+        this.version = version;
+        this.loadDateTime = loadDateTime;
+        // copied, so nobody can change a rate of the snapshot
+        List<FxRate> copies = new ArrayList<>(rates.size());
+        Map<String, BigDecimal> ratesByPair = new HashMap<>();
+        for (FxRate rate : rates) {
+            copies.add(new FxRate(rate.getBaseCurrency(), rate.getQuoteCurrency(), rate.getRate()));
+            ratesByPair.put(rate.getBaseCurrency() + rate.getQuoteCurrency(), rate.getRate());
+        }
+        this.rates = Collections.unmodifiableList(copies);
+        this.ratesByPair = Collections.unmodifiableMap(ratesByPair);
+    }
+
+    // null if there is no rate for the pair
+    public BigDecimal getRate(String baseCurrency, String quoteCurrency) {
+        return ratesByPair.get(baseCurrency + quoteCurrency);
+    }
+}
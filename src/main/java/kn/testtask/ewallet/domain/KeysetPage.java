@@ -0,0 +1,16 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class KeysetPage<T> {
+    private List<T> items;
+    // pass as cursor to get the next page, null on the last page
+    private String nextCursor;
+}
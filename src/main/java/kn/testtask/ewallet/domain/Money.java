@@ -0,0 +1,147 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Amount of money as a long count of hundredths, the scale of the amount columns.
+ * Arithmetic and comparisons work on the long, BigDecimal is only created for JSON and JDBC.
+ * Currencies with fewer minor digits (JPY has none) accept only amounts that are whole in their minor unit.
+ */
+public final class Money implements Comparable<Money>, Serializable {
+
+    public static final int SCALE = 2;
+
+    public static final Money ZERO = new Money(0);
+
+    // currencies that can not hold an amount with 1 or 2 significant decimals
+    private static final Set<String> CURRENCIES_WITHOUT_DECIMALS = currenciesWithFractionDigitsBelow(1);
+
+    private static final Set<String> CURRENCIES_WITHOUT_CENTS = currenciesWithFractionDigitsBelow(2);
+
+    private final long minorUnits;
+
+    private Money(long minorUnits) {
+        this.minorUnits = minorUnits;
+    }
+
+    public static Money ofMinorUnits(long minorUnits) {
+        return minorUnits == 0 ? ZERO : new Money(minorUnits);
+    }
+
+    /**
+     * Accepts any decimal that is exact at SCALE, so 10, 10.5 and 10.50 are fine and 10.505 is rejected.
+     */
+    @JsonCreator
+    public static Money of(BigDecimal amount) {
+        try {
+            return ofMinorUnits(amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact());
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Amount " + amount + " does not fit " + SCALE + " decimals", ex);
+        }
+    }
+
+    public static Money of(String amount) {
+        return of(new BigDecimal(amount));
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public Money plus(Money other) {
+        return ofMinorUnits(Math.addExact(minorUnits, other.minorUnits));
+    }
+
+    public Money minus(Money other) {
+        return ofMinorUnits(Math.subtractExact(minorUnits, other.minorUnits));
+    }
+
+    public Money negate() {
+        return ofMinorUnits(Math.negateExact(minorUnits));
+    }
+
+    public Money abs() {
+        return minorUnits < 0 ? negate() : this;
+    }
+
+    public int signum() {
+        return Long.signum(minorUnits);
+    }
+
+    public boolean isNegative() {
+        return minorUnits < 0;
+    }
+
+    public boolean isPositive() {
+        return minorUnits > 0;
+    }
+
+    public boolean isZero() {
+        return minorUnits == 0;
+    }
+
+    public boolean fitsCurrency(String currency) {
+        return !currenciesNotFitting().contains(currency);
+    }
+
+    /**
+     * This amount times rate, rounded half-even to the minor unit of the currency, e.g. to a whole amount for JPY.
+     */
+    public Money convert(BigDecimal rate, String currency) {
+        int scale = CURRENCIES_WITHOUT_DECIMALS.contains(currency) ? 0 : CURRENCIES_WITHOUT_CENTS.contains(currency) ? 1 : SCALE;
+        return of(toBigDecimal().multiply(rate).setScale(scale, RoundingMode.HALF_EVEN));
+    }
+
+    // currencies whose minor unit is coarser than this amount, e.g. JPY for 10.50
+    public Set<String> currenciesNotFitting() {
+        if (minorUnits % 100 == 0) {
+            return Collections.emptySet();
+        }
+        return minorUnits % 10 == 0 ? CURRENCIES_WITHOUT_DECIMALS : CURRENCIES_WITHOUT_CENTS;
+    }
+
+    @JsonValue
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Money && ((Money) other).minorUnits == minorUnits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minorUnits);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    private static Set<String> currenciesWithFractionDigitsBelow(int digits) {
+        Set<String> currencies = new HashSet<>();
+        for (Currency currency : Currency.getAvailableCurrencies()) {
+            // negative digits mean the currency has no minor unit defined (gold, SDR, ...)
+            if (currency.getDefaultFractionDigits() >= 0 && currency.getDefaultFractionDigits() < digits) {
+                currencies.add(currency.getCurrencyCode());
+            }
+        }
+        return Collections.unmodifiableSet(currencies);
+    }
+}
@@ -0,0 +1,26 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OperationResult {
+    // position of the operation in the request
+    private int index;
+    private Long ewalletId;
+    private boolean success;
+    // balance of the e-wallet after the operation
+    private Money amount;
+    private String message;
+
+    public static OperationResult applied(int index, Long ewalletId, Money amount) {
+        return new OperationResult(index, ewalletId, true, amount, null);
+    }
+
+    public static OperationResult rejected(int index, Long ewalletId, String message) {
+        return new OperationResult(index, ewalletId, false, null, message);
+    }
+}
@@ -1,6 +1,8 @@
 package kn.testtask.ewallet.domain;
 
 import lombok.Data;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.util.List;
@@ -11,7 +13,10 @@ import java.util.List;
 public class Owner {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "owner_seq")
+    @GenericGenerator(name = "owner_seq", strategy = "kn.testtask.ewallet.config.ShardSequenceGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "owner_seq"),
+            @Parameter(name = "increment_size", value = "50")})
     private Long id;
     private String name;
     private String email;
@@ -0,0 +1,12 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+import java.util.List;
+
+@Value
+public class OwnerDeletedEvent {
+    Long ownerId;
+    // e-wallets deleted together with the owner
+    List<Long> ewalletIds;
+}
@@ -0,0 +1,17 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// owner line of a bulk import or export; an imported owner gets a new id
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonPropertyOrder({"id", "name", "email"})
+public class OwnerRecord {
+    private Long id;
+    private String name;
+    private String email;
+}
@@ -0,0 +1,23 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// read-only projection of Owner, same JSON shape as the entity
+@Data
+@NoArgsConstructor
+public class OwnerView {
+    private Long id;
+    private String name;
+    private String email;
+    private List<EwalletView> ewallets = new ArrayList<>();
+
+    public OwnerView(Long id, String name, String email) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+    }
+}
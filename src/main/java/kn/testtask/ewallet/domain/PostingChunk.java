@@ -0,0 +1,11 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+// one committed chunk of a bulk-posting job: rows is the number of matching e-wallets, posted the ones changed
+@Value
+public class PostingChunk {
+    long lastId;
+    int rows;
+    int posted;
+}
@@ -0,0 +1,25 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Value;
+
+import java.time.LocalDateTime;
+
+@Value
+public class PostingJobProgress {
+    String jobId;
+    PostingRule rule;
+    PostingJobState state;
+    int ranges;
+    int rangesDone;
+    long rowsPosted;
+    // e-wallets with too little money for the withdraw, or a posted amount that rounds to zero
+    long rowsSkipped;
+    // of the current or the last run
+    double rowsPerSecond;
+    @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
+    LocalDateTime startDateTime;
+    @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
+    LocalDateTime finishDateTime;
+    String error;
+}
@@ -0,0 +1,7 @@
+package kn.testtask.ewallet.domain;
+
+public enum PostingJobState {
+    RUNNING,
+    COMPLETED,
+    FAILED
+}
@@ -0,0 +1,19 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+// operation applied by a bulk-posting job to every e-wallet of the currency, or of every currency if it is null
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostingRule {
+    private String currency;
+    private OperationType type;
+    // either a fixed amount or a percentage of the balance, rounded half-even to the minor unit of the currency
+    private Money amount;
+    private BigDecimal percent;
+}
@@ -0,0 +1,14 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class ReconciliationAnomaly {
+    AnomalyType type;
+    // null for a currency total
+    Long ewalletId;
+    String currency;
+    Money amount;
+    // expected amount, null for a negative balance
+    Money expectedAmount;
+}
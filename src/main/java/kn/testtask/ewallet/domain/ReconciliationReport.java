@@ -0,0 +1,20 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Value;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Value
+public class ReconciliationReport {
+    @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
+    LocalDateTime startDateTime;
+    long millis;
+    int chunks;
+    long ewalletsScanned;
+    List<ReconciliationTotal> totals;
+    long anomalyCount;
+    // at most ewallet.reconciliation.max-anomalies of them
+    List<ReconciliationAnomaly> anomalies;
+}
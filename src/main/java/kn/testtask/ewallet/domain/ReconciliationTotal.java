@@ -0,0 +1,13 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.Value;
+
+@Value
+public class ReconciliationTotal {
+    String currency;
+    long ewalletCount;
+    // sum of the balances
+    Money amount;
+    // sum of the snapshots plus deposits minus withdrawals journaled after them
+    Money expectedAmount;
+}
@@ -0,0 +1,14 @@
+package kn.testtask.ewallet.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// change of one e-wallet by a transfer across shards, in the currency of the e-wallet, negative when it pays
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferLeg {
+    private Long ewalletId;
+    private Money amount;
+}
@@ -0,0 +1,9 @@
+package kn.testtask.ewallet.domain;
+
+public enum TransferSagaState {
+    DEBITING,
+    CREDITING,
+    CANCELLING,
+    COMPLETED,
+    CANCELLED
+}
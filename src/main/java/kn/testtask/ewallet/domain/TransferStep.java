@@ -0,0 +1,7 @@
+package kn.testtask.ewallet.domain;
+
+public enum TransferStep {
+    DEBIT,
+    CREDIT,
+    REFUND
+}
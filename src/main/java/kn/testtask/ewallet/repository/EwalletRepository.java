@@ -1,12 +1,105 @@
 package kn.testtask.ewallet.repository;
 
 import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.Money;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 @Repository
 public interface EwalletRepository extends JpaRepository<Ewallet, Long> {
     List<Ewallet> findByOwner(Long ownerId);
+
+    // projections for the read endpoints: no managed entities, no dirty checking
+    String SELECT_VIEW = "SELECT new kn.testtask.ewallet.domain.EwalletView(" +
+            "e.id, e.owner, e.currency, e.amount, e.name, e.updateDateTime) FROM Ewallet e ";
+
+    @Transactional(readOnly = true)
+    @Query("SELECT e.amount FROM Ewallet e WHERE e.id = :id")
+    Optional<Money> findAmountById(@Param("id") Long id);
+
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE e.owner = :ownerId ORDER BY e.id")
+    List<EwalletView> findViewsByOwner(@Param("ownerId") Long ownerId);
+
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE e.owner IN :ownerIds ORDER BY e.owner, e.id")
+    List<EwalletView> findViewsByOwnerIn(@Param("ownerIds") Collection<Long> ownerIds);
+
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "ORDER BY e.owner, e.currency, e.amount, e.id")
+    List<EwalletView> findFirstViewPage(Pageable pageable);
+
+    // next page after the cursor row in (owner, currency, amount, id) order; a NULL currency or amount sorts first
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE e.owner >= :owner AND (e.owner > :owner " +
+            "OR e.currency > :currency OR (:currency IS NULL AND e.currency IS NOT NULL) " +
+            "OR ((e.currency = :currency OR (:currency IS NULL AND e.currency IS NULL)) " +
+            "AND (e.amount > :amount OR (:amount IS NULL AND e.amount IS NOT NULL) " +
+            "OR ((e.amount = :amount OR (:amount IS NULL AND e.amount IS NULL)) AND e.id > :id)))) " +
+            "ORDER BY e.owner, e.currency, e.amount, e.id")
+    List<EwalletView> findViewPageAfter(@Param("owner") Long owner,
+                                        @Param("currency") String currency,
+                                        @Param("amount") Money amount,
+                                        @Param("id") Long id,
+                                        Pageable pageable);
+
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query(SELECT_VIEW + "ORDER BY e.owner, e.currency, e.amount, e.id")
+    Stream<EwalletView> streamAllViewsOrderedByOwnerAndCurrencyAndAmount();
+
+    // rows are locked in id order, so concurrent callers locking overlapping sets can not deadlock
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    List<Ewallet> findByIdInOrderByIdAsc(Collection<Long> ids);
+
+    // next keyset chunk of a bulk-posting job, locked in id order as well
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT e FROM Ewallet e WHERE e.id > :afterId AND e.id <= :toId " +
+            "AND (:currency IS NULL OR e.currency = :currency) ORDER BY e.id")
+    List<Ewallet> findPostingChunk(@Param("afterId") Long afterId,
+                                   @Param("toId") Long toId,
+                                   @Param("currency") String currency,
+                                   Pageable pageable);
+
+    // id, owner and currency of every e-wallet of the given owners
+    @Query("SELECT e.id, e.owner, e.currency FROM Ewallet e WHERE e.owner IN :owners")
+    List<Object[]> findIdsByOwnerIn(@Param("owners") Collection<Long> owners);
+
+    // an owner with an e-wallet which got money after the check keeps all its e-wallets, so the owner delete leaves it too;
+    // an e-wallet without amount is empty
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "DELETE FROM Ewallet WHERE owner IN (:owners) AND COALESCE(amount, 0) <= 0 AND owner NOT IN " +
+            "(SELECT w.owner FROM Ewallet w WHERE w.owner IN (:owners) AND COALESCE(w.amount, 0) > 0)", nativeQuery = true)
+    int deleteEmptyByOwnerIn(@Param("owners") Collection<Long> owners);
+
+    // owner, funds and currency checks are part of the statement, so a withdraw never drives the balance below zero;
+    // a NULL amount is a zero balance; native, because JPQL can not do arithmetic on the converted Money attribute
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "UPDATE Ewallet SET amount = COALESCE(amount, 0) + :delta, update_date_time = :updateDateTime " +
+            "WHERE id = :ewalletId AND owner = :ownerId AND COALESCE(amount, 0) + :delta >= 0 " +
+            "AND (currency IS NULL OR currency NOT IN (:excludedCurrencies))", nativeQuery = true)
+    int addToAmount(@Param("ewalletId") Long ewalletId,
+                    @Param("ownerId") Long ownerId,
+                    @Param("delta") BigDecimal delta,
+                    @Param("updateDateTime") LocalDateTime updateDateTime,
+                    @Param("excludedCurrencies") Collection<String> excludedCurrencies);
 }
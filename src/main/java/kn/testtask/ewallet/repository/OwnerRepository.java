@@ -1,7 +1,53 @@
 package kn.testtask.ewallet.repository;
 
+import kn.testtask.ewallet.domain.Money;
 import kn.testtask.ewallet.domain.Owner;
+import kn.testtask.ewallet.domain.OwnerView;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 public interface OwnerRepository extends JpaRepository<Owner, Long> {
+
+    String SELECT_VIEW = "SELECT new kn.testtask.ewallet.domain.OwnerView(o.id, o.name, o.email) FROM Owner o ";
+
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE o.id = :id")
+    Optional<OwnerView> findViewById(@Param("id") Long id);
+
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE o.id > :id ORDER BY o.id")
+    List<OwnerView> findViewPageAfter(@Param("id") Long id, Pageable pageable);
+
+    // one row per e-wallet (or one row with null e-wallet columns for an owner without e-wallets), ordered by owner
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("SELECT o.id, o.name, o.email, e.id, e.owner, e.currency, e.amount, e.name, e.updateDateTime " +
+            "FROM Owner o LEFT JOIN Ewallet e ON e.owner = o.id ORDER BY o.id, e.id")
+    Stream<Object[]> streamAllWithEwalletsOrderedById();
+
+    // owners of the list whose e-wallets hold no more than zero, checked with one aggregate query
+    @Query("SELECT o.id FROM Owner o LEFT JOIN Ewallet e ON e.owner = o.id AND e.amount > :zero " +
+            "WHERE o.id IN :ids GROUP BY o.id HAVING COUNT(e.id) = 0")
+    List<Long> findIdsWithoutMoney(@Param("ids") Collection<Long> ids, @Param("zero") Money zero);
+
+    @Query("SELECT o.id FROM Owner o WHERE o.id IN :ids")
+    List<Long> findExistingIds(@Param("ids") Collection<Long> ids);
+
+    // an owner which still has an e-wallet is kept
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("DELETE FROM Owner o WHERE o.id IN :ids AND NOT EXISTS (SELECT e.id FROM Ewallet e WHERE e.owner = o.id)")
+    int deleteWithoutEwalletsByIdIn(@Param("ids") Collection<Long> ids);
 }
@@ -0,0 +1,31 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.AdmissionLimits;
+import kn.testtask.ewallet.service.AdmissionControl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping(value = "/admission")
+public class AdmissionRestController {
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @GetMapping(value = "/limits")
+    public AdmissionLimits getLimits() {
+        return admissionControl.getLimits();
+    }
+
+    @PutMapping(value = "/limits")
+    @ApiOperation(value = "Change the limits of deposits, withdrawals and transfers",
+            notes = "Applies at once and until restart. Operations over a limit get 429 with Retry-After," +
+            " rejected counts are at GET /stats/admission.")
+    public ResponseEntity<AdmissionLimits> updateLimits(@RequestBody AdmissionLimits limits) {
+        AdmissionLimits updated = admissionControl.updateLimits(limits);
+        return new ResponseEntity<AdmissionLimits>(updated, updated != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+    }
+}
@@ -0,0 +1,67 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.BulkFormat;
+import kn.testtask.ewallet.domain.BulkResult;
+import kn.testtask.ewallet.service.BulkDataService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+
+@RestController
+@RequestMapping(value = "/bulk")
+public class BulkDataRestController {
+
+    @Autowired
+    private BulkDataService bulkDataService;
+
+    @GetMapping(value = "/owners")
+    @ApiOperation(value = "Export all owners ordered by id",
+            notes = "format is ndjson (default) or csv. Rows are streamed from the database straight to the response.")
+    public ResponseEntity<StreamingResponseBody> exportOwners(@RequestParam(defaultValue = "ndjson") String format) {
+        BulkFormat bulkFormat = toBulkFormat(format);
+        StreamingResponseBody body = out -> bulkDataService.exportOwners(bulkFormat, out);
+        return ResponseEntity.ok().contentType(bulkFormat.getMediaType()).body(body);
+    }
+
+    @GetMapping(value = "/ewallets")
+    @ApiOperation(value = "Export all e-wallets ordered by id, with the email of their owner",
+            notes = "format is ndjson (default) or csv. Rows are streamed from the database straight to the response.")
+    public ResponseEntity<StreamingResponseBody> exportEwallets(@RequestParam(defaultValue = "ndjson") String format) {
+        BulkFormat bulkFormat = toBulkFormat(format);
+        StreamingResponseBody body = out -> bulkDataService.exportEwallets(bulkFormat, out);
+        return ResponseEntity.ok().contentType(bulkFormat.getMediaType()).body(body);
+    }
+
+    @PostMapping(value = "/owners")
+    @ApiOperation(value = "Import owners",
+            notes = "Body in the export format. Every owner gets a new id. Chunks are committed one by one," +
+            " an import stopped by a wrong row keeps the chunks committed before it.")
+    public ResponseEntity<BulkResult> importOwners(@RequestParam(defaultValue = "ndjson") String format, InputStream body) {
+        return importResponse(bulkDataService.importOwners(toBulkFormat(format), body));
+    }
+
+    @PostMapping(value = "/ewallets")
+    @ApiOperation(value = "Import e-wallets",
+            notes = "Body in the export format. Every e-wallet gets a new id and belongs to the owner with ownerEmail," +
+            " or to the owner with id owner if ownerEmail is empty. The amount is journaled as a deposit.")
+    public ResponseEntity<BulkResult> importEwallets(@RequestParam(defaultValue = "ndjson") String format, InputStream body) {
+        return importResponse(bulkDataService.importEwallets(toBulkFormat(format), body));
+    }
+
+    private BulkFormat toBulkFormat(String format) {
+        BulkFormat bulkFormat = BulkFormat.fromName(format);
+        if (bulkFormat == null) {
+            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+        }
+        return bulkFormat;
+    }
+
+    private ResponseEntity<BulkResult> importResponse(BulkResult result) {
+        return new ResponseEntity<BulkResult>(result, result.getError() == null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+    }
+}
@@ -1,18 +1,32 @@
 package kn.testtask.ewallet.rest;
 
 import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.AsyncOperationState;
+import kn.testtask.ewallet.domain.AsyncOperationStatus;
 import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.Money;
 import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
 import kn.testtask.ewallet.domain.OperationType;
-import kn.testtask.ewallet.repository.EwalletRepository;
+import kn.testtask.ewallet.service.AsyncOperationPipeline;
+import kn.testtask.ewallet.service.BalanceStreamBroker;
+import kn.testtask.ewallet.service.EwalletOperationGateway;
+import kn.testtask.ewallet.service.EwalletQueryService;
 import kn.testtask.ewallet.service.EwalletService;
+import kn.testtask.ewallet.service.IdempotencyService;
+import kn.testtask.ewallet.service.ShardRouter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
-import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,80 +36,202 @@ import java.util.Map;
 @RequestMapping(value = "/ewallet")
 public class EwalletRestController {
 
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
     @Autowired
     private EwalletService ewalletService;
 
     @Autowired
-    private EwalletRepository ewalletRepository;
+    private EwalletOperationGateway ewalletOperationGateway;
+
+    @Autowired
+    private EwalletQueryService ewalletQueryService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private AsyncOperationPipeline asyncOperationPipeline;
+
+    @Autowired
+    private BalanceStreamBroker balanceStreamBroker;
+
+    @Autowired
+    private ShardRouter shardRouter;
 
     @GetMapping(value = "/list")
-    public List<Ewallet> getAllEwalletsOrderedByOwnerAndCurrencyAndAmount() {
-        return ewalletRepository.findAll(Sort.by(Sort.Direction.ASC, "owner", "currency", "amount"));
+    @ApiOperation(value = "All e-wallets ordered by owner, currency and amount",
+            notes = "Rows are streamed from the database straight to the response.")
+    public ResponseEntity<StreamingResponseBody> getAllEwalletsOrderedByOwnerAndCurrencyAndAmount() {
+        StreamingResponseBody body = ewalletQueryService::writeAllEwallets;
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @GetMapping(value = "/list", params = "limit")
+    @ApiOperation(value = "Page of e-wallets ordered by owner, currency and amount",
+            notes = "Pass nextCursor of a page as cursor to get the next page.")
+    public KeysetPage<EwalletView> getEwalletsPageOrderedByOwnerAndCurrencyAndAmount(@RequestParam int limit,
+                                                                                 @RequestParam(required = false) String cursor) {
+        return ewalletQueryService.getEwalletsPage(cursor, limit);
     }
 
     @GetMapping(value = "/list/{ownerId}")
-    public List<Ewallet> getAllEwalletsByOwnerId(@PathVariable Long ownerId) {
-        return ewalletRepository.findByOwner(ownerId);
+    public List<EwalletView> getAllEwalletsByOwnerId(@PathVariable Long ownerId) {
+        return ewalletQueryService.getEwalletsByOwner(ownerId);
     }
 
     @GetMapping(value = "/balance/{ewalletId}")
-    public BigDecimal getBalanceOfEwalletById(@PathVariable Long ewalletId) {
-        Ewallet ewallet = ewalletRepository.findById(ewalletId).orElse(null);
-        if (ewallet == null) {
-            return BigDecimal.ZERO;
+    public Money getBalanceOfEwalletById(@PathVariable Long ewalletId) {
+        return ewalletQueryService.getBalance(ewalletId);
+    }
+
+    @GetMapping(value = "/stream/{ownerId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ApiOperation(value = "Server-Sent Events stream of the balance changes of the owner's e-wallets",
+            notes = "Starts with an \"ewallets\" event with the current e-wallets of the owner," +
+            " then a \"balance\" event is sent for every committed change. A client that does not read fast enough" +
+            " is disconnected and should reconnect. Returns 503 if there are too many streams.")
+    public ResponseEntity<SseEmitter> streamBalancesOfOwner(@PathVariable Long ownerId) {
+        SseEmitter emitter = balanceStreamBroker.subscribe(ownerId);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
         }
-        return ewallet.getAmount();
+        return ResponseEntity.ok(emitter);
     }
 
     @PutMapping(value = "deposit")
-    public ResponseEntity<Ewallet> depositMoneyToEwallet(@RequestBody Operation operation) {
-        if (operation == null) {
-            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
-        }
-        operation.setType(OperationType.DEPOSIT);
-        Ewallet ewallet = ewalletService.processEwalletOperation(operation);
-        if (ewallet == null) {
-            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
-        }
+    @ApiOperation(value = "Deposit money to e-wallet",
+            notes = "A request repeated with the same Idempotency-Key header gets the stored response and is not applied again.")
+    public ResponseEntity depositMoneyToEwallet(@RequestBody Operation operation,
+                                                @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "deposit", operation, () -> {
+            if (operation == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
+            operation.setType(OperationType.DEPOSIT);
+            Ewallet ewallet = ewalletOperationGateway.processEwalletOperation(operation);
+            if (ewallet == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
 
-        return new ResponseEntity<Ewallet>(ewallet, HttpStatus.OK);
+            return new ResponseEntity<Ewallet>(ewallet, HttpStatus.OK);
+        });
     }
 
     @PutMapping(value = "withdraw")
-    public ResponseEntity withdrawMoneyFromEwallet(@RequestBody Operation operation) {
-        if (operation == null) {
-            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
-        }
-        operation.setType(OperationType.WITHDRAW);
-        Ewallet ewallet = ewalletService.processEwalletOperation(operation);
-        Map<String,String> responseBody = new HashMap<>();
-        if (ewallet == null) {
-            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
-        }
+    @ApiOperation(value = "Withdraw money from e-wallet",
+            notes = "A request repeated with the same Idempotency-Key header gets the stored response and is not applied again.")
+    public ResponseEntity withdrawMoneyFromEwallet(@RequestBody Operation operation,
+                                                   @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "withdraw", operation, () -> {
+            if (operation == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
+            operation.setType(OperationType.WITHDRAW);
+            Ewallet ewallet = ewalletOperationGateway.processEwalletOperation(operation);
+            if (ewallet == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
 
-        return new ResponseEntity<Ewallet>(ewallet, HttpStatus.OK);
+            return new ResponseEntity<Ewallet>(ewallet, HttpStatus.OK);
+        });
     }
 
     @PutMapping(value = "transfer")
-    @ApiOperation(value = "Transfer money between two e-wallets",
+    @ApiOperation(value = "Transfer money between e-wallets",
             notes = "Provide Operation[] with 2 elements. \nFirst element defines wallet to withdraw: ownerId, ewalletId, amount must be filled." +
-            " \nSecond element defines e-wallet to deposit: ownerId, ewalletId must be filled.",
+            " \nSecond element defines e-wallet to deposit: ownerId, ewalletId must be filled." +
+            " \nFor more legs provide Operation[] with ownerId, ewalletId, amount filled for every element." +
+            " Element without type is a withdraw if it is the first one and a deposit otherwise." +
+            " Withdrawn and deposited amounts must be equal." +
+            " \nAmounts are in the currency of the withdrawn e-wallets, which must be the same. An e-wallet in another" +
+            " currency receives the amount converted with the rate of GET /fx/rates.",
             consumes = "Operation[]")
-    public ResponseEntity withdrawMoneyFromEwallet(@RequestBody Operation[] operations) {
-        boolean result = operations.length == 2;
-        if (result) {
-            operations[0].setType(OperationType.WITHDRAW);
-            operations[1].setType(OperationType.DEPOSIT);
-            operations[1].setAmount(operations[0].getAmount());
-            result = ewalletService.processEwalletTransfer(operations);
-        }
+    public ResponseEntity withdrawMoneyFromEwallet(@RequestBody Operation[] operations,
+                                                   @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "transfer", operations, () -> {
+            boolean result = prepareTransfer(operations);
+            if (result) {
+                result = ewalletOperationGateway.processEwalletTransfer(operations);
+            }
 
-        Map<String,String> responseBody = new HashMap<>();
-        if (!result) {
-            responseBody.put("message","Wrong parameters of transfer.");
-        }
+            Map<String,String> responseBody = new HashMap<>();
+            if (!result) {
+                responseBody.put("message","Wrong parameters of transfer.");
+            }
+
+            return new ResponseEntity<Object>(responseBody, result ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+        });
+    }
+
+    @PutMapping(value = "deposit", params = "async=true")
+    @ApiOperation(value = "Queue a deposit",
+            notes = "Returns 202 with operationId at once, the result is at GET /ewallet/operation/{operationId}." +
+            " Returns 503 if the queue is full, 429 if the owner is over its rate.")
+    public ResponseEntity depositMoneyToEwalletAsync(@RequestBody Operation operation,
+                                                     @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "deposit-async", operation, () -> {
+            if (operation == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
+            operation.setType(OperationType.DEPOSIT);
+            return accepted(asyncOperationPipeline.submitOperation(operation));
+        });
+    }
+
+    @PutMapping(value = "withdraw", params = "async=true")
+    @ApiOperation(value = "Queue a withdraw",
+            notes = "Returns 202 with operationId at once, the result is at GET /ewallet/operation/{operationId}." +
+            " Returns 503 if the queue is full, 429 if the owner is over its rate.")
+    public ResponseEntity withdrawMoneyFromEwalletAsync(@RequestBody Operation operation,
+                                                        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "withdraw-async", operation, () -> {
+            if (operation == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
+            operation.setType(OperationType.WITHDRAW);
+            return accepted(asyncOperationPipeline.submitOperation(operation));
+        });
+    }
+
+    @PutMapping(value = "transfer", params = "async=true")
+    @ApiOperation(value = "Queue a transfer",
+            notes = "Same legs as PUT /ewallet/transfer. Returns 202 with operationId at once," +
+            " the result is at GET /ewallet/operation/{operationId}." +
+            " Returns 503 if the queue is full, 429 if a paying owner is over its rate.")
+    public ResponseEntity transferMoneyAsync(@RequestBody Operation[] operations,
+                                             @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "transfer-async", operations, () -> {
+            if (!prepareTransfer(operations)) {
+                Map<String,String> responseBody = new HashMap<>();
+                responseBody.put("message","Wrong parameters of transfer.");
+                return new ResponseEntity<Object>(responseBody, HttpStatus.BAD_REQUEST);
+            }
+            return accepted(asyncOperationPipeline.submitTransfer(operations));
+        });
+    }
+
+    @GetMapping(value = "/operation/{operationId}")
+    @ApiOperation(value = "State of a queued operation",
+            notes = "PENDING until the operation is applied, then APPLIED, REJECTED or FAILED.")
+    public ResponseEntity<AsyncOperationStatus> getOperationStatus(@PathVariable String operationId) {
+        AsyncOperationStatus status = asyncOperationPipeline.getStatus(operationId);
+        return new ResponseEntity<AsyncOperationStatus>(status, status != null ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+    }
 
-        return new ResponseEntity<Object>(responseBody, result ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+    @PutMapping(value = "batch")
+    @ApiOperation(value = "Apply a list of deposits and withdrawals in one transaction per shard",
+            notes = "Provide Operation[]: ownerId, ewalletId, type, amount must be filled for every element." +
+            " \nEvery operation gets its own result, a rejected operation does not stop the others." +
+            " An operation over its owner's rate, or whose e-wallets stay locked longer than ewallet.lock.wait-timeout-ms, is rejected.",
+            consumes = "Operation[]")
+    public ResponseEntity processEwalletOperations(@RequestBody List<Operation> operations,
+                                                   @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotencyService.execute(idempotencyKey, "batch", operations, () -> {
+            if (operations == null) {
+                throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+            }
+            return new ResponseEntity<List<OperationResult>>(ewalletOperationGateway.processEwalletOperations(operations), HttpStatus.OK);
+        });
     }
 
     @PostMapping(value = "/add")
@@ -103,13 +239,48 @@ public class EwalletRestController {
     notes = "Provide Ewallet object with filled: name, currency, owner. Id must be null.",
     consumes = "Ewallet object with filled: name, currency, owner. Id must be null.")
     public ResponseEntity addEwalletToOwner(@RequestBody Ewallet ewallet) {
-        ewallet = ewalletService.addEwallet(ewallet);
-        return new ResponseEntity(ewallet, ewallet != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+        // an e-wallet is on the shard of its owner
+        Ewallet added = shardRouter.onShardOf(ewallet == null ? null : ewallet.getOwner(), () -> ewalletService.addEwallet(ewallet));
+        return new ResponseEntity(added, added != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
     }
 
     @DeleteMapping(value = "/delete/{ewalletId}")
     public ResponseEntity deleteEwallet(@PathVariable Long ewalletId) {
-        boolean result = ewalletService.deleteEwallet(ewalletId);
+        boolean result = shardRouter.onShardOf(ewalletId, () -> ewalletService.deleteEwallet(ewalletId));
         return new ResponseEntity<Object>(null, result ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
     }
+
+    // the legacy two-element transfer gets its types and deposit amount from the first leg,
+    // otherwise an element without type is a withdraw if it is the first one and a deposit otherwise
+    private boolean prepareTransfer(Operation[] operations) {
+        if (operations == null || operations.length < 2) {
+            return false;
+        }
+        if (operations.length == 2 && operations[0] != null && operations[1] != null) {
+            operations[0].setType(OperationType.WITHDRAW);
+            operations[1].setType(OperationType.DEPOSIT);
+            operations[1].setAmount(operations[0].getAmount());
+        } else {
+            for (int i = 0; i < operations.length; i++) {
+                if (operations[i] != null && operations[i].getType() == null) {
+                    operations[i].setType(i == 0 ? OperationType.WITHDRAW : OperationType.DEPOSIT);
+                }
+            }
+        }
+        return true;
+    }
+
+    private ResponseEntity<Object> accepted(String operationId) {
+        Map<String,String> responseBody = new HashMap<>();
+        if (operationId == null) {
+            responseBody.put("message","Operation queue is full. Retry later.");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(responseBody);
+        }
+        responseBody.put("operationId", operationId);
+        responseBody.put("state", AsyncOperationState.PENDING.name());
+        return ResponseEntity.accepted()
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath()
+                        .path("/ewallet/operation/{operationId}").buildAndExpand(operationId).toUri())
+                .body(responseBody);
+    }
 }
@@ -0,0 +1,38 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.FxRate;
+import kn.testtask.ewallet.domain.FxRateSnapshot;
+import kn.testtask.ewallet.service.FxRateService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping(value = "/fx")
+public class FxRateRestController {
+
+    @Autowired
+    private FxRateService fxRateService;
+
+    @GetMapping(value = "/rates")
+    @ApiOperation(value = "FX rates used by cross-currency transfers now, with their version")
+    public FxRateSnapshot getRates() {
+        return fxRateService.getSnapshot();
+    }
+
+    @PutMapping(value = "/rates")
+    @ApiOperation(value = "Replace the FX rates",
+            notes = "Provide FxRate[] with the complete set: baseCurrency, quoteCurrency, rate > 0 for every pair." +
+            " A pair is used in one direction only, add the reverse pair to convert back." +
+            " The set is stored under the next version and used at once; other instances load it within" +
+            " ewallet.fx.refresh-interval-ms.",
+            consumes = "FxRate[]")
+    public ResponseEntity<FxRateSnapshot> updateRates(@RequestBody List<FxRate> rates) {
+        FxRateSnapshot snapshot = fxRateService.updateRates(rates);
+        return new ResponseEntity<FxRateSnapshot>(snapshot, snapshot != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+    }
+}
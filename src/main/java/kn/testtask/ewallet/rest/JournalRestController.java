@@ -0,0 +1,38 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.BalanceMismatch;
+import kn.testtask.ewallet.service.JournalService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@RestController
+@RequestMapping(value = "/journal")
+public class JournalRestController {
+
+    @Autowired
+    private JournalService journalService;
+
+    @GetMapping(value = "/balance/{ewalletId}")
+    @ApiOperation(value = "Balance of e-wallet rebuilt from the latest snapshot and the journal written after it")
+    public BigDecimal getRebuiltBalanceOfEwalletById(@PathVariable Long ewalletId) {
+        return journalService.rebuildBalance(ewalletId);
+    }
+
+    @PostMapping(value = "/snapshot")
+    public ResponseEntity refreshSnapshots() {
+        journalService.refreshSnapshots();
+        return new ResponseEntity<Object>(null, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/verify")
+    @ApiOperation(value = "E-wallets whose balance differs from the balance rebuilt from the journal")
+    public List<BalanceMismatch> verifyBalances() {
+        return journalService.verifyBalances();
+    }
+}
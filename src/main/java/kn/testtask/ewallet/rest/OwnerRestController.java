@@ -1,46 +1,101 @@
 package kn.testtask.ewallet.rest;
 
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.CurrencySummary;
+import kn.testtask.ewallet.domain.KeysetPage;
 import kn.testtask.ewallet.domain.Owner;
-import kn.testtask.ewallet.repository.OwnerRepository;
+import kn.testtask.ewallet.domain.OwnerView;
+import kn.testtask.ewallet.service.OwnerQueryService;
 import kn.testtask.ewallet.service.OwnerService;
+import kn.testtask.ewallet.service.OwnerSummaryService;
+import kn.testtask.ewallet.service.ShardRouter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping(value = "/owner")
 public class OwnerRestController {
 
     @Autowired
-    private OwnerRepository ownerRepository;
+    private OwnerService ownerService;
 
     @Autowired
-    private OwnerService ownerService;
+    private OwnerQueryService ownerQueryService;
+
+    @Autowired
+    private OwnerSummaryService ownerSummaryService;
+
+    @Autowired
+    private ShardRouter shardRouter;
 
     @GetMapping(value = "/list")
-    public List<Owner> getAllOwners() {
-        List<Owner> owners = ownerRepository.findAll();
-        return owners;
+    @ApiOperation(value = "All owners ordered by id",
+            notes = "Rows are streamed from the database straight to the response.")
+    public ResponseEntity<StreamingResponseBody> getAllOwners() {
+        StreamingResponseBody body = ownerQueryService::writeAllOwners;
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @GetMapping(value = "/list", params = "limit")
+    @ApiOperation(value = "Page of owners ordered by id",
+            notes = "Pass nextCursor of a page as cursor to get the next page.")
+    public KeysetPage<OwnerView> getOwnersPage(@RequestParam int limit, @RequestParam(required = false) String cursor) {
+        return ownerQueryService.getOwnersPage(cursor, limit);
     }
 
     @GetMapping(value = "/{ownerId}")
-    public Owner getOwnerById(@PathVariable Long ownerId) {
-        return ownerRepository.findById(ownerId).orElse(null);
+    public OwnerView getOwnerById(@PathVariable Long ownerId) {
+        return ownerQueryService.getOwnerById(ownerId);
+    }
+
+    @GetMapping(value = "/{ownerId}/summary")
+    @ApiOperation(value = "Total balance and e-wallet count of the owner per currency")
+    public List<CurrencySummary> getOwnerSummary(@PathVariable Long ownerId) {
+        return ownerSummaryService.getOwnerSummary(ownerId);
+    }
+
+    @PostMapping(value = "/summary/rebuild")
+    @ApiOperation(value = "Recompute the owner summaries from the e-wallets")
+    public Map<String, Object> rebuildOwnerSummaries() {
+        long startMillis = System.currentTimeMillis();
+        int rows = ownerSummaryService.rebuildSummaries();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rows", rows);
+        result.put("millis", System.currentTimeMillis() - startMillis);
+        return result;
     }
 
     @PostMapping(value = "/add")
     public ResponseEntity addOwner(@RequestBody Owner owner) {
-        owner = ownerService.addOwner(owner);
+        // an owner is placed on the shard of its email
+        Owner added = shardRouter.onShard(shardRouter.shardOfEmail(owner == null ? null : owner.getEmail()),
+                () -> ownerService.addOwner(owner));
 
-        return new ResponseEntity<Object>(owner, owner != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<Object>(added, added != null ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
     }
 
     @DeleteMapping(value = "/delete/{ownerId}")
     public ResponseEntity deleteOwner(@PathVariable Long ownerId) {
-        boolean result = ownerService.deleteOwner(ownerId);
+        boolean result = shardRouter.onShardOf(ownerId, () -> ownerService.deleteOwner(ownerId));
         return new ResponseEntity<Object>(null, result ? HttpStatus.OK : HttpStatus.BAD_REQUEST);
     }
+
+    @DeleteMapping(value = "/delete")
+    @ApiOperation(value = "Delete owners with their e-wallets",
+            notes = "Provide a list of owner ids. Owners with money on any e-wallet are kept." +
+            " \nReturns the ids of the deleted owners.")
+    public List<Long> deleteOwners(@RequestBody List<Long> ownerIds) {
+        if (ownerIds == null) {
+            throw new IllegalArgumentException("Don't be afraid. It is for further processing with @RestControllerAdvice...");
+        }
+        return shardRouter.onShardsOf(ownerIds, ownerService::deleteOwners);
+    }
 }
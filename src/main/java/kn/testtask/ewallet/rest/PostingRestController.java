@@ -0,0 +1,49 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.PostingJobProgress;
+import kn.testtask.ewallet.domain.PostingRule;
+import kn.testtask.ewallet.service.PostingJobService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping(value = "/posting")
+public class PostingRestController {
+
+    @Autowired
+    private PostingJobService postingJobService;
+
+    @PostMapping(value = "/jobs")
+    @ApiOperation(value = "Start a job posting the rule to every e-wallet of the currency",
+            notes = "Set either amount or percent of the balance; currency null posts to all currencies." +
+            " E-wallets with too little money for a withdraw are skipped. Answers 409 if a job is already running.")
+    public ResponseEntity<PostingJobProgress> startJob(@RequestBody PostingRule rule) {
+        if (!PostingJobService.isRuleCorrect(rule)) {
+            return new ResponseEntity<PostingJobProgress>(HttpStatus.BAD_REQUEST);
+        }
+        PostingJobProgress progress = postingJobService.startJob(rule);
+        return new ResponseEntity<PostingJobProgress>(progress, progress != null ? HttpStatus.OK : HttpStatus.CONFLICT);
+    }
+
+    @GetMapping(value = "/jobs/{jobId}")
+    @ApiOperation(value = "Progress of a posting job",
+            notes = "Ranges done, e-wallets posted and skipped so far, and e-wallets per second of the current or last run.")
+    public ResponseEntity<PostingJobProgress> getProgress(@PathVariable String jobId) {
+        PostingJobProgress progress = postingJobService.getProgress(jobId);
+        return new ResponseEntity<PostingJobProgress>(progress, progress != null ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+    }
+
+    @PostMapping(value = "/jobs/{jobId}/resume")
+    @ApiOperation(value = "Resume a failed or interrupted posting job from its last committed chunks",
+            notes = "Answers 409 if the job is completed or a job is running.")
+    public ResponseEntity<PostingJobProgress> resumeJob(@PathVariable String jobId) {
+        if (postingJobService.getProgress(jobId) == null) {
+            return new ResponseEntity<PostingJobProgress>(HttpStatus.NOT_FOUND);
+        }
+        PostingJobProgress progress = postingJobService.resumeJob(jobId);
+        return new ResponseEntity<PostingJobProgress>(progress, progress != null ? HttpStatus.OK : HttpStatus.CONFLICT);
+    }
+}
@@ -0,0 +1,33 @@
+package kn.testtask.ewallet.rest;
+
+import io.swagger.annotations.ApiOperation;
+import kn.testtask.ewallet.domain.ReconciliationReport;
+import kn.testtask.ewallet.service.ReconciliationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping(value = "/reconciliation")
+public class ReconciliationRestController {
+
+    @Autowired
+    private ReconciliationService reconciliationService;
+
+    @GetMapping(value = "/report")
+    @ApiOperation(value = "Report of the last reconciliation",
+            notes = "Currency totals and the anomalies found: negative balances and balances differing from the journal.")
+    public ResponseEntity<ReconciliationReport> getLastReport() {
+        ReconciliationReport report = reconciliationService.getLastReport();
+        return new ResponseEntity<ReconciliationReport>(report, report != null ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+    }
+
+    @PostMapping(value = "/run")
+    @ApiOperation(value = "Run a reconciliation now and return its report",
+            notes = "Answers 409 if a reconciliation is already running.")
+    public ResponseEntity<ReconciliationReport> reconcile() {
+        ReconciliationReport report = reconciliationService.reconcile();
+        return new ResponseEntity<ReconciliationReport>(report, report != null ? HttpStatus.OK : HttpStatus.CONFLICT);
+    }
+}
@@ -0,0 +1,28 @@
+package kn.testtask.ewallet.rest;
+
+import kn.testtask.ewallet.service.AdmissionRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RestControllerAdvice
+public class RestExceptionHandler {
+
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ResponseEntity<Map<String, Object>> handleAdmissionRejected(AdmissionRejectedException ex) {
+        Map<String, Object> responseBody = new HashMap<>();
+        responseBody.put("message", ex.getMessage());
+        // Retry-After is in whole seconds, the exact wait is in the body
+        responseBody.put("retryAfterMs", ex.getRetryAfterMillis());
+        long retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(ex.getRetryAfterMillis() + 999));
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                .body(responseBody);
+    }
+}
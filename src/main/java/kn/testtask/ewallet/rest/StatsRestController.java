@@ -0,0 +1,157 @@
+package kn.testtask.ewallet.rest;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import kn.testtask.ewallet.config.ReadWriteRoutingDataSource;
+import kn.testtask.ewallet.service.AdmissionControl;
+import kn.testtask.ewallet.service.BalanceStreamBroker;
+import kn.testtask.ewallet.service.BulkDataService;
+import kn.testtask.ewallet.service.DepositCoalescer;
+import kn.testtask.ewallet.service.EwalletLockRegistry;
+import kn.testtask.ewallet.service.EwalletQueryService;
+import kn.testtask.ewallet.service.IdempotencyService;
+import kn.testtask.ewallet.service.ReplicaLagMonitor;
+import kn.testtask.ewallet.service.ShardRouter;
+import kn.testtask.ewallet.service.ShardedTransferService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping(value = "/stats")
+public class StatsRestController {
+
+    @Autowired
+    private EwalletLockRegistry lockRegistry;
+
+    @Autowired
+    private EwalletQueryService ewalletQueryService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private DepositCoalescer depositCoalescer;
+
+    @Autowired
+    private BulkDataService bulkDataService;
+
+    @Autowired
+    private BalanceStreamBroker balanceStreamBroker;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private ShardedTransferService shardedTransferService;
+
+    // there is no replica unless ewallet.datasource.replica.enabled
+    @Autowired(required = false)
+    private ReplicaLagMonitor replicaLagMonitor;
+
+    @Autowired(required = false)
+    private ReadWriteRoutingDataSource routingDataSource;
+
+    @GetMapping(value = "/datasource")
+    public Map<String, Object> getDataSourceStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("replicaEnabled", replicaLagMonitor != null);
+        if (replicaLagMonitor != null) {
+            stats.put("replicaUsable", replicaLagMonitor.isReplicaUsable());
+            stats.put("lagMs", replicaLagMonitor.getLagMillis());
+            stats.put("maxLagMs", replicaLagMonitor.getMaxLagMillis());
+        }
+        if (routingDataSource != null) {
+            stats.put("primaryConnections", routingDataSource.getPrimaryConnections());
+            stats.put("replicaConnections", routingDataSource.getReplicaConnections());
+        }
+        return stats;
+    }
+
+    @GetMapping(value = "/shards")
+    public Map<String, Object> getShardStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("shards", shardRouter.getShardCount());
+        stats.put("sagasStarted", shardedTransferService.getStarted());
+        stats.put("sagasCompleted", shardedTransferService.getCompleted());
+        stats.put("sagasCancelled", shardedTransferService.getCancelled());
+        stats.put("sagasRecovered", shardedTransferService.getRecovered());
+        stats.put("sagasOpen", shardedTransferService.countOpenSagas());
+        return stats;
+    }
+
+    @GetMapping(value = "/locks")
+    public Map<String, Object> getLockStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("stripes", lockRegistry.getStripeCount());
+        stats.put("waitTimeoutMs", lockRegistry.getWaitTimeoutMillis());
+        stats.put("acquisitions", lockRegistry.getAcquisitions());
+        stats.put("timeouts", lockRegistry.getTimeouts());
+        stats.put("totalWaitNanos", lockRegistry.getTotalWaitNanos());
+        stats.put("maxWaitNanos", lockRegistry.getMaxWaitNanos());
+        return stats;
+    }
+
+    @GetMapping(value = "/admission")
+    public Map<String, Object> getAdmissionStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("limits", admissionControl.getLimits());
+        stats.put("inProgress", admissionControl.getInProgress());
+        stats.put("admitted", admissionControl.getAdmitted());
+        stats.put("rejectedByRate", admissionControl.getRejectedByRate());
+        stats.put("rejectedByConcurrency", admissionControl.getRejectedByConcurrency());
+        return stats;
+    }
+
+    @GetMapping(value = "/coalescing")
+    public Map<String, Object> getCoalescingStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", depositCoalescer.isEnabled());
+        stats.put("coalescedDeposits", depositCoalescer.getCoalescedDeposits());
+        stats.put("appliedBatches", depositCoalescer.getAppliedBatches());
+        stats.put("pendingBatches", depositCoalescer.getPendingBatches());
+        return stats;
+    }
+
+    @GetMapping(value = "/bulk")
+    public Map<String, Object> getBulkStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lastImport", bulkDataService.getLastImport());
+        stats.put("lastExport", bulkDataService.getLastExport());
+        return stats;
+    }
+
+    @GetMapping(value = "/stream")
+    public Map<String, Object> getStreamStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("subscribers", balanceStreamBroker.getSubscriberCount());
+        stats.put("sentEvents", balanceStreamBroker.getSentEvents());
+        stats.put("droppedSubscribers", balanceStreamBroker.getDroppedSubscribers());
+        return stats;
+    }
+
+    @GetMapping(value = "/cache")
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("balance", cacheStats(ewalletQueryService.getBalanceCacheStats(), ewalletQueryService.getBalanceCacheSize()));
+        stats.put("ownerEwallets", cacheStats(ewalletQueryService.getOwnerEwalletsCacheStats(), ewalletQueryService.getOwnerEwalletsCacheSize()));
+        stats.put("idempotency", cacheStats(idempotencyService.getCacheStats(), idempotencyService.getCacheSize()));
+        return stats;
+    }
+
+    private Map<String, Object> cacheStats(CacheStats cacheStats, long size) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("hits", cacheStats.hitCount());
+        stats.put("misses", cacheStats.missCount());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("evictions", cacheStats.evictionCount());
+        return stats;
+    }
+}
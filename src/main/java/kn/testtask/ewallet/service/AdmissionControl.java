@@ -0,0 +1,206 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.AdmissionLimits;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Admission of deposits, withdrawals and transfers before they wait for locks and connections.
+ * Every owner draws from a token bucket (owners are striped over a fixed number of buckets)
+ * and all admitted operations together are limited to maxConcurrent in progress.
+ * Limits can be changed at runtime; a rejected operation fails fast with AdmissionRejectedException.
+ */
+@Component
+public class AdmissionControl {
+
+    private final TokenBucket[] buckets;
+
+    private volatile AdmissionLimits limits;
+
+    private final AtomicInteger inProgress = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejectedByRate = new AtomicLong();
+
+    private final AtomicLong rejectedByConcurrency = new AtomicLong();
+
+    public AdmissionControl(@Value("${ewallet.admission.enabled:false}") boolean enabled,
+                            @Value("${ewallet.admission.owner-rate-per-second:50}") double ownerRatePerSecond,
+                            @Value("${ewallet.admission.owner-burst:100}") int ownerBurst,
+                            @Value("${ewallet.admission.max-concurrent:200}") int maxConcurrent,
+                            @Value("${ewallet.admission.stripes:4096}") int stripeCount) {
+        AdmissionLimits initialLimits = new AdmissionLimits(enabled, ownerRatePerSecond, ownerBurst, maxConcurrent);
+        if (stripeCount < 1 || !areLimitsCorrect(initialLimits)) {
+            throw new IllegalArgumentException("Wrong admission limits: " + initialLimits + ", stripes " + stripeCount);
+        }
+        this.limits = initialLimits;
+        this.buckets = new TokenBucket[stripeCount];
+        long now = System.nanoTime();
+        for (int i = 0; i < stripeCount; i++) {
+            this.buckets[i] = new TokenBucket(ownerBurst, now);
+        }
+    }
+
+    /**
+     * Runs action if every owner has a token left and fewer than maxConcurrent admitted actions are in progress.
+     * Throws AdmissionRejectedException with a retry hint otherwise.
+     */
+    public <T> T executeAdmitted(Collection<Long> ownerIds, Supplier<T> action) {
+        AdmissionLimits current = limits;
+        if (!current.isEnabled()) {
+            return action.get();
+        }
+        enter(current);
+        try {
+            takeTokens(ownerIds, current);
+            admitted.incrementAndGet();
+            return action.get();
+        } finally {
+            inProgress.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs action for a batch, which counts as one action in progress, but takes a token for every element.
+     * action gets which elements were admitted: an element whose owner has no token left is not.
+     * Throws AdmissionRejectedException only if maxConcurrent admitted actions are in progress.
+     */
+    public <T> T executeAdmittedEach(List<Long> ownerIds, Function<boolean[], T> action) {
+        boolean[] admittedElements = new boolean[ownerIds.size()];
+        Arrays.fill(admittedElements, true);
+        AdmissionLimits current = limits;
+        if (!current.isEnabled()) {
+            return action.apply(admittedElements);
+        }
+        enter(current);
+        try {
+            long now = System.nanoTime();
+            for (int i = 0; i < admittedElements.length; i++) {
+                Long ownerId = ownerIds.get(i);
+                if (ownerId != null
+                        && buckets[stripeOf(ownerId)].take(current.getOwnerRatePerSecond(), current.getOwnerBurst(), now) > 0) {
+                    admittedElements[i] = false;
+                    rejectedByRate.incrementAndGet();
+                } else {
+                    admitted.incrementAndGet();
+                }
+            }
+            return action.apply(admittedElements);
+        } finally {
+            inProgress.decrementAndGet();
+        }
+    }
+
+    private void enter(AdmissionLimits current) {
+        if (inProgress.incrementAndGet() > current.getMaxConcurrent()) {
+            inProgress.decrementAndGet();
+            rejectedByConcurrency.incrementAndGet();
+            throw new AdmissionRejectedException("Too many operations in progress. Retry later.", 1000);
+        }
+    }
+
+    private void takeTokens(Collection<Long> ownerIds, AdmissionLimits current) {
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        for (Long ownerId : ownerIds) {
+            if (ownerId != null) {
+                stripeIndexes.add(stripeOf(ownerId));
+            }
+        }
+        long now = System.nanoTime();
+        Integer[] indexes = stripeIndexes.toArray(new Integer[0]);
+        for (int i = 0; i < indexes.length; i++) {
+            long waitNanos = buckets[indexes[i]].take(current.getOwnerRatePerSecond(), current.getOwnerBurst(), now);
+            if (waitNanos > 0) {
+                // owners of a transfer are admitted together or not at all
+                for (int j = 0; j < i; j++) {
+                    buckets[indexes[j]].giveBack(current.getOwnerBurst());
+                }
+                rejectedByRate.incrementAndGet();
+                throw new AdmissionRejectedException("Too many operations of the owner. Retry later.",
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+        }
+    }
+
+    private int stripeOf(Long ownerId) {
+        int hash = ownerId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), buckets.length);
+    }
+
+    public AdmissionLimits getLimits() {
+        AdmissionLimits current = limits;
+        return new AdmissionLimits(current.isEnabled(), current.getOwnerRatePerSecond(), current.getOwnerBurst(),
+                current.getMaxConcurrent());
+    }
+
+    /**
+     * Replaces the limits, buckets keep their tokens. Returns null if a limit is not positive.
+     */
+    public AdmissionLimits updateLimits(AdmissionLimits newLimits) {
+        if (newLimits == null || !areLimitsCorrect(newLimits)) {
+            return null;
+        }
+        this.limits = new AdmissionLimits(newLimits.isEnabled(), newLimits.getOwnerRatePerSecond(), newLimits.getOwnerBurst(),
+                newLimits.getMaxConcurrent());
+        return getLimits();
+    }
+
+    private static boolean areLimitsCorrect(AdmissionLimits limits) {
+        return limits.getOwnerRatePerSecond() > 0 && limits.getOwnerBurst() >= 1 && limits.getMaxConcurrent() >= 1;
+    }
+
+    public int getInProgress() {
+        return inProgress.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejectedByRate() {
+        return rejectedByRate.get();
+    }
+
+    public long getRejectedByConcurrency() {
+        return rejectedByConcurrency.get();
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long refillNanos;
+
+        private TokenBucket(double tokens, long refillNanos) {
+            this.tokens = tokens;
+            this.refillNanos = refillNanos;
+        }
+
+        // takes a token and returns 0, or returns the nanos until the next token
+        private synchronized long take(double ratePerSecond, int burst, long now) {
+            if (now > refillNanos) {
+                tokens = Math.min(burst, tokens + (now - refillNanos) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+                refillNanos = now;
+            }
+            tokens = Math.min(tokens, burst);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        }
+
+        private synchronized void giveBack(int burst) {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package kn.testtask.ewallet.service;
+
+/**
+ * Thrown instead of running an operation that is over its owner's rate or the global concurrency limit.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final long retryAfterMillis;
+
+    public AdmissionRejectedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,369 @@
+package kn.testtask.ewallet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import kn.testtask.ewallet.domain.AsyncOperationState;
+import kn.testtask.ewallet.domain.AsyncOperationStatus;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
+import kn.testtask.ewallet.domain.OperationType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepted-now, applied-later deposits, withdrawals and transfers.
+ * Workers drain the bounded queue in groups of up to batchSize operations, waiting at most lingerMillis
+ * for a group to fill, and apply every group in one transaction per shard, so one commit covers many operations.
+ * A group spans at most maxStripes lock stripes, so the stripes it holds during its commit leave the others free
+ * for the synchronous operations.
+ */
+@Slf4j
+@Service
+public class AsyncOperationPipeline {
+
+    private final EwalletService ewalletService;
+
+    private final EwalletLockRegistry lockRegistry;
+
+    private final AdmissionControl admissionControl;
+
+    private final DepositCoalescer depositCoalescer;
+
+    private final ShardRouter shardRouter;
+
+    private final ShardedTransferService shardedTransferService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final BlockingQueue<PendingOperation> queue;
+
+    private final Cache<String, AsyncOperationStatus> statuses;
+
+    private final int batchSize;
+
+    private final int maxStripes;
+
+    private final long lingerNanos;
+
+    private final boolean lockEnabled;
+
+    private final ExecutorService workers;
+
+    private volatile boolean running = true;
+
+    public AsyncOperationPipeline(EwalletService ewalletService,
+                                  EwalletLockRegistry lockRegistry,
+                                  AdmissionControl admissionControl,
+                                  DepositCoalescer depositCoalescer,
+                                  ShardRouter shardRouter,
+                                  ShardedTransferService shardedTransferService,
+                                  PlatformTransactionManager transactionManager,
+                                  @Value("${ewallet.async.queue-capacity:10000}") int queueCapacity,
+                                  @Value("${ewallet.async.batch-size:200}") int batchSize,
+                                  @Value("${ewallet.async.max-stripes:8}") int maxStripes,
+                                  @Value("${ewallet.async.linger-ms:5}") long lingerMillis,
+                                  @Value("${ewallet.async.workers:2}") int workerCount,
+                                  @Value("${ewallet.async.status-ttl-ms:3600000}") long statusTtlMillis,
+                                  @Value("${ewallet.lock.enabled:true}") boolean lockEnabled) {
+        this.ewalletService = ewalletService;
+        this.lockRegistry = lockRegistry;
+        this.admissionControl = admissionControl;
+        this.depositCoalescer = depositCoalescer;
+        this.shardRouter = shardRouter;
+        this.shardedTransferService = shardedTransferService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.statuses = Caffeine.newBuilder()
+                .expireAfterWrite(statusTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.batchSize = batchSize;
+        this.maxStripes = maxStripes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.lockEnabled = lockEnabled;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "operation-pipeline-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Queues a deposit or withdraw. Returns the operation id, or null if the queue is full.
+     * Throws AdmissionRejectedException if the owner is over its rate.
+     */
+    public String submitOperation(Operation operation) {
+        return submit(new Operation[] {operation}, false);
+    }
+
+    /**
+     * Queues a transfer. Returns the operation id, or null if the queue is full.
+     * Throws AdmissionRejectedException if a paying owner is over its rate.
+     */
+    public String submitTransfer(Operation[] operations) {
+        return submit(operations, true);
+    }
+
+    public AsyncOperationStatus getStatus(String operationId) {
+        return statuses.getIfPresent(operationId);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    // the owner, or the paying owners of a transfer, are admitted before the operation is queued
+    private String submit(Operation[] legs, boolean transfer) {
+        List<Long> ownerIds = new ArrayList<>();
+        for (Operation leg : legs) {
+            if (leg != null && (!transfer || leg.getType() == OperationType.WITHDRAW)) {
+                ownerIds.add(leg.getOwnerId());
+            }
+        }
+        return admissionControl.executeAdmitted(ownerIds, () -> enqueue(legs, transfer));
+    }
+
+    private String enqueue(Operation[] legs, boolean transfer) {
+        String operationId = UUID.randomUUID().toString();
+        statuses.put(operationId, AsyncOperationStatus.pending(operationId));
+        if (!queue.offer(new PendingOperation(operationId, legs, transfer))) {
+            statuses.invalidate(operationId);
+            return null;
+        }
+        return operationId;
+    }
+
+    private void drain() {
+        List<PendingOperation> batch = new ArrayList<>(batchSize);
+        Set<Integer> stripes = new HashSet<>();
+        // taken from the queue, but over the stripe limit of the last group, so it starts the next one
+        PendingOperation carried = null;
+        // on shutdown the workers stop taking new groups only when everything accepted is applied
+        while (running || carried != null || !queue.isEmpty()) {
+            try {
+                PendingOperation first = carried != null ? carried : queue.poll(100, TimeUnit.MILLISECONDS);
+                carried = null;
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                addStripes(first, stripes, Integer.MAX_VALUE);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    PendingOperation next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (!addStripes(next, stripes, maxStripes)) {
+                        carried = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                applyGroup(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                log.error("Could not apply {} queued operations", batch.size(), ex);
+            } finally {
+                batch.clear();
+                stripes.clear();
+            }
+        }
+    }
+
+    // adds the stripes of the operation to the stripes of the group, unless the group would span more than limit
+    private boolean addStripes(PendingOperation pending, Set<Integer> stripes, int limit) {
+        if (!lockEnabled) {
+            return true;
+        }
+        Set<Integer> added = new HashSet<>();
+        for (Operation leg : pending.legs) {
+            if (leg != null && leg.getEwalletId() != null) {
+                int stripe = lockRegistry.stripeOf(leg.getEwalletId());
+                if (!stripes.contains(stripe)) {
+                    added.add(stripe);
+                }
+            }
+        }
+        if (stripes.size() + added.size() > limit) {
+            return false;
+        }
+        stripes.addAll(added);
+        return true;
+    }
+
+    private void applyGroup(List<PendingOperation> batch) {
+        List<Long> ewalletIds = new ArrayList<>();
+        // deposits still held by the coalescer are applied before a withdraw or transfer of the group, and before
+        // the stripes are taken, which the coalescer needs
+        List<Long> flushedIds = new ArrayList<>();
+        for (PendingOperation pending : batch) {
+            for (Operation leg : pending.legs) {
+                if (leg != null) {
+                    ewalletIds.add(leg.getEwalletId());
+                    if (pending.transfer || leg.getType() != OperationType.DEPOSIT) {
+                        flushedIds.add(leg.getEwalletId());
+                    }
+                }
+            }
+        }
+        depositCoalescer.flush(flushedIds);
+        List<AsyncOperationStatus> results = lockEnabled
+                ? lockRegistry.executeLocked(ewalletIds, () -> applyOnShards(batch), null)
+                : applyOnShards(batch);
+        if (results == null) {
+            for (PendingOperation pending : batch) {
+                statuses.put(pending.operationId, status(pending, AsyncOperationState.FAILED, null, null,
+                        "E-wallets are busy, operation was not applied."));
+            }
+            return;
+        }
+        results.forEach(status -> statuses.put(status.getOperationId(), status));
+    }
+
+    // operations of one shard are applied in one transaction of that shard, a transfer across shards is a saga
+    // of its own, run after the operations queued before it
+    private List<AsyncOperationStatus> applyOnShards(List<PendingOperation> batch) {
+        if (!shardRouter.isSharded()) {
+            return applyInTransaction(batch);
+        }
+        List<AsyncOperationStatus> results = new ArrayList<>(batch.size());
+        Map<Integer, List<PendingOperation>> shardGroups = new TreeMap<>();
+        for (PendingOperation pending : batch) {
+            int shard = shardRouter.shardOfOperations(pending.legs);
+            if (shard >= 0) {
+                shardGroups.computeIfAbsent(shard, key -> new ArrayList<>()).add(pending);
+                continue;
+            }
+            applyShardGroups(shardGroups, results);
+            try {
+                results.add(transferStatus(pending, shardedTransferService.processEwalletTransfer(pending.legs)));
+            } catch (RuntimeException ex) {
+                log.warn("Queued operation {} failed", pending.operationId, ex);
+                results.add(status(pending, AsyncOperationState.FAILED, null, null, "Operation failed."));
+            }
+        }
+        applyShardGroups(shardGroups, results);
+        return results;
+    }
+
+    private void applyShardGroups(Map<Integer, List<PendingOperation>> shardGroups, List<AsyncOperationStatus> results) {
+        shardGroups.forEach((shard, group) -> results.addAll(shardRouter.onShard(shard, () -> applyInTransaction(group))));
+        shardGroups.clear();
+    }
+
+    // one transaction for the whole group; if it fails, every operation is retried in a transaction of its own
+    private List<AsyncOperationStatus> applyInTransaction(List<PendingOperation> batch) {
+        try {
+            return transactionTemplate.execute(status -> apply(batch));
+        } catch (RuntimeException ex) {
+            if (batch.size() == 1) {
+                log.warn("Queued operation {} failed", batch.get(0).operationId, ex);
+                return Collections.singletonList(status(batch.get(0), AsyncOperationState.FAILED, null, null,
+                        "Operation failed."));
+            }
+            List<AsyncOperationStatus> results = new ArrayList<>(batch.size());
+            for (PendingOperation pending : batch) {
+                results.addAll(applyInTransaction(Collections.singletonList(pending)));
+            }
+            return results;
+        }
+    }
+
+    // keeps the queue order: runs of deposits and withdrawals go as one batch, transfers one by one between them;
+    // all rows of the group are locked in id order first, as every step locks its own rows only
+    private List<AsyncOperationStatus> apply(List<PendingOperation> batch) {
+        Set<Long> ewalletIds = new TreeSet<>();
+        for (PendingOperation pending : batch) {
+            for (Operation leg : pending.legs) {
+                if (leg != null && leg.getEwalletId() != null) {
+                    ewalletIds.add(leg.getEwalletId());
+                }
+            }
+        }
+        ewalletService.lockEwallets(ewalletIds);
+        List<AsyncOperationStatus> results = new ArrayList<>(batch.size());
+        List<PendingOperation> run = new ArrayList<>();
+        for (PendingOperation pending : batch) {
+            if (!pending.transfer) {
+                run.add(pending);
+                continue;
+            }
+            applyRun(run, results);
+            results.add(transferStatus(pending, ewalletService.processEwalletTransfer(pending.legs)));
+        }
+        applyRun(run, results);
+        return results;
+    }
+
+    private void applyRun(List<PendingOperation> run, List<AsyncOperationStatus> results) {
+        if (run.isEmpty()) {
+            return;
+        }
+        List<Operation> operations = new ArrayList<>(run.size());
+        run.forEach(pending -> operations.add(pending.legs[0]));
+        List<OperationResult> operationResults = ewalletService.processEwalletOperations(operations);
+        for (int i = 0; i < run.size(); i++) {
+            OperationResult result = operationResults.get(i);
+            results.add(status(run.get(i), result.isSuccess() ? AsyncOperationState.APPLIED : AsyncOperationState.REJECTED,
+                    result.getEwalletId(), result.getAmount(), result.getMessage()));
+        }
+        run.clear();
+    }
+
+    private static AsyncOperationStatus transferStatus(PendingOperation pending, boolean applied) {
+        return applied
+                ? status(pending, AsyncOperationState.APPLIED, null, null, null)
+                : status(pending, AsyncOperationState.REJECTED, null, null, "Wrong parameters of transfer.");
+    }
+
+    private static AsyncOperationStatus status(PendingOperation pending, AsyncOperationState state, Long ewalletId,
+                                               Money amount, String message) {
+        return new AsyncOperationStatus(pending.operationId, state, ewalletId, amount, message);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static class PendingOperation {
+        private final String operationId;
+        private final Operation[] legs;
+        private final boolean transfer;
+
+        private PendingOperation(String operationId, Operation[] legs, boolean transfer) {
+            this.operationId = operationId;
+            this.legs = legs;
+            this.transfer = transfer;
+        }
+    }
+}
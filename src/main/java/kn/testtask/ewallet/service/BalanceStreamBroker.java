@@ -0,0 +1,288 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pushes committed balance changes to the Server-Sent Events subscribers of the owner.
+ * The committing thread only offers the change to the bounded queue of every subscriber;
+ * sender threads write the queues to the clients. A subscriber whose queue is full is dropped,
+ * the client reconnects and gets the current e-wallets of the owner first.
+ * A subscriber whose write to the client takes longer than sendTimeoutMillis is dropped as well,
+ * so a stalled client does not hold one of the few sender threads.
+ */
+@Slf4j
+@Service
+public class BalanceStreamBroker {
+
+    private final EwalletQueryService ewalletQueryService;
+
+    private final int bufferSize;
+
+    private final int maxSubscribers;
+
+    private final long timeoutMillis;
+
+    private final long sendTimeoutMillis;
+
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    private final AtomicLong sentEvents = new AtomicLong();
+
+    private final AtomicLong droppedSubscribers = new AtomicLong();
+
+    private final ExecutorService senders;
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stream-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BalanceStreamBroker(EwalletQueryService ewalletQueryService,
+                               @Value("${ewallet.stream.buffer-size:100}") int bufferSize,
+                               @Value("${ewallet.stream.max-subscribers:10000}") int maxSubscribers,
+                               @Value("${ewallet.stream.timeout-ms:1800000}") long timeoutMillis,
+                               @Value("${ewallet.stream.senders:2}") int senderCount,
+                               @Value("${ewallet.stream.heartbeat-ms:15000}") long heartbeatMillis,
+                               @Value("${ewallet.stream.send-timeout-ms:5000}") long sendTimeoutMillis) {
+        this.ewalletQueryService = ewalletQueryService;
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        this.timeoutMillis = timeoutMillis;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+        AtomicInteger senderNumber = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(senderCount, runnable -> {
+            Thread thread = new Thread(runnable, "stream-sender-" + senderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a comment line every heartbeatMillis finds the clients that went away
+        heartbeat.scheduleWithFixedDelay(() -> broadcast(() -> SseEmitter.event().comment("heartbeat")),
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        long checkMillis = Math.max(1, sendTimeoutMillis / 2);
+        heartbeat.scheduleWithFixedDelay(this::dropStalled, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a stream of the balance changes of the owner, starting with an "ewallets" event
+     * with the current e-wallets of the owner. Returns null if there are maxSubscribers streams already.
+     */
+    public SseEmitter subscribe(Long ownerId) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = register(ownerId, emitter);
+        if (subscriber == null) {
+            return null;
+        }
+        // registered before the e-wallets are read, so no change committed in between is missed
+        offer(subscriber, SseEmitter.event().name("ewallets")
+                .data(ewalletQueryService.getEwalletsByOwner(ownerId), MediaType.APPLICATION_JSON));
+        return emitter;
+    }
+
+    Subscriber register(Long ownerId, SseEmitter emitter) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(ownerId, emitter, new ArrayBlockingQueue<>(bufferSize));
+        // added within the compute, so a concurrent remove of the last subscriber cannot drop the set after the add
+        subscribers.compute(ownerId, (owner, ownerSubscribers) -> {
+            Set<Subscriber> added = ownerSubscribers == null ? ConcurrentHashMap.newKeySet() : ownerSubscribers;
+            added.add(subscriber);
+            return added;
+        });
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(ex -> remove(subscriber));
+        return subscriber;
+    }
+
+    @TransactionalEventListener
+    public void onBalanceChanged(BalanceChangedEvent event) {
+        Set<Subscriber> ownerSubscribers = subscribers.get(event.getOwnerId());
+        if (ownerSubscribers == null) {
+            return;
+        }
+        for (Subscriber subscriber : ownerSubscribers) {
+            offer(subscriber, SseEmitter.event().name("balance").data(event, MediaType.APPLICATION_JSON));
+        }
+    }
+
+    @TransactionalEventListener
+    public void onOwnerDeleted(OwnerDeletedEvent event) {
+        Set<Subscriber> ownerSubscribers = subscribers.get(event.getOwnerId());
+        if (ownerSubscribers != null) {
+            ownerSubscribers.forEach(this::close);
+        }
+    }
+
+    // an event builder is written once, so every subscriber gets a builder of its own
+    private void broadcast(Supplier<SseEmitter.SseEventBuilder> event) {
+        subscribers.values().forEach(ownerSubscribers -> ownerSubscribers.forEach(subscriber -> offer(subscriber, event.get())));
+    }
+
+    // never blocks: a subscriber that cannot keep up is dropped
+    private void offer(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (!subscriber.queue.offer(event)) {
+            droppedSubscribers.incrementAndGet();
+            log.debug("Dropped slow stream subscriber of owner {}", subscriber.ownerId);
+            close(subscriber);
+            return;
+        }
+        schedule(subscriber);
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    // one sender at a time per subscriber, so its events are written in order
+    private void send(Subscriber subscriber) {
+        try {
+            SseEmitter.SseEventBuilder event;
+            while (!subscriber.closed && (event = subscriber.queue.poll()) != null) {
+                startSend(subscriber);
+                subscriber.emitter.send(event);
+                sentEvents.incrementAndGet();
+            }
+        } catch (IOException | IllegalStateException ex) {
+            // the client went away or the stream is already completed
+            close(subscriber);
+        } finally {
+            endSend(subscriber);
+            subscriber.sending.set(false);
+        }
+        if (subscriber.stalled) {
+            // completed here, as the emitter is locked by its send while the write is stalled
+            subscriber.emitter.complete();
+        } else if (!subscriber.closed && !subscriber.queue.isEmpty()) {
+            schedule(subscriber);
+        }
+    }
+
+    private void startSend(Subscriber subscriber) {
+        synchronized (subscriber) {
+            subscriber.sender = Thread.currentThread();
+            subscriber.sendStartNanos = System.nanoTime();
+        }
+    }
+
+    private void endSend(Subscriber subscriber) {
+        synchronized (subscriber) {
+            subscriber.sender = null;
+            // a deadline interrupt that came after the write must not hit the next subscriber of the thread
+            Thread.interrupted();
+        }
+    }
+
+    // drops the subscribers whose write to the client is past sendTimeoutMillis and interrupts the write
+    private void dropStalled() {
+        long now = System.nanoTime();
+        subscribers.values().forEach(ownerSubscribers -> ownerSubscribers.forEach(subscriber -> {
+            synchronized (subscriber) {
+                if (subscriber.sender == null
+                        || now - subscriber.sendStartNanos < TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis)
+                        || !remove(subscriber)) {
+                    return;
+                }
+                subscriber.stalled = true;
+                subscriber.queue.clear();
+                subscriber.sender.interrupt();
+            }
+            droppedSubscribers.incrementAndGet();
+            log.debug("Dropped stalled stream subscriber of owner {}", subscriber.ownerId);
+        }));
+    }
+
+    private void close(Subscriber subscriber) {
+        if (remove(subscriber)) {
+            subscriber.queue.clear();
+            subscriber.emitter.complete();
+        }
+    }
+
+    private boolean remove(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.closed) {
+                return false;
+            }
+            subscriber.closed = true;
+        }
+        subscriberCount.decrementAndGet();
+        subscribers.computeIfPresent(subscriber.ownerId, (ownerId, ownerSubscribers) -> {
+            ownerSubscribers.remove(subscriber);
+            return ownerSubscribers.isEmpty() ? null : ownerSubscribers;
+        });
+        return true;
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    public long getSentEvents() {
+        return sentEvents.get();
+    }
+
+    public long getDroppedSubscribers() {
+        return droppedSubscribers.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeat.shutdownNow();
+        subscribers.values().forEach(ownerSubscribers -> ownerSubscribers.forEach(this::close));
+        senders.shutdownNow();
+    }
+
+    static class Subscriber {
+        private final Long ownerId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile boolean closed;
+        private volatile boolean stalled;
+        private Thread sender;
+        private long sendStartNanos;
+
+        private Subscriber(Long ownerId, SseEmitter emitter, BlockingQueue<SseEmitter.SseEventBuilder> queue) {
+            this.ownerId = ownerId;
+            this.emitter = emitter;
+            this.queue = queue;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+    }
+}
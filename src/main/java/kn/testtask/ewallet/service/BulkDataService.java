@@ -0,0 +1,318 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.BulkFormat;
+import kn.testtask.ewallet.domain.BulkResult;
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.EwalletCreatedEvent;
+import kn.testtask.ewallet.domain.EwalletRecord;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Owner;
+import kn.testtask.ewallet.domain.OwnerRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * NDJSON and CSV import and export of owners and e-wallets.
+ * Imports are parsed record by record and persisted in chunks of chunkSize, one transaction per chunk;
+ * ids come from pooled sequences, so Hibernate sends the inserts of a chunk as JDBC batches.
+ * Exports are written row by row while the result set is read, shard after shard.
+ */
+@Slf4j
+@Service
+public class BulkDataService {
+
+    private static final String SELECT_OWNERS = "SELECT id, name, email FROM Owner ORDER BY id";
+
+    private static final String SELECT_EWALLETS = "SELECT e.id, e.owner, o.email, e.currency, e.amount, e.name " +
+            "FROM Ewallet e JOIN Owner o ON o.id = e.owner ORDER BY e.id";
+
+    private static final String FIND_OWNER_IDS = "SELECT id, email FROM Owner WHERE email IN (:emails)";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final JdbcTemplate exportJdbcTemplate;
+
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final ShardRouter shardRouter;
+
+    private final ObjectMapper jsonMapper;
+
+    private final CsvMapper csvMapper = new CsvMapper();
+
+    private final int chunkSize;
+
+    private final AtomicReference<BulkResult> lastImport = new AtomicReference<>();
+
+    private final AtomicReference<BulkResult> lastExport = new AtomicReference<>();
+
+    public BulkDataService(JdbcTemplate jdbcTemplate,
+                           PlatformTransactionManager transactionManager,
+                           ApplicationEventPublisher eventPublisher,
+                           ShardRouter shardRouter,
+                           ObjectMapper objectMapper,
+                           @Value("${ewallet.bulk.chunk-size:1000}") int chunkSize,
+                           @Value("${ewallet.bulk.fetch-size:1000}") int fetchSize) {
+        this.exportJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.exportJdbcTemplate.setFetchSize(fetchSize);
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.eventPublisher = eventPublisher;
+        this.shardRouter = shardRouter;
+        // the response and request streams belong to the servlet container
+        this.jsonMapper = objectMapper.copy()
+                .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+                .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.csvMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        this.csvMapper.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.chunkSize = chunkSize;
+    }
+
+    public BulkResult exportOwners(BulkFormat format, OutputStream out) throws IOException {
+        return export("owners", format, OwnerRecord.class, SELECT_OWNERS,
+                (rs, rowNum) -> new OwnerRecord(rs.getLong(1), rs.getString(2), rs.getString(3)), out);
+    }
+
+    public BulkResult exportEwallets(BulkFormat format, OutputStream out) throws IOException {
+        return export("e-wallets", format, EwalletRecord.class, SELECT_EWALLETS,
+                (rs, rowNum) -> new EwalletRecord(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4),
+                        rs.getBigDecimal(5), rs.getString(6)), out);
+    }
+
+    public BulkResult importOwners(BulkFormat format, InputStream in) {
+        return importRecords("owners", format, OwnerRecord.class, in, this::persistOwners);
+    }
+
+    public BulkResult importEwallets(BulkFormat format, InputStream in) {
+        return importRecords("e-wallets", format, EwalletRecord.class, in, this::persistEwallets);
+    }
+
+    public BulkResult getLastImport() {
+        return lastImport.get();
+    }
+
+    public BulkResult getLastExport() {
+        return lastExport.get();
+    }
+
+    private <T> BulkResult export(String what, BulkFormat format, Class<T> type, String query, RowMapper<T> rowMapper,
+                                  OutputStream out) throws IOException {
+        long startNanos = System.nanoTime();
+        long[] rows = {0};
+        try (SequenceWriter writer = writerFor(format, type).writeValues(out)) {
+            // ids of a shard are above the ids of the shards before it, so the rows stay in id order
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                shardRouter.onShard(shard, () -> {
+                    exportJdbcTemplate.query(query, (RowCallbackHandler) rs -> {
+                        try {
+                            writer.write(rowMapper.mapRow(rs, (int) rows[0]));
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                        rows[0]++;
+                    });
+                    return null;
+                });
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        BulkResult result = result(rows[0], 0, startNanos, null);
+        lastExport.set(result);
+        log.info("Exported {} {} in {} ms, {} rows/s", result.getRows(), what, result.getMillis(), result.getRowsPerSecond());
+        return result;
+    }
+
+    private <T> BulkResult importRecords(String what, BulkFormat format, Class<T> type, InputStream in,
+                                         BiConsumer<List<T>, Long> persistChunk) {
+        long startNanos = System.nanoTime();
+        long rows = 0;
+        int chunks = 0;
+        String error = null;
+        List<T> chunk = new ArrayList<>(chunkSize);
+        try (MappingIterator<T> records = readerFor(format, type).readValues(in)) {
+            while (records.hasNextValue()) {
+                chunk.add(records.nextValue());
+                if (chunk.size() == chunkSize) {
+                    persistChunk.accept(chunk, rows + 1);
+                    rows += chunk.size();
+                    chunks++;
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                persistChunk.accept(chunk, rows + 1);
+                rows += chunk.size();
+                chunks++;
+            }
+        } catch (IOException | RuntimeException ex) {
+            error = "Import stopped in the chunk starting at row " + (rows + 1) + ": " + ex.getMessage();
+        }
+        BulkResult result = result(rows, chunks, startNanos, error);
+        lastImport.set(result);
+        log.info("Imported {} {} in {} chunks in {} ms, {} rows/s", result.getRows(), what, chunks,
+                result.getMillis(), result.getRowsPerSecond());
+        return result;
+    }
+
+    // a chunk is checked as a whole first, then persisted in one transaction per shard
+    private void persistOwners(List<OwnerRecord> records, Long firstRow) {
+        List<Owner> owners = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            OwnerRecord record = records.get(i);
+            if (isBlank(record.getName()) || isBlank(record.getEmail())) {
+                throw new IllegalArgumentException("row " + (firstRow + i) + " has no name or email");
+            }
+            Owner owner = new Owner();
+            owner.setName(record.getName());
+            owner.setEmail(record.getEmail());
+            owners.add(owner);
+        }
+        byShard(owners, owner -> shardRouter.shardOfEmail(owner.getEmail())).forEach((shard, shardOwners) ->
+                shardRouter.onShard(shard, () -> transactionTemplate.execute(status -> {
+                    shardOwners.forEach(entityManager::persist);
+                    entityManager.flush();
+                    entityManager.clear();
+                    return null;
+                })));
+    }
+
+    private void persistEwallets(List<EwalletRecord> records, Long firstRow) {
+        Map<String, Long> ownerIds = findOwnerIds(records);
+        List<Ewallet> ewallets = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            ewallets.add(toEwallet(records.get(i), ownerIds, firstRow + i));
+        }
+        byShard(ewallets, ewallet -> shardRouter.shardOfId(ewallet.getOwner())).forEach((shard, shardEwallets) ->
+                shardRouter.onShard(shard, () -> transactionTemplate.execute(status -> {
+                    for (Ewallet ewallet : shardEwallets) {
+                        entityManager.persist(ewallet);
+                        // an imported balance is journaled as a deposit to the new e-wallet
+                        eventPublisher.publishEvent(new EwalletCreatedEvent(ewallet.getId(), ewallet.getOwner(), ewallet.getCurrency()));
+                        if (ewallet.getAmount().isPositive()) {
+                            eventPublisher.publishEvent(new BalanceChangedEvent(ewallet.getId(), ewallet.getOwner(),
+                                    ewallet.getCurrency(), OperationType.DEPOSIT, ewallet.getAmount(), ewallet.getAmount()));
+                        }
+                    }
+                    entityManager.flush();
+                    entityManager.clear();
+                    return null;
+                })));
+    }
+
+    private static <T> Map<Integer, List<T>> byShard(List<T> items, ToIntFunction<T> shardOf) {
+        return items.stream().collect(Collectors.groupingBy(shardOf::applyAsInt, TreeMap::new, Collectors.toList()));
+    }
+
+    // ids of the owners referenced by email, read with one query per chunk and shard
+    private Map<String, Long> findOwnerIds(List<EwalletRecord> records) {
+        Set<String> emails = new HashSet<>();
+        for (EwalletRecord record : records) {
+            if (!isBlank(record.getOwnerEmail())) {
+                emails.add(record.getOwnerEmail());
+            }
+        }
+        Map<String, Long> ownerIds = new HashMap<>();
+        if (!emails.isEmpty()) {
+            // every shard is asked, the seed owners are on shard 0 whatever their email
+            shardRouter.onEveryShard(shard -> namedJdbcTemplate.query(FIND_OWNER_IDS, new MapSqlParameterSource("emails", emails),
+                    (rs, rowNum) -> new Object[] {rs.getString(2), rs.getLong(1)}))
+                    .forEach(rows -> rows.forEach(row -> ownerIds.put((String) row[0], (Long) row[1])));
+        }
+        return ownerIds;
+    }
+
+    private Ewallet toEwallet(EwalletRecord record, Map<String, Long> ownerIds, long row) {
+        Long ownerId = isBlank(record.getOwnerEmail()) ? record.getOwner() : ownerIds.get(record.getOwnerEmail());
+        if (ownerId == null) {
+            throw new IllegalArgumentException("row " + row + " has no known owner");
+        }
+        if (isBlank(record.getCurrency()) || isBlank(record.getName())) {
+            throw new IllegalArgumentException("row " + row + " has no currency or name");
+        }
+        Money amount;
+        try {
+            amount = record.getAmount() == null ? Money.ZERO : Money.of(record.getAmount());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("row " + row + ": " + ex.getMessage());
+        }
+        if (amount.isNegative() || !amount.fitsCurrency(record.getCurrency())) {
+            throw new IllegalArgumentException("row " + row + " has a wrong amount");
+        }
+        Ewallet ewallet = new Ewallet();
+        ewallet.setOwner(ownerId);
+        ewallet.setCurrency(record.getCurrency());
+        ewallet.setAmount(amount);
+        ewallet.setName(record.getName());
+        return ewallet;
+    }
+
+    private ObjectWriter writerFor(BulkFormat format, Class<?> type) {
+        if (format == BulkFormat.CSV) {
+            return csvMapper.writerFor(type).with(csvMapper.schemaFor(type).withHeader());
+        }
+        return jsonMapper.writerFor(type).withRootValueSeparator("\n");
+    }
+
+    private ObjectReader readerFor(BulkFormat format, Class<?> type) {
+        if (format == BulkFormat.CSV) {
+            // columns are taken from the header line, so they may come in any order
+            return csvMapper.readerFor(type).with(CsvSchema.emptySchema().withHeader());
+        }
+        return jsonMapper.readerFor(type);
+    }
+
+    private static BulkResult result(long rows, int chunks, long startNanos, String error) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        return new BulkResult(rows, chunks, TimeUnit.NANOSECONDS.toMillis(nanos),
+                rows * TimeUnit.SECONDS.toNanos(1) / nanos, error);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,193 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Operation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces deposits to the same e-wallet that arrive within a short window.
+ * The first deposit of a window waits for the others, applies all of them with one UPDATE
+ * and completes every waiting caller with the resulting e-wallet.
+ * Withdrawals and transfers flush the pending deposits of their e-wallets first, so their funds check sees them.
+ */
+@Component
+public class DepositCoalescer {
+
+    private final EwalletService ewalletService;
+
+    private final EwalletLockRegistry lockRegistry;
+
+    private final ShardRouter shardRouter;
+
+    private final boolean enabled;
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    private final boolean lockEnabled;
+
+    // the newest batch of every e-wallet, removed when it is applied
+    private final ConcurrentHashMap<Long, Batch> batches = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedDeposits = new AtomicLong();
+
+    private final AtomicLong appliedBatches = new AtomicLong();
+
+    public DepositCoalescer(EwalletService ewalletService,
+                            EwalletLockRegistry lockRegistry,
+                            ShardRouter shardRouter,
+                            @Value("${ewallet.coalescing.enabled:false}") boolean enabled,
+                            @Value("${ewallet.coalescing.window-ms:2}") long windowMillis,
+                            @Value("${ewallet.coalescing.max-batch-size:100}") int maxBatchSize,
+                            @Value("${ewallet.lock.enabled:true}") boolean lockEnabled) {
+        this.ewalletService = ewalletService;
+        this.lockRegistry = lockRegistry;
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatchSize = maxBatchSize;
+        this.lockEnabled = lockEnabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Applies the deposit together with the others of its window.
+     * Returns the e-wallet with the balance after the whole batch, or null if the deposit was rejected.
+     */
+    public Ewallet deposit(Operation operation) {
+        Long ewalletId = operation.getEwalletId();
+        CompletableFuture<Ewallet> result = new CompletableFuture<>();
+        Batch batch;
+        int position;
+        do {
+            // a closed batch is being applied, the new one is applied after it
+            batch = batches.compute(ewalletId, (id, current) -> current == null || current.closed ? new Batch(current) : current);
+            position = batch.add(operation, result, maxBatchSize);
+        } while (position < 0);
+
+        if (position == 0) {
+            batch.awaitWindow(windowNanos);
+            apply(ewalletId, batch);
+        }
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+    }
+
+    /**
+     * Waits until every deposit pending for the given e-wallets is applied.
+     * Must be called before the e-wallet locks are taken, the batches need them to be applied.
+     */
+    public void flush(Collection<Long> ewalletIds) {
+        if (!enabled) {
+            return;
+        }
+        for (Long ewalletId : ewalletIds) {
+            Batch batch = ewalletId == null ? null : batches.get(ewalletId);
+            if (batch != null) {
+                batch.close();
+                batch.done.join();
+            }
+        }
+    }
+
+    private void apply(Long ewalletId, Batch batch) {
+        try {
+            if (batch.previous != null) {
+                batch.previous.done.join();
+                batch.previous = null;
+            }
+            Supplier<List<Ewallet>> deposits = () -> shardRouter.onShardOf(ewalletId,
+                    () -> ewalletService.processCoalescedDeposits(ewalletId, batch.operations));
+            List<Ewallet> results = lockEnabled
+                    ? lockRegistry.executeLocked(Collections.singletonList(ewalletId), deposits, null)
+                    : deposits.get();
+            for (int i = 0; i < batch.results.size(); i++) {
+                batch.results.get(i).complete(results == null ? null : results.get(i));
+            }
+            appliedBatches.incrementAndGet();
+            coalescedDeposits.addAndGet(batch.operations.size());
+        } catch (RuntimeException ex) {
+            batch.results.forEach(result -> result.completeExceptionally(ex));
+        } finally {
+            batches.remove(ewalletId, batch);
+            batch.done.complete(null);
+        }
+    }
+
+    public long getCoalescedDeposits() {
+        return coalescedDeposits.get();
+    }
+
+    public long getAppliedBatches() {
+        return appliedBatches.get();
+    }
+
+    public int getPendingBatches() {
+        return batches.size();
+    }
+
+    private static class Batch {
+        private final List<Operation> operations = new ArrayList<>();
+        private final List<CompletableFuture<Ewallet>> results = new ArrayList<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile Batch previous;
+        private volatile boolean closed;
+
+        private Batch(Batch previous) {
+            this.previous = previous;
+        }
+
+        // position of the deposit in the batch, 0 makes the caller its leader; -1 if the batch is already closed
+        private synchronized int add(Operation operation, CompletableFuture<Ewallet> result, int maxSize) {
+            if (closed) {
+                return -1;
+            }
+            operations.add(operation);
+            results.add(result);
+            if (operations.size() >= maxSize) {
+                close();
+            }
+            return operations.size() - 1;
+        }
+
+        private synchronized void awaitWindow(long windowNanos) {
+            long deadline = System.nanoTime() + windowNanos;
+            long remaining = windowNanos;
+            while (!closed && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException ex) {
+                    // the deposits already joined must still be applied
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            closed = true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package kn.testtask.ewallet.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+@Component
+public class EwalletLockRegistry {
+
+    private final ReentrantLock[] stripes;
+
+    private final long waitTimeoutMillis;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    public EwalletLockRegistry(@Value("${ewallet.lock.stripes:64}") int stripeCount,
+                               @Value("${ewallet.lock.wait-timeout-ms:5000}") long waitTimeoutMillis) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * Runs action while holding the stripes of all given e-wallets.
+     * Returns onTimeout if the stripes could not be taken within the configured wait time.
+     */
+    public <T> T executeLocked(Collection<Long> ewalletIds, Supplier<T> action, T onTimeout) {
+        // stripes are always taken in ascending order, so two callers can not deadlock each other
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        for (Long ewalletId : ewalletIds) {
+            if (ewalletId != null) {
+                stripeIndexes.add(stripeOf(ewalletId));
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+        int locked = 0;
+        Integer[] indexes = stripeIndexes.toArray(new Integer[0]);
+        try {
+            for (Integer index : indexes) {
+                if (!stripes[index].tryLock(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    timeouts.incrementAndGet();
+                    return onTimeout;
+                }
+                locked++;
+            }
+            recordWait(System.nanoTime() - startNanos);
+            return action.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return onTimeout;
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                stripes[indexes[i]].unlock();
+            }
+        }
+    }
+
+    int stripeOf(Long ewalletId) {
+        int hash = ewalletId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+
+    private void recordWait(long waitNanos) {
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulate(waitNanos);
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+}
@@ -0,0 +1,192 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
+import kn.testtask.ewallet.domain.OperationType;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Entry point for money-moving operations.
+ * Operations over their owner's rate or the concurrency limit are rejected first (AdmissionControl).
+ * Operations on the same e-wallet are serialized here, before EwalletService opens its transaction,
+ * so the lock is held until the change is committed. The transaction is opened on the shard of the e-wallets.
+ */
+@Service
+@RequiredArgsConstructor
+public class EwalletOperationGateway {
+
+    private final EwalletService ewalletService;
+
+    private final EwalletLockRegistry lockRegistry;
+
+    private final DepositCoalescer depositCoalescer;
+
+    private final AdmissionControl admissionControl;
+
+    private final ShardRouter shardRouter;
+
+    private final ShardedTransferService shardedTransferService;
+
+    @Value("${ewallet.lock.enabled:true}")
+    private boolean lockEnabled;
+
+    public Ewallet processEwalletOperation(Operation operation) {
+        if (operation == null) {
+            return ewalletService.processEwalletOperation(operation);
+        }
+        return admissionControl.executeAdmitted(Collections.singletonList(operation.getOwnerId()),
+                () -> processAdmittedOperation(operation));
+    }
+
+    private Ewallet processAdmittedOperation(Operation operation) {
+        if (depositCoalescer.isEnabled() && operation.getEwalletId() != null) {
+            if (operation.getType() == OperationType.DEPOSIT) {
+                return depositCoalescer.deposit(operation);
+            }
+            depositCoalescer.flush(Collections.singletonList(operation.getEwalletId()));
+        }
+        if (!lockEnabled) {
+            return applyOnShard(operation);
+        }
+        return lockRegistry.executeLocked(Collections.singletonList(operation.getEwalletId()),
+                () -> applyOnShard(operation), null);
+    }
+
+    private Ewallet applyOnShard(Operation operation) {
+        return shardRouter.onShardOf(operation.getEwalletId(), () -> ewalletService.processEwalletOperation(operation));
+    }
+
+    /**
+     * Applies a batch of deposits and withdrawals, in one transaction per shard of the e-wallets.
+     * An operation over its owner's rate is rejected in its result, the others are applied.
+     */
+    public List<OperationResult> processEwalletOperations(List<Operation> operations) {
+        List<Long> ownerIds = operations.stream()
+                .map(operation -> operation == null ? null : operation.getOwnerId())
+                .collect(Collectors.toList());
+        return admissionControl.executeAdmittedEach(ownerIds, admitted -> processAdmittedOperations(operations, admitted));
+    }
+
+    private List<OperationResult> processAdmittedOperations(List<Operation> operations, boolean[] admitted) {
+        List<Integer> indexes = new ArrayList<>();
+        // a withdraw sees the deposits accepted before the batch, as a single one does
+        List<Long> flushedIds = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            if (admitted[i]) {
+                indexes.add(i);
+                Operation operation = operations.get(i);
+                if (operation != null && operation.getType() != OperationType.DEPOSIT) {
+                    flushedIds.add(operation.getEwalletId());
+                }
+            }
+        }
+        depositCoalescer.flush(flushedIds);
+        if (indexes.size() == operations.size()) {
+            return applyOnShards(operations);
+        }
+        OperationResult[] results = new OperationResult[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            if (!admitted[i]) {
+                results[i] = OperationResult.rejected(i, operations.get(i).getEwalletId(),
+                        "Too many operations of the owner. Retry later.");
+            }
+        }
+        if (!indexes.isEmpty()) {
+            List<OperationResult> admittedResults = applyOnShards(indexes.stream().map(operations::get).collect(Collectors.toList()));
+            for (int i = 0; i < indexes.size(); i++) {
+                OperationResult result = admittedResults.get(i);
+                result.setIndex(indexes.get(i));
+                results[indexes.get(i)] = result;
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private List<OperationResult> applyOnShards(List<Operation> operations) {
+        if (!shardRouter.isSharded()) {
+            return applyLocked(operations, () -> ewalletService.processEwalletOperations(operations));
+        }
+        // positions of the operations of every shard in the request
+        Map<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            int shard = shardRouter.shardOfId(operation == null ? null : operation.getEwalletId());
+            indexesByShard.computeIfAbsent(shard, key -> new ArrayList<>()).add(i);
+        }
+        OperationResult[] results = new OperationResult[operations.size()];
+        indexesByShard.forEach((shard, indexes) -> {
+            List<Operation> shardOperations = indexes.stream().map(operations::get).collect(Collectors.toList());
+            List<OperationResult> shardResults = applyLocked(shardOperations,
+                    () -> shardRouter.onShard(shard, () -> ewalletService.processEwalletOperations(shardOperations)));
+            for (int i = 0; i < indexes.size(); i++) {
+                OperationResult result = shardResults.get(i);
+                result.setIndex(indexes.get(i));
+                results[indexes.get(i)] = result;
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    // the e-wallets of a batch are locked like those of a single operation, until its transaction is committed
+    private List<OperationResult> applyLocked(List<Operation> operations, Supplier<List<OperationResult>> apply) {
+        if (!lockEnabled) {
+            return apply.get();
+        }
+        List<Long> ewalletIds = new ArrayList<>();
+        for (Operation operation : operations) {
+            if (operation != null) {
+                ewalletIds.add(operation.getEwalletId());
+            }
+        }
+        List<OperationResult> results = lockRegistry.executeLocked(ewalletIds, apply, null);
+        if (results != null) {
+            return results;
+        }
+        results = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            results.add(OperationResult.rejected(i, operation == null ? null : operation.getEwalletId(),
+                    "E-wallets are busy, operation was not applied."));
+        }
+        return results;
+    }
+
+    public boolean processEwalletTransfer(Operation[] operations) {
+        if (operations == null) {
+            return ewalletService.processEwalletTransfer(operations);
+        }
+        List<Long> ewalletIds = new ArrayList<>();
+        // the paying owners are charged for the transfer
+        List<Long> payerIds = new ArrayList<>();
+        for (Operation operation : operations) {
+            if (operation != null) {
+                ewalletIds.add(operation.getEwalletId());
+                if (operation.getType() == OperationType.WITHDRAW) {
+                    payerIds.add(operation.getOwnerId());
+                }
+            }
+        }
+        return admissionControl.executeAdmitted(payerIds, () -> processAdmittedTransfer(operations, ewalletIds));
+    }
+
+    private boolean processAdmittedTransfer(Operation[] operations, List<Long> ewalletIds) {
+        depositCoalescer.flush(ewalletIds);
+        if (!lockEnabled) {
+            return shardedTransferService.processEwalletTransfer(operations);
+        }
+        return lockRegistry.executeLocked(ewalletIds,
+                () -> shardedTransferService.processEwalletTransfer(operations), false);
+    }
+}
@@ -0,0 +1,225 @@
+package kn.testtask.ewallet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.EwalletCreatedEvent;
+import kn.testtask.ewallet.domain.EwalletDeletedEvent;
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Cached reads of balances and owner e-wallet lists.
+ * Everything is read as projections in read-only transactions; cache hits do not touch the database.
+ * Entries are invalidated after the changing transaction commits. With a replica the reads may still see
+ * the old value for up to max-lag-ms, so the entries are invalidated once more when that time is over.
+ */
+@Service
+public class EwalletQueryService {
+
+    private final EwalletRepository ewalletRepository;
+
+    private final JsonArrayStreamer jsonArrayStreamer;
+
+    private final ShardRouter shardRouter;
+
+    private final int maxPageSize;
+
+    private final boolean cacheEnabled;
+
+    private final Cache<Long, Money> balances;
+
+    private final Cache<Long, List<EwalletView>> ownerEwallets;
+
+    private final long replicaMaxLagMillis;
+
+    // the order of GET /ewallet/list, NULLs first as in the database
+    static final Comparator<EwalletView> LIST_ORDER = Comparator.comparing(EwalletView::getOwner)
+            .thenComparing(EwalletView::getCurrency, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(EwalletView::getAmount, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(EwalletView::getId);
+
+    private final ScheduledExecutorService delayedInvalidation = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-invalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EwalletQueryService(EwalletRepository ewalletRepository,
+                               JsonArrayStreamer jsonArrayStreamer,
+                               ShardRouter shardRouter,
+                               @Value("${ewallet.list.max-page-size:1000}") int maxPageSize,
+                               @Value("${ewallet.cache.enabled:true}") boolean cacheEnabled,
+                               @Value("${ewallet.cache.max-size:10000}") long maxSize,
+                               @Value("${ewallet.cache.expire-after-write-ms:30000}") long expireAfterWriteMillis,
+                               @Value("${ewallet.datasource.replica.enabled:false}") boolean replicaEnabled,
+                               @Value("${ewallet.datasource.replica.max-lag-ms:2000}") long replicaMaxLagMillis) {
+        this.ewalletRepository = ewalletRepository;
+        this.jsonArrayStreamer = jsonArrayStreamer;
+        this.shardRouter = shardRouter;
+        this.maxPageSize = maxPageSize;
+        this.cacheEnabled = cacheEnabled;
+        this.replicaMaxLagMillis = replicaEnabled ? replicaMaxLagMillis : 0;
+        this.balances = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.ownerEwallets = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public Money getBalance(Long ewalletId) {
+        Money balance = cacheEnabled
+                ? balances.get(ewalletId, this::loadBalance)
+                : loadBalance(ewalletId);
+        return balance == null ? Money.ZERO : balance;
+    }
+
+    public List<EwalletView> getEwalletsByOwner(Long ownerId) {
+        return cacheEnabled
+                ? ownerEwallets.get(ownerId, this::loadEwalletsByOwner)
+                : loadEwalletsByOwner(ownerId);
+    }
+
+    public void writeAllEwallets(OutputStream outputStream) {
+        if (shardRouter.isSharded()) {
+            jsonArrayStreamer.writeWithoutTransaction(() -> shardRouter.streamMerged(
+                    shard -> ewalletRepository.streamAllViewsOrderedByOwnerAndCurrencyAndAmount(), LIST_ORDER), outputStream);
+        } else {
+            jsonArrayStreamer.write(ewalletRepository::streamAllViewsOrderedByOwnerAndCurrencyAndAmount, outputStream);
+        }
+    }
+
+    public KeysetPage<EwalletView> getEwalletsPage(String cursor, int limit) {
+        PageRequest pageRequest = PageRequest.of(0, Math.max(1, Math.min(limit, maxPageSize)));
+        List<EwalletView> ewallets;
+        if (cursor == null || cursor.isEmpty()) {
+            ewallets = readPage(shard -> ewalletRepository.findFirstViewPage(pageRequest), pageRequest.getPageSize());
+        } else {
+            // cursor is owner:currency:amount:id of the last e-wallet of the previous page, a NULL is left empty
+            String[] key;
+            try {
+                key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 4);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Wrong cursor: " + cursor, ex);
+            }
+            if (key.length != 4) {
+                throw new IllegalArgumentException("Wrong cursor: " + cursor);
+            }
+            Long owner = Long.valueOf(key[0]);
+            String currency = key[1].isEmpty() ? null : key[1];
+            Money amount = key[2].isEmpty() ? null : Money.of(key[2]);
+            Long id = Long.valueOf(key[3]);
+            ewallets = readPage(shard -> ewalletRepository.findViewPageAfter(owner, currency, amount, id, pageRequest),
+                    pageRequest.getPageSize());
+        }
+        String nextCursor = null;
+        if (ewallets.size() == pageRequest.getPageSize()) {
+            EwalletView last = ewallets.get(ewallets.size() - 1);
+            String key = last.getOwner() + ":" + (last.getCurrency() == null ? "" : last.getCurrency()) + ":" +
+                    (last.getAmount() == null ? "" : last.getAmount().toString()) + ":" + last.getId();
+            nextCursor = Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        }
+        return new KeysetPage<>(ewallets, nextCursor);
+    }
+
+    // every shard gives its first pageSize e-wallets after the cursor, the page is the first pageSize of them all
+    private List<EwalletView> readPage(IntFunction<List<EwalletView>> shardPage, int pageSize) {
+        if (!shardRouter.isSharded()) {
+            return shardPage.apply(0);
+        }
+        return ShardRouter.mergeSorted(shardRouter.onEveryShard(shardPage), LIST_ORDER, pageSize);
+    }
+
+    private Money loadBalance(Long ewalletId) {
+        return shardRouter.onShardOf(ewalletId, () -> ewalletRepository.findAmountById(ewalletId).orElse(null));
+    }
+
+    private List<EwalletView> loadEwalletsByOwner(Long ownerId) {
+        return Collections.unmodifiableList(shardRouter.onShardOf(ownerId, () -> ewalletRepository.findViewsByOwner(ownerId)));
+    }
+
+    // a load running concurrently with the invalidation finishes first and is then removed,
+    // so a value read before the commit can not stay in the cache
+    @TransactionalEventListener
+    public void onBalanceChanged(BalanceChangedEvent event) {
+        invalidate(() -> {
+            balances.invalidate(event.getEwalletId());
+            ownerEwallets.invalidate(event.getOwnerId());
+        });
+    }
+
+    @TransactionalEventListener
+    public void onEwalletCreated(EwalletCreatedEvent event) {
+        invalidate(() -> ownerEwallets.invalidate(event.getOwnerId()));
+    }
+
+    @TransactionalEventListener
+    public void onEwalletDeleted(EwalletDeletedEvent event) {
+        invalidate(() -> {
+            balances.invalidate(event.getEwalletId());
+            ownerEwallets.invalidate(event.getOwnerId());
+        });
+    }
+
+    @TransactionalEventListener
+    public void onOwnerDeleted(OwnerDeletedEvent event) {
+        invalidate(() -> {
+            balances.invalidateAll(event.getEwalletIds());
+            ownerEwallets.invalidate(event.getOwnerId());
+        });
+    }
+
+    // a replica lagging behind may have given the old value to a load after the first invalidation
+    private void invalidate(Runnable invalidation) {
+        invalidation.run();
+        if (replicaMaxLagMillis > 0) {
+            delayedInvalidation.schedule(invalidation, replicaMaxLagMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public CacheStats getBalanceCacheStats() {
+        return balances.stats();
+    }
+
+    public CacheStats getOwnerEwalletsCacheStats() {
+        return ownerEwallets.stats();
+    }
+
+    public long getBalanceCacheSize() {
+        return balances.estimatedSize();
+    }
+
+    public long getOwnerEwalletsCacheSize() {
+        return ownerEwallets.estimatedSize();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        delayedInvalidation.shutdownNow();
+    }
+}
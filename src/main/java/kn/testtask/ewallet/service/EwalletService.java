@@ -1,13 +1,37 @@
 package kn.testtask.ewallet.service;
 
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
 import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.EwalletCreatedEvent;
+import kn.testtask.ewallet.domain.EwalletDeletedEvent;
+import kn.testtask.ewallet.domain.FxConversion;
+import kn.testtask.ewallet.domain.FxRateSnapshot;
+import kn.testtask.ewallet.domain.Money;
 import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.PostingChunk;
+import kn.testtask.ewallet.domain.PostingRule;
+import kn.testtask.ewallet.domain.TransferLeg;
 import kn.testtask.ewallet.repository.EwalletRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 @RequiredArgsConstructor
@@ -18,64 +42,364 @@ public class EwalletService {
 
     private final OwnerService ownerService;
 
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final FxRateService fxRateService;
+
+    @Value("${ewallet.operation.mode:ATOMIC_UPDATE}")
+    private OperationMode operationMode;
+
     public Ewallet processEwalletOperation(Operation operation) {
-        if (isOperationPossible(operation)) {
-            return updateEwallet(operation);
+        if (operationMode == OperationMode.ATOMIC_UPDATE) {
+            return applyEwalletOperation(operation);
+        }
+        if (operation == null || operation.getEwalletId() == null) {
+            return null;
+        }
+        // the row is locked before it is read, so a posting chunk or any other writer can not change it in between
+        Ewallet ewallet = ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(operation.getEwalletId()))
+                .stream().findFirst().orElse(null);
+        if (isOperationPossible(operation, ewallet)) {
+            return updateEwallet(ewallet, operation);
         }
         return null;
     }
 
+    private Ewallet applyEwalletOperation(Operation operation) {
+        if (operation == null
+                || operation.getEwalletId() == null
+                || operation.getOwnerId() == null
+                || operation.getType() == null
+                || !isOperationAmountCorrect(operation)) {
+            return null;
+        }
+        Money delta = operation.getType().getOperationSign() > 0
+                ? operation.getAmount()
+                : operation.getAmount().negate();
+        // "" stands for no excluded currency, an empty IN list is not valid SQL
+        Set<String> excludedCurrencies = operation.getAmount().currenciesNotFitting();
+        int updated = ewalletRepository.addToAmount(operation.getEwalletId(), operation.getOwnerId(), delta.toBigDecimal(),
+                LocalDateTime.now(), excludedCurrencies.isEmpty() ? Collections.singleton("") : excludedCurrencies);
+        if (updated == 0) {
+            return null;
+        }
+        // the row is locked by the update until commit, so this read returns exactly the new balance
+        Ewallet ewallet = ewalletRepository.findById(operation.getEwalletId()).orElse(null);
+        if (ewallet != null) {
+            publishBalanceChanged(ewallet, operation.getType(), operation.getAmount());
+        }
+        return ewallet;
+    }
+
+    private void publishBalanceChanged(Ewallet ewallet, OperationType type, Money amount) {
+        eventPublisher.publishEvent(new BalanceChangedEvent(ewallet.getId(), ewallet.getOwner(), ewallet.getCurrency(),
+                type, amount, ewallet.getAmount()));
+    }
+
+    /**
+     * Locks the rows of the e-wallets in id order until the end of the transaction, so a caller which changes them
+     * in several steps holds all of them before the first step, as a posting chunk does.
+     */
+    public void lockEwallets(Collection<Long> ewalletIds) {
+        if (!ewalletIds.isEmpty()) {
+            ewalletRepository.findByIdInOrderByIdAsc(ewalletIds);
+        }
+    }
+
+    public List<OperationResult> processEwalletOperations(List<Operation> operations) {
+        OperationResult[] results = new OperationResult[operations.size()];
+        // indexes of the operations of every e-wallet, in request order
+        Map<Long, List<Integer>> operationsByEwallet = new LinkedHashMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            if (operation == null || operation.getEwalletId() == null || operation.getType() == null) {
+                results[i] = OperationResult.rejected(i, null, "Wrong parameters of operation.");
+                continue;
+            }
+            operationsByEwallet.computeIfAbsent(operation.getEwalletId(), ewalletId -> new ArrayList<>()).add(i);
+        }
+        if (operationsByEwallet.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        Map<Long, Ewallet> ewallets = new HashMap<>();
+        for (Ewallet ewallet : ewalletRepository.findByIdInOrderByIdAsc(operationsByEwallet.keySet())) {
+            ewallets.put(ewallet.getId(), ewallet);
+        }
+        for (Map.Entry<Long, List<Integer>> group : operationsByEwallet.entrySet()) {
+            Ewallet ewallet = ewallets.get(group.getKey());
+            for (Integer index : group.getValue()) {
+                results[index] = applyToLoadedEwallet(index, operations.get(index), ewallet);
+            }
+        }
+        // changed e-wallets are written with batched UPDATE statements (hibernate.jdbc.batch_size)
+        ewalletRepository.flush();
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Applies deposits coalesced for one e-wallet: the row is locked once and written with one UPDATE.
+     * Every applied deposit gets the e-wallet with its final balance, every rejected one gets null.
+     */
+    public List<Ewallet> processCoalescedDeposits(Long ewalletId, List<Operation> deposits) {
+        List<Ewallet> loaded = ewalletRepository.findByIdInOrderByIdAsc(Collections.singleton(ewalletId));
+        Ewallet ewallet = loaded.isEmpty() ? null : loaded.get(0);
+        List<Ewallet> results = new ArrayList<>(deposits.size());
+        for (int i = 0; i < deposits.size(); i++) {
+            results.add(applyToLoadedEwallet(i, deposits.get(i), ewallet).isSuccess() ? ewallet : null);
+        }
+        ewalletRepository.flush();
+        return results;
+    }
+
+    private OperationResult applyToLoadedEwallet(int index, Operation operation, Ewallet ewallet) {
+        if (ewallet == null) {
+            return OperationResult.rejected(index, operation.getEwalletId(), "E-wallet not found.");
+        }
+        if (!isEwalletOwnerCorrect(operation, ewallet)) {
+            return OperationResult.rejected(index, ewallet.getId(), "Owner does not match e-wallet.");
+        }
+        if (!isOperationAmountCorrect(operation) || !operation.getAmount().fitsCurrency(ewallet.getCurrency())) {
+            return OperationResult.rejected(index, ewallet.getId(), "Wrong amount.");
+        }
+        if (!hasEwalletEnoughFunds(operation, ewallet)) {
+            return OperationResult.rejected(index, ewallet.getId(), "Not enough funds.");
+        }
+        if (operation.getType().getOperationSign() > 0) {
+            ewallet.setAmount(ewallet.getAmount().plus(operation.getAmount()));
+        } else {
+            ewallet.setAmount(ewallet.getAmount().minus(operation.getAmount()));
+        }
+        publishBalanceChanged(ewallet, operation.getType(), operation.getAmount());
+        return OperationResult.applied(index, ewallet.getId(), ewallet.getAmount());
+    }
+
     private boolean hasEwalletEnoughFunds(Operation operation, Ewallet ewallet) {
 
         if (operation.getType().getOperationSign() < 0) {
-            return ewallet.getAmount().compareTo(operation.getAmount()) >= 0;
+            return ewallet.getAmount().getMinorUnits() >= operation.getAmount().getMinorUnits();
         }
         return true;
     }
 
-    private Ewallet updateEwallet(Operation operation) {
-        Ewallet ewallet = ewalletRepository.findById(operation.getEwalletId()).orElse(null);
+    private Ewallet updateEwallet(Ewallet ewallet, Operation operation) {
         if (operation.getType().getOperationSign() > 0) {
-            ewallet.setAmount(ewallet.getAmount().add(operation.getAmount()));
+            ewallet.setAmount(ewallet.getAmount().plus(operation.getAmount()));
         }
         if (operation.getType().getOperationSign() < 0) {
-            ewallet.setAmount(ewallet.getAmount().subtract(operation.getAmount()));
+            ewallet.setAmount(ewallet.getAmount().minus(operation.getAmount()));
         }
-        return ewalletRepository.saveAndFlush(ewallet);
+        ewallet = ewalletRepository.saveAndFlush(ewallet);
+        publishBalanceChanged(ewallet, operation.getType(), operation.getAmount());
+        return ewallet;
     }
 
     public boolean processEwalletTransfer(Operation[] operations) {
-        if (operations == null
-                || operations.length != 2
-                || operations[0] == null
-                || operations[1] == null) {
+        Map<Long, Long> changes = getTransferChanges(operations);
+        if (changes == null) {
             return false;
         }
-        if (isOperationPossible(operations[0])
-                && isOperationPossible(operations[1])
-                && isTransferPossible(operations)) {
-            updateEwallet(operations[0]);
-            updateEwallet(operations[1]);
-            return true;
+
+        // one query locks every e-wallet of the transfer in id order
+        Map<Long, Ewallet> ewallets = new HashMap<>();
+        for (Ewallet ewallet : ewalletRepository.findByIdInOrderByIdAsc(changes.keySet())) {
+            ewallets.put(ewallet.getId(), ewallet);
         }
-        return false;
+        // one snapshot for the whole transfer, so all received legs are converted with the same rate set
+        FxRateSnapshot rates = fxRateService.getSnapshot();
+        List<FxConversion> conversions = new ArrayList<>();
+        Map<Long, Money> amounts = getEwalletChanges(operations, ewallets, changes, rates, conversions);
+        if (amounts == null) {
+            return false;
+        }
+        for (Map.Entry<Long, Money> change : amounts.entrySet()) {
+            Ewallet ewallet = ewallets.get(change.getKey());
+            Money amount = change.getValue();
+            ewallet.setAmount(ewallet.getAmount().plus(amount));
+            publishBalanceChanged(ewallet, amount.isNegative() ? OperationType.WITHDRAW : OperationType.DEPOSIT, amount.abs());
+        }
+        ewalletRepository.flush();
+        if (!conversions.isEmpty()) {
+            fxRateService.recordConversions(conversions);
+        }
+        return true;
     }
 
-    private boolean isTransferPossible(Operation[] operations) {
-        // check if it is not the same wallet
-        boolean result = !operations[0].getEwalletId().equals(operations[1].getEwalletId());
-        if (result) {
-            // check if currencies are equal
-            String currency = getCurrencyOfOperation(operations[0]);
-            if (currency == null) {
+    /**
+     * Applies the legs of a transfer across shards that are on the current shard, with amounts already
+     * in the currencies of the e-wallets. Returns false and changes nothing if an e-wallet is gone
+     * or would go below zero.
+     */
+    public boolean applyTransferLegs(List<TransferLeg> legs) {
+        Map<Long, Money> changes = new LinkedHashMap<>();
+        for (TransferLeg leg : legs) {
+            changes.merge(leg.getEwalletId(), leg.getAmount(), Money::plus);
+        }
+        Map<Long, Ewallet> ewallets = new HashMap<>();
+        for (Ewallet ewallet : ewalletRepository.findByIdInOrderByIdAsc(changes.keySet())) {
+            ewallets.put(ewallet.getId(), ewallet);
+        }
+        for (Map.Entry<Long, Money> change : changes.entrySet()) {
+            Ewallet ewallet = ewallets.get(change.getKey());
+            if (ewallet == null || ewallet.getAmount().getMinorUnits() + change.getValue().getMinorUnits() < 0) {
                 return false;
             }
-            return currency.equals(getCurrencyOfOperation(operations[1]));
         }
-        return result;
+        for (Map.Entry<Long, Money> change : changes.entrySet()) {
+            Ewallet ewallet = ewallets.get(change.getKey());
+            Money amount = change.getValue();
+            ewallet.setAmount(ewallet.getAmount().plus(amount));
+            publishBalanceChanged(ewallet, amount.isNegative() ? OperationType.WITHDRAW : OperationType.DEPOSIT, amount.abs());
+        }
+        ewalletRepository.flush();
+        return true;
     }
 
-    private boolean isEwalletOwnerCorrect(Operation operation, Ewallet ewallet) {
+    /**
+     * Applies the rule of a bulk-posting job to the next limit e-wallets of the rule currency with afterId < id <= toId,
+     * in id order. An e-wallet whose posted amount would be zero or drive its balance below zero is left as it is.
+     */
+    public PostingChunk applyPosting(PostingRule rule, long afterId, long toId, int limit) {
+        List<Ewallet> ewallets = ewalletRepository.findPostingChunk(afterId, toId, rule.getCurrency(), PageRequest.of(0, limit));
+        int posted = 0;
+        for (Ewallet ewallet : ewallets) {
+            // an e-wallet without amount has a balance of zero
+            Money balance = ewallet.getAmount() == null ? Money.ZERO : ewallet.getAmount();
+            Money amount = getPostingAmount(rule, ewallet.getCurrency(), balance);
+            if (amount == null) {
+                continue;
+            }
+            if (rule.getType().getOperationSign() > 0) {
+                ewallet.setAmount(balance.plus(amount));
+            } else {
+                ewallet.setAmount(balance.minus(amount));
+            }
+            publishBalanceChanged(ewallet, rule.getType(), amount);
+            posted++;
+        }
+        ewalletRepository.flush();
+        long lastId = ewallets.isEmpty() ? afterId : ewallets.get(ewallets.size() - 1).getId();
+        return new PostingChunk(lastId, ewallets.size(), posted);
+    }
+
+    // amount the rule posts to an e-wallet of the currency and balance, null if there is nothing to post
+    static Money getPostingAmount(PostingRule rule, String currency, Money balance) {
+        Money amount = rule.getAmount();
+        if (rule.getPercent() != null) {
+            amount = currency == null ? null : balance.convert(rule.getPercent().movePointLeft(2), currency);
+        }
+        if (amount == null || !amount.isPositive() || !amount.fitsCurrency(currency)) {
+            return null;
+        }
+        if (rule.getType().getOperationSign() < 0 && balance.getMinorUnits() < amount.getMinorUnits()) {
+            return null;
+        }
+        return amount;
+    }
+
+    // net change of every e-wallet in minor units, or null if the legs do not form a valid transfer
+    static Map<Long, Long> getTransferChanges(Operation[] operations) {
+        if (operations == null || operations.length < 2) {
+            return null;
+        }
+        for (Operation operation : operations) {
+            if (operation == null
+                    || operation.getEwalletId() == null
+                    || operation.getType() == null
+                    || !isOperationAmountCorrect(operation)) {
+                return null;
+            }
+        }
+        Map<Long, Long> changes = new LinkedHashMap<>();
+        Map<Long, Integer> signs = new HashMap<>();
+        long withdrawn = 0;
+        long deposited = 0;
+        for (Operation operation : operations) {
+            int sign = operation.getType().getOperationSign();
+            // an e-wallet can not pay and receive in the same transfer
+            Integer knownSign = signs.putIfAbsent(operation.getEwalletId(), sign);
+            if (knownSign != null && knownSign != sign) {
+                return null;
+            }
+            long amount = operation.getAmount().getMinorUnits();
+            if (sign < 0) {
+                withdrawn = Math.addExact(withdrawn, amount);
+                changes.merge(operation.getEwalletId(), -amount, Math::addExact);
+            } else {
+                deposited = Math.addExact(deposited, amount);
+                changes.merge(operation.getEwalletId(), amount, Math::addExact);
+            }
+        }
+        if (!signs.containsValue(-1) || !signs.containsValue(1) || withdrawn != deposited) {
+            return null;
+        }
+        return changes;
+    }
+
+    // change of every e-wallet in its own currency, or null if the transfer is not possible.
+    // Leg amounts are in the currency of the paying e-wallets, a received amount in another currency is converted
+    static Map<Long, Money> getEwalletChanges(Operation[] operations, Map<Long, Ewallet> ewallets, Map<Long, Long> changes,
+                                              FxRateSnapshot rates, List<FxConversion> conversions) {
+        if (ewallets.size() != changes.size()) {
+            return null;
+        }
+        String currency = null;
+        for (Operation operation : operations) {
+            Ewallet ewallet = ewallets.get(operation.getEwalletId());
+            if (!isEwalletOwnerCorrect(operation, ewallet)) {
+                return null;
+            }
+            // check if currencies of paying e-wallets are equal
+            if (operation.getType().getOperationSign() < 0) {
+                if (currency == null) {
+                    currency = ewallet.getCurrency();
+                }
+                if (currency == null || !currency.equals(ewallet.getCurrency())) {
+                    return null;
+                }
+            }
+        }
+        for (Operation operation : operations) {
+            if (!operation.getAmount().fitsCurrency(currency)) {
+                return null;
+            }
+        }
+        Map<Long, Money> amounts = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> change : changes.entrySet()) {
+            Ewallet ewallet = ewallets.get(change.getKey());
+            Money amount = Money.ofMinorUnits(change.getValue());
+            if (amount.isPositive() && !currency.equals(ewallet.getCurrency())) {
+                Money converted = convert(amount, currency, ewallet.getCurrency(), rates);
+                if (converted == null) {
+                    return null;
+                }
+                conversions.add(new FxConversion(ewallet.getId(), currency, ewallet.getCurrency(), amount, converted,
+                        rates.getRate(currency, ewallet.getCurrency()), rates.getVersion()));
+                amount = converted;
+            }
+            if (ewallet.getAmount().getMinorUnits() + amount.getMinorUnits() < 0) {
+                return null;
+            }
+            amounts.put(change.getKey(), amount);
+        }
+        return amounts;
+    }
+
+    // null if there is no rate or the converted amount is zero or too big
+    private static Money convert(Money amount, String fromCurrency, String toCurrency, FxRateSnapshot rates) {
+        BigDecimal rate = toCurrency == null ? null : rates.getRate(fromCurrency, toCurrency);
+        if (rate == null) {
+            return null;
+        }
+        try {
+            Money converted = amount.convert(rate, toCurrency);
+            return converted.isPositive() ? converted : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isEwalletOwnerCorrect(Operation operation, Ewallet ewallet) {
         if (operation == null || operation.getOwnerId() == null || ewallet == null) {
             return false;
         }
@@ -83,38 +407,26 @@ public class EwalletService {
         return operation.getOwnerId().equals(ewallet.getOwner());
     }
 
-    private boolean isOperationAmountCorrect(Operation operation) {
+    private static boolean isOperationAmountCorrect(Operation operation) {
         if (operation == null
                 || operation.getAmount() == null
-                || operation.getAmount().compareTo(BigDecimal.ZERO) < 0) {
+                || operation.getAmount().isNegative()) {
             return false;
         }
         return true;
     }
 
-    private boolean isOperationPossible(Operation operation) {
-        if (operation == null || operation.getEwalletId() == null) {
-            return false;
-        }
-        Ewallet ewallet = ewalletRepository.findById(operation.getEwalletId()).orElse(null);
-
+    private boolean isOperationPossible(Operation operation, Ewallet ewallet) {
         if (ewallet == null
                 || !isEwalletOwnerCorrect(operation, ewallet)
                 || !isOperationAmountCorrect(operation)
+                || !operation.getAmount().fitsCurrency(ewallet.getCurrency())
                 || !hasEwalletEnoughFunds(operation, ewallet)) {
             return false;
         }
         return true;
     }
 
-    private String getCurrencyOfOperation(Operation operation) {
-        Ewallet ewallet = ewalletRepository.findById(operation.getEwalletId()).orElse(null);
-        if (ewallet == null) {
-            return null;
-        }
-        return ewallet.getCurrency();
-    }
-
     public Ewallet addEwallet(Ewallet ewallet) {
         if (ewallet == null
                 || ewallet.getId() != null
@@ -124,28 +436,27 @@ public class EwalletService {
             return null;
         }
         // set amount to zero for a new wallet
-        ewallet.setAmount(BigDecimal.ZERO);
+        ewallet.setAmount(Money.ZERO);
         try {
             ewallet = ewalletRepository.saveAndFlush(ewallet);
         } catch (Exception ex) {
-            ewallet = null;
+            return null;
         }
+        eventPublisher.publishEvent(new EwalletCreatedEvent(ewallet.getId(), ewallet.getOwner(), ewallet.getCurrency()));
         return ewallet;
     }
 
     public boolean deleteEwallet(Long ewalletId) {
-        if (canEwalletBeDeleted(ewalletId)) {
-            ewalletRepository.deleteById(ewalletId);
+        Ewallet ewallet = ewalletId == null ? null : ewalletRepository.findById(ewalletId).orElse(null);
+        if (canEwalletBeDeleted(ewallet)) {
+            ewalletRepository.delete(ewallet);
+            eventPublisher.publishEvent(new EwalletDeletedEvent(ewallet.getId(), ewallet.getOwner(), ewallet.getCurrency()));
             return true;
         }
         return false;
     }
 
-    private boolean canEwalletBeDeleted(Long ewalletId) {
-        if (ewalletId == null) {
-            return false;
-        }
-        Ewallet ewallet = ewalletRepository.findById(ewalletId).orElse(null);
-        return ewallet != null && ewallet.getAmount().compareTo(BigDecimal.ZERO) == 0;
+    private boolean canEwalletBeDeleted(Ewallet ewallet) {
+        return ewallet != null && ewallet.getAmount().isZero();
     }
 }
@@ -0,0 +1,134 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.FxConversion;
+import kn.testtask.ewallet.domain.FxRate;
+import kn.testtask.ewallet.domain.FxRateSnapshot;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FX rates for cross-currency transfers. The latest rate set of Fx_rate is held as an immutable snapshot
+ * that is replaced as a whole on refresh, so transfers read rates without touching the database.
+ */
+@Slf4j
+@Service
+public class FxRateService {
+
+    private static final String FIND_LATEST_VERSION = "SELECT COALESCE(MAX(version), 0) FROM Fx_rate";
+
+    private static final String FIND_RATES =
+            "SELECT base_currency, quote_currency, rate FROM Fx_rate WHERE version = ? ORDER BY base_currency, quote_currency";
+
+    private static final String INSERT_RATE =
+            "INSERT INTO Fx_rate (version, base_currency, quote_currency, rate, create_date_time) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String INSERT_CONVERSION =
+            "INSERT INTO Fx_conversion (ewallet_id, from_currency, to_currency, amount, converted_amount, rate, rate_version," +
+            " create_date_time) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final AtomicReference<FxRateSnapshot> snapshot = new AtomicReference<>(FxRateSnapshot.EMPTY);
+
+    public FxRateService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    public FxRateSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Loads the latest rate set if its version is newer than the snapshot, also picking up sets written by other instances.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${ewallet.fx.refresh-interval-ms:60000}",
+            fixedDelayString = "${ewallet.fx.refresh-interval-ms:60000}")
+    public void refresh() {
+        loadLatest();
+    }
+
+    private FxRateSnapshot loadLatest() {
+        Long version = jdbcTemplate.queryForObject(FIND_LATEST_VERSION, Long.class);
+        FxRateSnapshot current = snapshot.get();
+        if (version == null || version <= current.getVersion()) {
+            return current;
+        }
+        List<FxRate> rates = jdbcTemplate.query(FIND_RATES,
+                (rs, rowNum) -> new FxRate(rs.getString(1), rs.getString(2), rs.getBigDecimal(3)), version);
+        FxRateSnapshot loaded = new FxRateSnapshot(version, LocalDateTime.now(), rates);
+        // a concurrent refresh may have loaded a newer version already
+        FxRateSnapshot result = snapshot.accumulateAndGet(loaded,
+                (previous, next) -> next.getVersion() > previous.getVersion() ? next : previous);
+        if (result == loaded) {
+            log.info("FX rates version {} loaded, {} rates", version, rates.size());
+        }
+        return result;
+    }
+
+    /**
+     * Stores the rates as the next rate set and makes it the snapshot.
+     * Returns null if a rate is not positive, a currency pair is repeated or has equal currencies.
+     */
+    public FxRateSnapshot updateRates(List<FxRate> rates) {
+        if (rates == null || !areRatesCorrect(rates)) {
+            return null;
+        }
+        transactionTemplate.execute(status -> {
+            // the version is taken inside the transaction, a concurrent update with the same version fails on the key
+            long version = jdbcTemplate.queryForObject(FIND_LATEST_VERSION, Long.class) + 1;
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            List<Object[]> rows = new ArrayList<>(rates.size());
+            for (FxRate rate : rates) {
+                rows.add(new Object[] {version, rate.getBaseCurrency(), rate.getQuoteCurrency(), rate.getRate(), now});
+            }
+            jdbcTemplate.batchUpdate(INSERT_RATE, rows);
+            return null;
+        });
+        return loadLatest();
+    }
+
+    private boolean areRatesCorrect(List<FxRate> rates) {
+        Set<String> pairs = new HashSet<>();
+        for (FxRate rate : rates) {
+            if (rate == null
+                    || rate.getBaseCurrency() == null || rate.getBaseCurrency().length() != 3
+                    || rate.getQuoteCurrency() == null || rate.getQuoteCurrency().length() != 3
+                    || rate.getBaseCurrency().equals(rate.getQuoteCurrency())
+                    || rate.getRate() == null || rate.getRate().signum() <= 0
+                    || !pairs.add(rate.getBaseCurrency() + rate.getQuoteCurrency())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // written in the transaction of the transfer
+    public void recordConversions(List<FxConversion> conversions) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> rows = new ArrayList<>(conversions.size());
+        for (FxConversion conversion : conversions) {
+            rows.add(new Object[] {conversion.getEwalletId(), conversion.getFromCurrency(), conversion.getToCurrency(),
+                    conversion.getAmount().toBigDecimal(), conversion.getConvertedAmount().toBigDecimal(),
+                    conversion.getRate(), conversion.getRateVersion(), now});
+        }
+        jdbcTemplate.batchUpdate(INSERT_CONVERSION, rows);
+    }
+}
@@ -0,0 +1,93 @@
+package kn.testtask.ewallet.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Local stand-in for database replication: copies the replicated tables of an in-memory H2 primary
+ * into an in-memory H2 replica every sync-interval-ms, each copy in one replica transaction, so replica
+ * readers see the previous or the next copy. The replica reads the primary through H2 linked tables.
+ * Tables are copied one after another, so a copy is not a consistent snapshot across tables.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("${ewallet.datasource.replica.enabled:false} and ${ewallet.shard.count:1} == 1 " +
+        "and ${ewallet.datasource.replica.sync-interval-ms:0} > 0")
+public class H2ReplicaSynchronizer {
+
+    private final DataSourceProperties primaryProperties;
+
+    private final JdbcTemplate replicaJdbcTemplate;
+
+    private final TransactionTemplate replicaTransaction;
+
+    private final List<String> tables;
+
+    private volatile boolean linked;
+
+    public H2ReplicaSynchronizer(DataSourceProperties primaryProperties,
+                                 @Value("${ewallet.datasource.replica.url}") String url,
+                                 @Value("${ewallet.datasource.replica.username:${spring.datasource.username:}}") String username,
+                                 @Value("${ewallet.datasource.replica.password:${spring.datasource.password:}}") String password,
+                                 @Value("${ewallet.datasource.replica.sync-tables}") List<String> tables) {
+        this.primaryProperties = primaryProperties;
+        // writes to the replica bypass the read-only replica pool
+        DriverManagerDataSource replica = new DriverManagerDataSource(url, username, password);
+        this.replicaJdbcTemplate = new JdbcTemplate(replica);
+        this.replicaTransaction = new TransactionTemplate(new DataSourceTransactionManager(replica));
+        this.tables = tables;
+    }
+
+    // the primary has its schema and data only when the application is ready
+    @EventListener(ApplicationReadyEvent.class)
+    public void link() {
+        // the in-memory replica outlives an application context that is closed in the same JVM
+        replicaJdbcTemplate.execute("DROP ALL OBJECTS");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(replicaJdbcTemplate.getDataSource());
+        // a copied e-wallet may arrive before its owner
+        replicaJdbcTemplate.execute("SET REFERENTIAL_INTEGRITY FALSE");
+        for (String table : tables) {
+            replicaJdbcTemplate.execute("CREATE LINKED TABLE " + linkOf(table) + "('" + primaryProperties.determineDriverClassName()
+                    + "', '" + primaryProperties.determineUrl() + "', '" + primaryProperties.determineUsername() + "', '"
+                    + primaryProperties.determinePassword() + "', '" + table.toUpperCase() + "') READONLY");
+        }
+        linked = true;
+        synchronize();
+    }
+
+    @Scheduled(initialDelayString = "${ewallet.datasource.replica.sync-interval-ms:0}",
+            fixedDelayString = "${ewallet.datasource.replica.sync-interval-ms:0}")
+    public void synchronize() {
+        if (!linked) {
+            return;
+        }
+        try {
+            replicaTransaction.executeWithoutResult(status -> {
+                for (String table : tables) {
+                    replicaJdbcTemplate.update("DELETE FROM " + table);
+                    replicaJdbcTemplate.update("INSERT INTO " + table + " SELECT * FROM " + linkOf(table));
+                }
+            });
+        } catch (Exception ex) {
+            log.error("Could not copy the primary to the replica", ex);
+        }
+    }
+
+    private static String linkOf(String table) {
+        return "primary_" + table;
+    }
+}
@@ -0,0 +1,241 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Dedupe store for requests sent with an Idempotency-Key header.
+ * The first request claims the key with an insert and stores its response; a replay of the key gets
+ * the stored response from the front cache or the table and never reaches EwalletService.
+ * A key is IN_PROGRESS for at most leaseMillis: a request whose response was not stored by then (the process died,
+ * or the update failed) has an unknown outcome, and its retries are told so instead of waiting for the key to expire.
+ */
+@Slf4j
+@Service
+public class IdempotencyService {
+
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int MAX_KEY_LENGTH = 128;
+
+    private static final String CLAIM_KEY =
+            "INSERT INTO Idempotency_key (idempotency_key, fingerprint, status, create_date_time, lease_date_time, " +
+            "expire_date_time) VALUES (?, ?, 'IN_PROGRESS', ?, ?, ?)";
+
+    private static final String COMPLETE_KEY =
+            "UPDATE Idempotency_key SET status = 'COMPLETED', response_status = ?, response_body = ? " +
+            "WHERE idempotency_key = ?";
+
+    private static final String RELEASE_KEY = "DELETE FROM Idempotency_key WHERE idempotency_key = ? AND status = 'IN_PROGRESS'";
+
+    private static final String FIND_KEY =
+            "SELECT fingerprint, status, response_status, response_body, lease_date_time FROM Idempotency_key " +
+            "WHERE idempotency_key = ?";
+
+    private static final String SWEEP_KEYS = "DELETE FROM Idempotency_key WHERE expire_date_time < ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final long ttlMillis;
+
+    private final long leaseMillis;
+
+    private final Cache<String, StoredResponse> responses;
+
+    public IdempotencyService(JdbcTemplate jdbcTemplate,
+                              ObjectMapper objectMapper,
+                              @Value("${ewallet.idempotency.ttl-ms:86400000}") long ttlMillis,
+                              @Value("${ewallet.idempotency.lease-ms:30000}") long leaseMillis,
+                              @Value("${ewallet.idempotency.cache-size:10000}") long cacheSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        // amounts are replayed with their scale, 105.00 stays 105.00
+        this.objectMapper = objectMapper.copy()
+                .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true))
+                .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+        this.ttlMillis = ttlMillis;
+        this.leaseMillis = leaseMillis;
+        this.responses = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Runs action once per key. scope and request make the fingerprint of the call,
+     * the same key sent with another fingerprint is rejected with 422.
+     * A key whose first request is still running gets 409 with Retry-After, so the client retries later;
+     * once the lease of the first request is over without a stored response, 409 with outcome UNKNOWN.
+     * If action throws, the key is released and the next retry runs it again.
+     */
+    public ResponseEntity<Object> execute(String key, String scope, Object request, Supplier<ResponseEntity<?>> action) {
+        if (key == null || key.isEmpty()) {
+            return unchecked(action.get());
+        }
+        if (key.length() > MAX_KEY_LENGTH) {
+            return message(HttpStatus.BAD_REQUEST, "Idempotency-Key must not be longer than " + MAX_KEY_LENGTH + " characters.");
+        }
+        String fingerprint = fingerprint(scope, request);
+
+        StoredResponse stored = responses.getIfPresent(key);
+        if (stored == null) {
+            long now = System.currentTimeMillis();
+            try {
+                jdbcTemplate.update(CLAIM_KEY, key, fingerprint, new Timestamp(now), new Timestamp(now + leaseMillis),
+                        new Timestamp(now + ttlMillis));
+            } catch (DuplicateKeyException ex) {
+                return replay(key, fingerprint);
+            }
+            return runClaimed(key, fingerprint, action);
+        }
+        return replay(stored, fingerprint);
+    }
+
+    private ResponseEntity<Object> runClaimed(String key, String fingerprint, Supplier<ResponseEntity<?>> action) {
+        ResponseEntity<?> response;
+        try {
+            response = action.get();
+        } catch (RuntimeException ex) {
+            jdbcTemplate.update(RELEASE_KEY, key);
+            throw ex;
+        }
+        if (response.getStatusCode().is5xxServerError()) {
+            // nothing was applied (queue full, ...), the retry must run again
+            jdbcTemplate.update(RELEASE_KEY, key);
+            return unchecked(response);
+        }
+        JsonNode body = objectMapper.valueToTree(response.getBody());
+        try {
+            jdbcTemplate.update(COMPLETE_KEY, response.getStatusCodeValue(), objectMapper.writeValueAsString(body), key);
+            responses.put(key, new StoredResponse(fingerprint, response.getStatusCodeValue(), body, 0));
+        } catch (JsonProcessingException | RuntimeException ex) {
+            // the operation is applied already, so its response is returned anyway;
+            // the key stays IN_PROGRESS, retries get 409 instead of a second apply, with outcome UNKNOWN after the lease
+            log.error("Could not store response of idempotency key {}", key, ex);
+        }
+        return unchecked(response);
+    }
+
+    private ResponseEntity<Object> replay(String key, String fingerprint) {
+        List<StoredResponse> rows = jdbcTemplate.query(FIND_KEY, (rs, rowNum) -> "COMPLETED".equals(rs.getString(2))
+                ? new StoredResponse(rs.getString(1), rs.getInt(3), readBody(rs.getString(4)), 0)
+                : new StoredResponse(rs.getString(1), 0, null, rs.getTimestamp(5).getTime()), key);
+        if (rows.isEmpty()) {
+            // swept or released between the claim attempt and this read
+            return message(HttpStatus.CONFLICT, "Request with this Idempotency-Key is being processed. Retry later.");
+        }
+        StoredResponse stored = rows.get(0);
+        if (stored.getStatus() != 0) {
+            responses.put(key, stored);
+        }
+        return replay(stored, fingerprint);
+    }
+
+    private ResponseEntity<Object> replay(StoredResponse stored, String fingerprint) {
+        if (!stored.getFingerprint().equals(fingerprint)) {
+            return message(HttpStatus.UNPROCESSABLE_ENTITY, "Idempotency-Key was already used for another request.");
+        }
+        if (stored.getStatus() == 0) {
+            long leftMillis = stored.getLeaseEndMillis() - System.currentTimeMillis();
+            if (leftMillis <= 0) {
+                Map<String, String> responseBody = new HashMap<>();
+                responseBody.put("message", "Outcome of the request with this Idempotency-Key is unknown, it may have been" +
+                        " applied. Check the e-wallets before sending it again with a new key.");
+                responseBody.put("outcome", "UNKNOWN");
+                return new ResponseEntity<Object>(responseBody, HttpStatus.CONFLICT);
+            }
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(leftMillis + 999))))
+                    .body(messageBody("Request with this Idempotency-Key is being processed. Retry later."));
+        }
+        return ResponseEntity.status(stored.getStatus())
+                .header(REPLAYED_HEADER, "true")
+                .body(stored.getBody().isNull() ? null : stored.getBody());
+    }
+
+    @Scheduled(initialDelayString = "${ewallet.idempotency.sweep-interval-ms:60000}",
+            fixedDelayString = "${ewallet.idempotency.sweep-interval-ms:60000}")
+    public void sweepExpiredKeys() {
+        int swept = jdbcTemplate.update(SWEEP_KEYS, new Timestamp(System.currentTimeMillis()));
+        log.debug("Swept {} expired idempotency keys", swept);
+    }
+
+    public CacheStats getCacheStats() {
+        return responses.stats();
+    }
+
+    public long getCacheSize() {
+        return responses.estimatedSize();
+    }
+
+    private String fingerprint(String scope, Object request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(scope.getBytes(StandardCharsets.UTF_8));
+            digest.update(objectMapper.writeValueAsBytes(request));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException | JsonProcessingException ex) {
+            throw new IllegalStateException("Could not fingerprint request", ex);
+        }
+    }
+
+    private JsonNode readBody(String body) {
+        try {
+            return objectMapper.readTree(body);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Could not read stored response", ex);
+        }
+    }
+
+    private static ResponseEntity<Object> message(HttpStatus status, String message) {
+        return new ResponseEntity<Object>(messageBody(message), status);
+    }
+
+    private static Map<String, String> messageBody(String message) {
+        Map<String, String> responseBody = new HashMap<>();
+        responseBody.put("message", message);
+        return responseBody;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ResponseEntity<Object> unchecked(ResponseEntity<?> response) {
+        return (ResponseEntity<Object>) response;
+    }
+
+    // status 0 means the first request has not finished yet, it has the key until leaseEndMillis
+    @lombok.Value
+    private static class StoredResponse {
+        String fingerprint;
+        int status;
+        JsonNode body;
+        long leaseEndMillis;
+    }
+}
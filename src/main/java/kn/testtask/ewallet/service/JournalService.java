@@ -0,0 +1,142 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceMismatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Rebuilds balances as the latest snapshot plus the journal entries written after it.
+ * Snapshot refresh and verification are split into e-wallet id ranges that run in parallel.
+ */
+@Slf4j
+@Service
+public class JournalService {
+
+    private static final String SIGNED_AMOUNT = "CASE WHEN j.type = 'WITHDRAW' THEN -j.amount ELSE j.amount END";
+
+    private static final String REBUILD_BALANCE =
+            "SELECT COALESCE(MAX(s.amount), 0) + COALESCE(SUM(" + SIGNED_AMOUNT + "), 0) " +
+            "FROM (SELECT CAST(? AS BIGINT) AS ewallet_id) w " +
+            "LEFT JOIN Balance_snapshot s ON s.ewallet_id = w.ewallet_id " +
+            "LEFT JOIN Operation_journal j ON j.ewallet_id = w.ewallet_id AND j.id > COALESCE(s.journal_id, 0)";
+
+    private static final String REFRESH_SNAPSHOTS =
+            "MERGE INTO Balance_snapshot (ewallet_id, journal_id, amount, create_date_time) KEY (ewallet_id) " +
+            "SELECT j.ewallet_id, MAX(j.id), COALESCE(MAX(s.amount), 0) + SUM(" + SIGNED_AMOUNT + "), CURRENT_TIMESTAMP() " +
+            "FROM Operation_journal j LEFT JOIN Balance_snapshot s ON s.ewallet_id = j.ewallet_id " +
+            "WHERE j.ewallet_id BETWEEN ? AND ? AND j.id > COALESCE(s.journal_id, 0) " +
+            "GROUP BY j.ewallet_id";
+
+    // an e-wallet without amount has a balance of zero
+    private static final String FIND_MISMATCHES =
+            "SELECT e.id, COALESCE(e.amount, 0), COALESCE(MAX(s.amount), 0) + COALESCE(SUM(" + SIGNED_AMOUNT + "), 0) AS rebuilt " +
+            "FROM Ewallet e LEFT JOIN Balance_snapshot s ON s.ewallet_id = e.id " +
+            "LEFT JOIN Operation_journal j ON j.ewallet_id = e.id AND j.id > COALESCE(s.journal_id, 0) " +
+            "WHERE e.id BETWEEN ? AND ? " +
+            "GROUP BY e.id, e.amount " +
+            "HAVING COALESCE(e.amount, 0) <> COALESCE(MAX(s.amount), 0) + COALESCE(SUM(" + SIGNED_AMOUNT + "), 0)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final OperationJournalWriter journalWriter;
+
+    private final ShardRouter shardRouter;
+
+    private final long rangeSize;
+
+    private final ExecutorService executor;
+
+    public JournalService(JdbcTemplate jdbcTemplate,
+                          OperationJournalWriter journalWriter,
+                          ShardRouter shardRouter,
+                          @Value("${ewallet.journal.range-size:10000}") long rangeSize,
+                          @Value("${ewallet.journal.parallelism:4}") int parallelism) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.journalWriter = journalWriter;
+        this.shardRouter = shardRouter;
+        this.rangeSize = rangeSize;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "journal-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public BigDecimal rebuildBalance(Long ewalletId) {
+        journalWriter.flush();
+        return shardRouter.onShardOf(ewalletId, () -> jdbcTemplate.queryForObject(REBUILD_BALANCE, BigDecimal.class, ewalletId));
+    }
+
+    @Scheduled(initialDelayString = "${ewallet.journal.snapshot-interval-ms:60000}",
+            fixedDelayString = "${ewallet.journal.snapshot-interval-ms:60000}")
+    public void refreshSnapshots() {
+        journalWriter.flush();
+        List<Integer> updated = forEachRange("SELECT MIN(ewallet_id), MAX(ewallet_id) FROM Operation_journal",
+                (fromId, toId) -> jdbcTemplate.update(REFRESH_SNAPSHOTS, fromId, toId));
+        log.debug("Balance snapshots refreshed in {} ranges", updated.size());
+    }
+
+    public List<BalanceMismatch> verifyBalances() {
+        journalWriter.flush();
+        List<List<BalanceMismatch>> rangeMismatches = forEachRange("SELECT MIN(id), MAX(id) FROM Ewallet",
+                (fromId, toId) -> jdbcTemplate.query(FIND_MISMATCHES,
+                        (rs, rowNum) -> new BalanceMismatch(rs.getLong(1), rs.getBigDecimal(2), rs.getBigDecimal(3)),
+                        fromId, toId));
+        List<BalanceMismatch> mismatches = new ArrayList<>();
+        rangeMismatches.forEach(mismatches::addAll);
+        return mismatches;
+    }
+
+    // splits [min, max] of the bounds query of every shard into ranges of rangeSize ids and runs task on them in parallel
+    private <T> List<T> forEachRange(String boundsQuery, BiFunction<Long, Long, T> task) {
+        List<Callable<T>> ranges = new ArrayList<>();
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int rangeShard = shard;
+            long[] bounds = shardRouter.onShard(shard, () -> jdbcTemplate.queryForObject(boundsQuery,
+                    (rs, rowNum) -> rs.getObject(1) == null ? null : new long[] {rs.getLong(1), rs.getLong(2)}));
+            if (bounds == null) {
+                continue;
+            }
+            long minId = bounds[0];
+            long maxId = bounds[1];
+            for (long fromId = minId; fromId <= maxId; fromId += rangeSize) {
+                long rangeFrom = fromId;
+                long rangeTo = Math.min(maxId, fromId + rangeSize - 1);
+                ranges.add(() -> shardRouter.onShard(rangeShard, () -> task.apply(rangeFrom, rangeTo)));
+            }
+        }
+        List<T> results = new ArrayList<>(ranges.size());
+        try {
+            for (Future<T> future : executor.invokeAll(ranges)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing e-wallet ranges", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Could not process e-wallet range", ex.getCause());
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
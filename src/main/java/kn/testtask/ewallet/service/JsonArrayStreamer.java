@@ -0,0 +1,74 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Writes the rows of a repository stream as one JSON array without collecting them first.
+ * The persistence context is cleared every clearInterval rows, so memory use does not grow with the table.
+ */
+@Component
+public class JsonArrayStreamer {
+
+    private final ObjectMapper objectMapper;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final int clearInterval;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    public JsonArrayStreamer(ObjectMapper objectMapper,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${ewallet.streaming.clear-interval:500}") int clearInterval) {
+        this.objectMapper = objectMapper;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.clearInterval = clearInterval;
+    }
+
+    public <T> void write(Supplier<Stream<T>> rows, OutputStream outputStream) {
+        readOnlyTransaction.executeWithoutResult(status -> writeArray(rows, outputStream, true));
+    }
+
+    // for streams which read in transactions of their own, such as the merged streams of the shards
+    public <T> void writeWithoutTransaction(Supplier<Stream<T>> rows, OutputStream outputStream) {
+        writeArray(rows, outputStream, false);
+    }
+
+    private <T> void writeArray(Supplier<Stream<T>> rows, OutputStream outputStream, boolean clear) {
+        try (Stream<T> stream = rows.get();
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            int written = 0;
+            Iterator<T> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                generator.writeObject(iterator.next());
+                if (++written % clearInterval == 0) {
+                    generator.flush();
+                    if (clear) {
+                        entityManager.clear();
+                    }
+                }
+            }
+            generator.writeEndArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind appender of the operation journal.
+ * Committed balance changes are queued and inserted with batched JDBC statements by one writer thread.
+ */
+@Slf4j
+@Component
+public class OperationJournalWriter {
+
+    private static final String INSERT_ENTRY =
+            "INSERT INTO Operation_journal (ewallet_id, currency, type, amount, create_date_time) VALUES (?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ShardRouter shardRouter;
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Object[]> queue;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OperationJournalWriter(JdbcTemplate jdbcTemplate,
+                                  ShardRouter shardRouter,
+                                  @Value("${ewallet.journal.enabled:true}") boolean enabled,
+                                  @Value("${ewallet.journal.batch-size:500}") int batchSize,
+                                  @Value("${ewallet.journal.queue-capacity:100000}") int queueCapacity,
+                                  @Value("${ewallet.journal.flush-interval-ms:200}") long flushIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (enabled) {
+            writer.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TransactionalEventListener
+    public void onBalanceChanged(BalanceChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        Object[] entry = new Object[] {
+                event.getEwalletId(),
+                event.getCurrency(),
+                event.getType().name(),
+                event.getAmount().toBigDecimal(),
+                new Timestamp(System.currentTimeMillis())
+        };
+        if (!queue.offer(entry)) {
+            // queue is full: the writer is behind, so the caller pays for its own insert
+            append(entry);
+        }
+    }
+
+    /**
+     * Writes everything queued so far. Entries are appended by one thread at a time,
+     * so journal ids grow in the order the entries become visible. Every entry goes to the shard of its e-wallet.
+     */
+    public synchronized void flush() {
+        List<Object[]> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            if (shardRouter.isSharded()) {
+                Map<Integer, List<Object[]>> shardBatches = batch.stream()
+                        .collect(Collectors.groupingBy(entry -> shardRouter.shardOfId((Long) entry[0]), TreeMap::new, Collectors.toList()));
+                shardBatches.forEach((shard, shardBatch) ->
+                        shardRouter.onShard(shard, () -> jdbcTemplate.batchUpdate(INSERT_ENTRY, shardBatch)));
+            } else {
+                jdbcTemplate.batchUpdate(INSERT_ENTRY, batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private synchronized void append(Object[] entry) {
+        shardRouter.onShardOf((Long) entry[0], () -> jdbcTemplate.update(INSERT_ENTRY, entry));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            log.error("Could not write operation journal", ex);
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
+        flushQuietly();
+    }
+}
@@ -0,0 +1,93 @@
+package kn.testtask.ewallet.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import kn.testtask.ewallet.domain.Operation;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency timers of EwalletService operations and of every repository call.
+ * Runs outside the transaction advice, so operation timers include the commit.
+ */
+@Aspect
+@Component
+@Order(0)
+public class OperationMetricsAspect {
+
+    public static final String OPERATION_TIMER = "ewallet.operation";
+
+    public static final String REPOSITORY_TIMER = "ewallet.repository";
+
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public OperationMetricsAspect(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("ewallet.operation.in.flight", inFlight);
+    }
+
+    @Around("execution(* kn.testtask.ewallet.service.EwalletService.processEwalletOperation(..)) && args(operation)")
+    public Object timeOperation(ProceedingJoinPoint joinPoint, Operation operation) throws Throwable {
+        String type = operation == null || operation.getType() == null ? "NONE" : operation.getType().name();
+        return timeServiceCall(joinPoint, type);
+    }
+
+    @Around("execution(* kn.testtask.ewallet.service.EwalletService.processEwalletTransfer(..))" +
+            " || execution(* kn.testtask.ewallet.service.EwalletService.processEwalletOperations(..))" +
+            " || execution(* kn.testtask.ewallet.service.EwalletService.addEwallet(..))" +
+            " || execution(* kn.testtask.ewallet.service.EwalletService.deleteEwallet(..))")
+    public Object timeServiceCall(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timeServiceCall(joinPoint, "NONE");
+    }
+
+    @Around("execution(* org.springframework.data.repository.Repository+.*(..))" +
+            " && (target(kn.testtask.ewallet.repository.EwalletRepository)" +
+            " || target(kn.testtask.ewallet.repository.OwnerRepository))")
+    public Object timeRepositoryCall(ProceedingJoinPoint joinPoint) throws Throwable {
+        Class<?>[] repositories = AopProxyUtils.proxiedUserInterfaces(joinPoint.getTarget());
+        String repository = repositories.length == 0 ? "unknown" : repositories[0].getSimpleName();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            return joinPoint.proceed();
+        } catch (Throwable ex) {
+            outcome = "error";
+            throw ex;
+        } finally {
+            sample.stop(meterRegistry.timer(REPOSITORY_TIMER,
+                    "repository", repository,
+                    "method", joinPoint.getSignature().getName(),
+                    "outcome", outcome));
+        }
+    }
+
+    private Object timeServiceCall(ProceedingJoinPoint joinPoint, String type) throws Throwable {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        inFlight.incrementAndGet();
+        String outcome = "error";
+        try {
+            Object result = joinPoint.proceed();
+            // EwalletService reports a rejected operation as null or false
+            outcome = result == null || Boolean.FALSE.equals(result) ? "rejected" : "applied";
+            return result;
+        } finally {
+            inFlight.decrementAndGet();
+            sample.stop(meterRegistry.timer(OPERATION_TIMER,
+                    "method", joinPoint.getSignature().getName(),
+                    "type", type,
+                    "outcome", outcome));
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,8 @@
+package kn.testtask.ewallet.service;
+
+public enum OperationMode {
+    // load e-wallet, check it in java and save the new amount
+    READ_MODIFY_WRITE,
+    // single conditional UPDATE statement, checks are done by the database
+    ATOMIC_UPDATE
+}
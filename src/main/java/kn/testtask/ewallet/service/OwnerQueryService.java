@@ -0,0 +1,138 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerView;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import kn.testtask.ewallet.repository.OwnerRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads of owners together with their e-wallets as projections.
+ * E-wallets are fetched with one extra query per page instead of one lazy load per owner.
+ */
+@Service
+public class OwnerQueryService {
+
+    private final OwnerRepository ownerRepository;
+
+    private final EwalletRepository ewalletRepository;
+
+    private final JsonArrayStreamer jsonArrayStreamer;
+
+    private final ShardRouter shardRouter;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final int maxPageSize;
+
+    public OwnerQueryService(OwnerRepository ownerRepository,
+                             EwalletRepository ewalletRepository,
+                             JsonArrayStreamer jsonArrayStreamer,
+                             ShardRouter shardRouter,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${ewallet.list.max-page-size:1000}") int maxPageSize) {
+        this.ownerRepository = ownerRepository;
+        this.ewalletRepository = ewalletRepository;
+        this.jsonArrayStreamer = jsonArrayStreamer;
+        this.shardRouter = shardRouter;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.maxPageSize = maxPageSize;
+    }
+
+    // the transactions are started here, after the shard of the owner is chosen
+    public OwnerView getOwnerById(Long ownerId) {
+        return shardRouter.onShardOf(ownerId, () -> readOnlyTransaction.execute(status -> {
+            OwnerView owner = ownerRepository.findViewById(ownerId).orElse(null);
+            if (owner != null) {
+                owner.setEwallets(ewalletRepository.findViewsByOwner(ownerId));
+            }
+            return owner;
+        }));
+    }
+
+    public void writeAllOwners(OutputStream outputStream) {
+        if (shardRouter.isSharded()) {
+            jsonArrayStreamer.writeWithoutTransaction(() -> shardRouter.streamMerged(
+                    shard -> groupByOwner(ownerRepository.streamAllWithEwalletsOrderedById()),
+                    Comparator.comparing(OwnerView::getId)), outputStream);
+        } else {
+            jsonArrayStreamer.write(() -> groupByOwner(ownerRepository.streamAllWithEwalletsOrderedById()), outputStream);
+        }
+    }
+
+    public KeysetPage<OwnerView> getOwnersPage(String cursor, int limit) {
+        PageRequest pageRequest = PageRequest.of(0, Math.max(1, Math.min(limit, maxPageSize)));
+        // cursor is the id of the last owner of the previous page
+        Long afterId = cursor == null || cursor.isEmpty() ? Long.MIN_VALUE : Long.valueOf(cursor);
+        List<List<OwnerView>> shardPages = shardRouter.onEveryShard(shard -> readOnlyTransaction.execute(status -> {
+            List<OwnerView> shardOwners = ownerRepository.findViewPageAfter(afterId, pageRequest);
+            if (!shardOwners.isEmpty()) {
+                Map<Long, OwnerView> ownersById = shardOwners.stream()
+                        .collect(Collectors.toMap(OwnerView::getId, Function.identity()));
+                ewalletRepository.findViewsByOwnerIn(ownersById.keySet())
+                        .forEach(ewallet -> ownersById.get(ewallet.getOwner()).getEwallets().add(ewallet));
+            }
+            return shardOwners;
+        }));
+        List<OwnerView> owners = shardPages.size() == 1
+                ? shardPages.get(0)
+                : ShardRouter.mergeSorted(shardPages, Comparator.comparing(OwnerView::getId), pageRequest.getPageSize());
+        String nextCursor = owners.size() == pageRequest.getPageSize()
+                ? String.valueOf(owners.get(owners.size() - 1).getId())
+                : null;
+        return new KeysetPage<>(owners, nextCursor);
+    }
+
+    // folds the owner/e-wallet join rows, which come ordered by owner id, into one OwnerView per owner
+    private static Stream<OwnerView> groupByOwner(Stream<Object[]> rows) {
+        Iterator<Object[]> rowIterator = rows.iterator();
+        Iterator<OwnerView> owners = new Iterator<OwnerView>() {
+            private Object[] next = rowIterator.hasNext() ? rowIterator.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public OwnerView next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                OwnerView owner = new OwnerView((Long) next[0], (String) next[1], (String) next[2]);
+                while (next != null && Objects.equals(next[0], owner.getId())) {
+                    if (next[3] != null) {
+                        owner.getEwallets().add(new EwalletView((Long) next[3], (Long) next[4], (String) next[5],
+                                (Money) next[6], (String) next[7], (LocalDateTime) next[8]));
+                    }
+                    next = rowIterator.hasNext() ? rowIterator.next() : null;
+                }
+                return owner;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(owners, Spliterator.ORDERED), false)
+                .onClose(rows::close);
+    }
+}
@@ -1,13 +1,26 @@
 package kn.testtask.ewallet.service;
 
+import kn.testtask.ewallet.domain.EwalletDeletedEvent;
+import kn.testtask.ewallet.domain.Money;
 import kn.testtask.ewallet.domain.Owner;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
 import kn.testtask.ewallet.repository.EwalletRepository;
 import kn.testtask.ewallet.repository.OwnerRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Service
 @Transactional
@@ -18,6 +31,12 @@ public class OwnerService {
     @Autowired
     private EwalletRepository ewalletRepository;
 
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${ewallet.owner.delete-chunk-size:1000}")
+    private int deleteChunkSize;
+
     public Owner addOwner(Owner owner) {
         if (owner.getName() == null || owner.getEmail() == null || owner.getId() != null) {
             return null;
@@ -39,23 +58,64 @@ public class OwnerService {
         return owner != null;
     }
 
-    public boolean canOwnerBeDeleted(Owner owner) {
-        // check if any wallet still has money
-        return !owner.getEwallets().stream().anyMatch(ewallet -> ewallet.getAmount().compareTo(BigDecimal.ZERO) > 0);
+    public boolean deleteOwner(Long ownerId) {
+        return ownerId != null && deleteOwners(Collections.singletonList(ownerId)).size() == 1;
     }
 
-    public boolean deleteOwner(Long ownerId) {
-        Owner owner = ownerRepository.findById(ownerId).orElse(null);
+    /**
+     * Deletes the owners whose e-wallets hold no money, together with their e-wallets.
+     * Every chunk of owners is checked with one aggregate query and removed with set-based DELETE statements.
+     * Returns the ids of the deleted owners.
+     */
+    public List<Long> deleteOwners(Collection<Long> ownerIds) {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(ownerIds));
+        ids.remove(null);
+        List<Long> deleted = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += deleteChunkSize) {
+            deleted.addAll(deleteChunk(ids.subList(from, Math.min(ids.size(), from + deleteChunkSize))));
+        }
+        return deleted;
+    }
 
-        if (owner != null && canOwnerBeDeleted(owner)) {
-            deleteByOwner(owner);
-            ownerRepository.delete(owner);
-            return true;
+    private List<Long> deleteChunk(List<Long> ownerIds) {
+        List<Long> deletable = ownerRepository.findIdsWithoutMoney(ownerIds, Money.ZERO);
+        if (deletable.isEmpty()) {
+            return deletable;
+        }
+        List<Object[]> ewallets = ewalletRepository.findIdsByOwnerIn(deletable);
+        Map<Long, List<Long>> ewalletIds = new HashMap<>();
+        for (Object[] row : ewallets) {
+            ewalletIds.computeIfAbsent((Long) row[1], ownerId -> new ArrayList<>()).add((Long) row[0]);
+        }
+        ewalletRepository.deleteEmptyByOwnerIn(deletable);
+        if (ownerRepository.deleteWithoutEwalletsByIdIn(deletable) < deletable.size()) {
+            // some e-wallet got money after the check, its owner is still there
+            List<Long> kept = ownerRepository.findExistingIds(deletable);
+            deletable = new ArrayList<>(deletable);
+            deletable.removeAll(kept);
+            publishDeletedEwalletsOfKeptOwners(ewallets, kept);
+        }
+        for (Long ownerId : deletable) {
+            eventPublisher.publishEvent(new OwnerDeletedEvent(ownerId,
+                    ewalletIds.getOrDefault(ownerId, Collections.emptyList())));
         }
-        return false;
+        return deletable;
     }
 
-    public void deleteByOwner(Owner owner) {
-        ewalletRepository.deleteAll(owner.getEwallets());
+    // the e-wallet delete skips an owner with money, but money which came in while it ran may still leave that owner
+    // without its empty e-wallets: they are announced one by one, as the owner is not
+    private void publishDeletedEwalletsOfKeptOwners(List<Object[]> ewallets, List<Long> kept) {
+        if (kept.isEmpty()) {
+            return;
+        }
+        Set<Long> remaining = new HashSet<>();
+        for (Object[] row : ewalletRepository.findIdsByOwnerIn(kept)) {
+            remaining.add((Long) row[0]);
+        }
+        for (Object[] row : ewallets) {
+            if (kept.contains((Long) row[1]) && !remaining.contains((Long) row[0])) {
+                eventPublisher.publishEvent(new EwalletDeletedEvent((Long) row[0], (Long) row[1], (String) row[2]));
+            }
+        }
     }
 }
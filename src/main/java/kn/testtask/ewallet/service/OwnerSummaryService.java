@@ -0,0 +1,275 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.config.ShardContext;
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.CurrencySummary;
+import kn.testtask.ewallet.domain.EwalletCreatedEvent;
+import kn.testtask.ewallet.domain.EwalletDeletedEvent;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Per owner and currency totals of the e-wallets, kept in Owner_balance_summary.
+ * Changes published by EwalletService and OwnerService are summed per transaction and written right before
+ * that transaction commits, with one UPDATE per touched summary row.
+ */
+@Slf4j
+@Service
+public class OwnerSummaryService {
+
+    private static final String FIND_SUMMARIES =
+            "SELECT currency, amount, ewallet_count FROM Owner_balance_summary WHERE owner = ? ORDER BY currency";
+
+    private static final String ADD_TO_SUMMARY =
+            "UPDATE Owner_balance_summary SET amount = amount + ?, ewallet_count = ewallet_count + ?, update_date_time = ? " +
+            "WHERE owner = ? AND currency = ?";
+
+    private static final String INSERT_SUMMARY =
+            "INSERT INTO Owner_balance_summary (amount, ewallet_count, update_date_time, owner, currency) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String DELETE_EMPTY_SUMMARY =
+            "DELETE FROM Owner_balance_summary WHERE owner = ? AND currency = ? AND ewallet_count = 0";
+
+    private static final String DELETE_OWNER_SUMMARIES = "DELETE FROM Owner_balance_summary WHERE owner = ?";
+
+    private static final String DELETE_ORPHAN_SUMMARIES =
+            "DELETE FROM Owner_balance_summary s WHERE NOT EXISTS (SELECT 1 FROM Owner o WHERE o.id = s.owner)";
+
+    private static final String DELETE_RANGE = "DELETE FROM Owner_balance_summary WHERE owner BETWEEN ? AND ?";
+
+    // e-wallets without currency have no summary, the same as in change()
+    private static final String REBUILD_RANGE =
+            "INSERT INTO Owner_balance_summary (owner, currency, amount, ewallet_count, update_date_time) " +
+            "SELECT owner, currency, COALESCE(SUM(amount), 0), COUNT(*), CURRENT_TIMESTAMP() FROM Ewallet " +
+            "WHERE owner BETWEEN ? AND ? AND currency IS NOT NULL GROUP BY owner, currency";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final ShardRouter shardRouter;
+
+    private final boolean enabled;
+
+    private final long rangeSize;
+
+    private final ExecutorService executor;
+
+    public OwnerSummaryService(JdbcTemplate jdbcTemplate,
+                               PlatformTransactionManager transactionManager,
+                               ShardRouter shardRouter,
+                               @Value("${ewallet.summary.enabled:true}") boolean enabled,
+                               @Value("${ewallet.summary.rebuild-range-size:10000}") long rangeSize,
+                               @Value("${ewallet.summary.rebuild-parallelism:4}") int parallelism) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        this.rangeSize = rangeSize;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    // the summaries are on the shard of the owner
+    public List<CurrencySummary> getOwnerSummary(Long ownerId) {
+        return shardRouter.onShardOf(ownerId, () -> readOnlyTransaction.execute(status -> jdbcTemplate.query(FIND_SUMMARIES,
+                (rs, rowNum) -> new CurrencySummary(rs.getString(1), Money.of(rs.getBigDecimal(2)), rs.getInt(3)),
+                ownerId)));
+    }
+
+    @EventListener
+    public void onBalanceChanged(BalanceChangedEvent event) {
+        long amount = event.getAmount().getMinorUnits();
+        change(event.getOwnerId(), event.getCurrency(), event.getType().getOperationSign() > 0 ? amount : -amount, 0);
+    }
+
+    @EventListener
+    public void onEwalletCreated(EwalletCreatedEvent event) {
+        change(event.getOwnerId(), event.getCurrency(), 0, 1);
+    }
+
+    @EventListener
+    public void onEwalletDeleted(EwalletDeletedEvent event) {
+        // only an empty e-wallet can be deleted
+        change(event.getOwnerId(), event.getCurrency(), 0, -1);
+    }
+
+    @EventListener
+    public void onOwnerDeleted(OwnerDeletedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        PendingChanges changes = pendingChanges();
+        changes.deletedOwners.add(event.getOwnerId());
+        writeIfNoTransaction(changes);
+    }
+
+    private void change(Long ownerId, String currency, long amountDelta, int countDelta) {
+        if (!enabled || ownerId == null || currency == null) {
+            return;
+        }
+        PendingChanges changes = pendingChanges();
+        long[] delta = changes.deltas.computeIfAbsent(ownerId, owner -> new TreeMap<>())
+                .computeIfAbsent(currency, key -> new long[2]);
+        delta[0] = Math.addExact(delta[0], amountDelta);
+        delta[1] += countDelta;
+        writeIfNoTransaction(changes);
+    }
+
+    // changes of one transaction are collected under this service as the resource key
+    private PendingChanges pendingChanges() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return new PendingChanges();
+        }
+        PendingChanges changes = (PendingChanges) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            changes = new PendingChanges();
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(changes);
+        }
+        return changes;
+    }
+
+    private void writeIfNoTransaction(PendingChanges changes) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            changes.write();
+        }
+    }
+
+    /**
+     * Recomputes all summaries from the e-wallets, shard after shard. Owner id ranges of a shard are rebuilt
+     * in parallel, every range in a transaction of its own. Returns the number of summary rows written.
+     */
+    public int rebuildSummaries() {
+        int rows = 0;
+        int rangeCount = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            List<Callable<Integer>> ranges = shardRouter.onShard(shard, () -> rebuildRanges());
+            rangeCount += ranges.size();
+            try {
+                for (Future<Integer> future : executor.invokeAll(ranges)) {
+                    rows += future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rebuilding owner summaries", ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Could not rebuild owner summaries", ex.getCause());
+            }
+        }
+        log.info("Owner summaries rebuilt: {} rows in {} ranges", rows, rangeCount);
+        return rows;
+    }
+
+    // the ranges of the current shard, run by the executor threads on that shard
+    private List<Callable<Integer>> rebuildRanges() {
+        int shard = ShardContext.current();
+        jdbcTemplate.update(DELETE_ORPHAN_SUMMARIES);
+        long[] bounds = jdbcTemplate.queryForObject("SELECT MIN(id), MAX(id) FROM Owner",
+                (rs, rowNum) -> rs.getObject(1) == null ? null : new long[] {rs.getLong(1), rs.getLong(2)});
+        List<Callable<Integer>> ranges = new ArrayList<>();
+        if (bounds == null) {
+            return ranges;
+        }
+        for (long fromId = bounds[0]; fromId <= bounds[1]; fromId += rangeSize) {
+            long rangeFrom = fromId;
+            long rangeTo = Math.min(bounds[1], fromId + rangeSize - 1);
+            ranges.add(() -> shardRouter.onShard(shard, () -> transactionTemplate.execute(status -> {
+                jdbcTemplate.update(DELETE_RANGE, rangeFrom, rangeTo);
+                return jdbcTemplate.update(REBUILD_RANGE, rangeFrom, rangeTo);
+            })));
+        }
+        return ranges;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class PendingChanges extends TransactionSynchronizationAdapter {
+        // owner -> currency -> {amount change in minor units, e-wallet count change}, sorted so that
+        // concurrent transactions update the summary rows in the same order
+        private final Map<Long, Map<String, long[]>> deltas = new TreeMap<>();
+        private final Set<Long> deletedOwners = new TreeSet<>();
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            write();
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(OwnerSummaryService.this);
+        }
+
+        private void write() {
+            for (Long ownerId : deletedOwners) {
+                jdbcTemplate.update(DELETE_OWNER_SUMMARIES, ownerId);
+            }
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            List<Object[]> rows = new ArrayList<>();
+            for (Map.Entry<Long, Map<String, long[]>> owner : deltas.entrySet()) {
+                if (deletedOwners.contains(owner.getKey())) {
+                    continue;
+                }
+                for (Map.Entry<String, long[]> currency : owner.getValue().entrySet()) {
+                    long[] delta = currency.getValue();
+                    if (delta[0] != 0 || delta[1] != 0) {
+                        rows.add(new Object[] {Money.ofMinorUnits(delta[0]).toBigDecimal(), delta[1], now,
+                                owner.getKey(), currency.getKey()});
+                    }
+                }
+            }
+            if (rows.isEmpty()) {
+                return;
+            }
+            int[] updated = jdbcTemplate.batchUpdate(ADD_TO_SUMMARY, rows);
+            for (int i = 0; i < rows.size(); i++) {
+                Object[] row = rows.get(i);
+                if (updated[i] == 0) {
+                    insert(row);
+                }
+                if ((long) row[1] < 0) {
+                    jdbcTemplate.update(DELETE_EMPTY_SUMMARY, row[3], row[4]);
+                }
+            }
+        }
+
+        private void insert(Object[] row) {
+            try {
+                jdbcTemplate.update(INSERT_SUMMARY, row);
+            } catch (DuplicateKeyException ex) {
+                // a concurrent transaction created the row first
+                jdbcTemplate.update(ADD_TO_SUMMARY, row);
+            }
+        }
+    }
+}
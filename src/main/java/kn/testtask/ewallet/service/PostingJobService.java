@@ -0,0 +1,368 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.PostingChunk;
+import kn.testtask.ewallet.domain.PostingJobProgress;
+import kn.testtask.ewallet.domain.PostingJobState;
+import kn.testtask.ewallet.domain.PostingRule;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Applies a posting rule, e.g. a monthly fee or an interest credit, to every e-wallet of a currency.
+ * The e-wallet ids of every shard are split into ranges posted in parallel by a pool of workers; a worker posts
+ * its range in keyset ordered chunks, every chunk in one transaction which also moves the checkpoint of the range.
+ * A job stopped by a failure or a restart is resumed after its last committed chunks, so no e-wallet is posted twice.
+ */
+@Slf4j
+@Service
+public class PostingJobService {
+
+    private static final String INSERT_JOB = "INSERT INTO Posting_job " +
+            "(job_id, currency, type, amount, percent, state, start_date_time) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String FIND_JOB = "SELECT job_id, currency, type, amount, percent, state, error, " +
+            "start_date_time, finish_date_time FROM Posting_job WHERE job_id = ?";
+
+    private static final String RESTART_JOB = "UPDATE Posting_job " +
+            "SET state = 'RUNNING', error = NULL, start_date_time = ?, finish_date_time = NULL WHERE job_id = ?";
+
+    private static final String FINISH_JOB = "UPDATE Posting_job SET state = ?, error = ?, finish_date_time = ? WHERE job_id = ?";
+
+    private static final String INSERT_RANGE = "INSERT INTO Posting_job_range " +
+            "(job_id, from_id, to_id, last_id, posted, skipped) VALUES (?, ?, ?, ?, 0, 0)";
+
+    private static final String FIND_OPEN_RANGES =
+            "SELECT from_id, to_id, last_id FROM Posting_job_range WHERE job_id = ? AND last_id < to_id ORDER BY from_id";
+
+    // the last_id condition makes a chunk fail instead of posting twice when a range is worked on by two runs
+    private static final String MOVE_CHECKPOINT = "UPDATE Posting_job_range " +
+            "SET last_id = ?, posted = posted + ?, skipped = skipped + ? WHERE job_id = ? AND from_id = ? AND last_id = ?";
+
+    private static final String SUM_RANGES = "SELECT COUNT(*), COALESCE(SUM(CASE WHEN last_id = to_id THEN 1 ELSE 0 END), 0), " +
+            "COALESCE(SUM(posted), 0), COALESCE(SUM(skipped), 0) FROM Posting_job_range WHERE job_id = ?";
+
+    private final EwalletService ewalletService;
+
+    private final ShardRouter shardRouter;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long rangeSize;
+
+    private final int chunkSize;
+
+    private final ExecutorService workers;
+
+    // at most one job runs at a time
+    private final AtomicReference<Run> currentRun = new AtomicReference<>();
+
+    private volatile Run lastRun;
+
+    public PostingJobService(EwalletService ewalletService,
+                             ShardRouter shardRouter,
+                             JdbcTemplate jdbcTemplate,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${ewallet.posting.range-size:100000}") long rangeSize,
+                             @Value("${ewallet.posting.chunk-size:500}") int chunkSize,
+                             @Value("${ewallet.posting.workers:4}") int workerCount) {
+        this.ewalletService = ewalletService;
+        this.shardRouter = shardRouter;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.rangeSize = rangeSize;
+        this.chunkSize = chunkSize;
+        AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "posting-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static boolean isRuleCorrect(PostingRule rule) {
+        if (rule == null
+                || rule.getType() == null
+                || (rule.getAmount() == null) == (rule.getPercent() == null)
+                || (rule.getCurrency() != null && rule.getCurrency().length() != 3)) {
+            return false;
+        }
+        if (rule.getAmount() != null) {
+            return rule.getAmount().isPositive() && (rule.getCurrency() == null || rule.getAmount().fitsCurrency(rule.getCurrency()));
+        }
+        // a withdraw of more than the whole balance is never possible
+        return rule.getPercent().signum() > 0
+                && (rule.getType() == OperationType.DEPOSIT || rule.getPercent().compareTo(BigDecimal.valueOf(100)) <= 0);
+    }
+
+    /**
+     * Starts a job posting the rule and returns its progress. Returns null if the rule is not correct or a job is running.
+     */
+    public PostingJobProgress startJob(PostingRule rule) {
+        if (!isRuleCorrect(rule)) {
+            return null;
+        }
+        Run run = new Run(UUID.randomUUID().toString());
+        if (!currentRun.compareAndSet(null, run)) {
+            return null;
+        }
+        try {
+            List<Range> ranges = new ArrayList<>();
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                int rangeShard = shard;
+                ranges.addAll(shardRouter.onShard(shard, () -> insertRanges(rangeShard, run.jobId, rule.getCurrency())));
+            }
+            // the ranges come first, a job found by its id always has all of them
+            shardRouter.onShard(0, () -> jdbcTemplate.update(INSERT_JOB, run.jobId, rule.getCurrency(), rule.getType().name(),
+                    rule.getAmount() == null ? null : rule.getAmount().toBigDecimal(), rule.getPercent(),
+                    PostingJobState.RUNNING.name(), Timestamp.valueOf(LocalDateTime.now())));
+            launch(run, rule, ranges);
+        } catch (RuntimeException ex) {
+            currentRun.set(null);
+            throw ex;
+        }
+        return getProgress(run.jobId);
+    }
+
+    /**
+     * Resumes a failed job, or one stopped by a restart, after the last committed chunk of each of its ranges.
+     * Returns null if the job is not known, completed or running.
+     */
+    public PostingJobProgress resumeJob(String jobId) {
+        Run run = new Run(jobId);
+        if (!currentRun.compareAndSet(null, run)) {
+            return null;
+        }
+        try {
+            Job job = findJob(jobId);
+            if (job == null || job.state == PostingJobState.COMPLETED) {
+                currentRun.set(null);
+                return null;
+            }
+            List<Range> ranges = new ArrayList<>();
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                int rangeShard = shard;
+                ranges.addAll(shardRouter.onShard(shard, () -> jdbcTemplate.query(FIND_OPEN_RANGES,
+                        (rs, rowNum) -> new Range(rangeShard, rs.getLong(1), rs.getLong(2), rs.getLong(3)), jobId)));
+            }
+            shardRouter.onShard(0, () -> jdbcTemplate.update(RESTART_JOB, Timestamp.valueOf(LocalDateTime.now()), jobId));
+            log.info("Resuming posting job {} with {} open ranges", jobId, ranges.size());
+            launch(run, job.rule, ranges);
+        } catch (RuntimeException ex) {
+            currentRun.set(null);
+            throw ex;
+        }
+        return getProgress(jobId);
+    }
+
+    public PostingJobProgress getProgress(String jobId) {
+        Job job = findJob(jobId);
+        if (job == null) {
+            return null;
+        }
+        long[] totals = new long[4];
+        for (long[] shardTotals : shardRouter.onEveryShard(shard -> jdbcTemplate.queryForObject(SUM_RANGES,
+                (rs, rowNum) -> new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4)}, jobId))) {
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += shardTotals[i];
+            }
+        }
+        Run run = currentRun.get();
+        if (run == null || !run.jobId.equals(jobId)) {
+            run = lastRun;
+        }
+        double rowsPerSecond;
+        if (run != null && run.jobId.equals(jobId)) {
+            rowsPerSecond = run.getRowsPerSecond();
+        } else if (job.startDateTime != null && job.finishDateTime != null) {
+            // finished before this process started
+            long millis = Math.max(1, Duration.between(job.startDateTime, job.finishDateTime).toMillis());
+            rowsPerSecond = (totals[2] + totals[3]) * 1000.0 / millis;
+        } else {
+            rowsPerSecond = 0;
+        }
+        return new PostingJobProgress(jobId, job.rule, job.state, (int) totals[0], (int) totals[1], totals[2], totals[3],
+                rowsPerSecond, job.startDateTime, job.finishDateTime, job.error);
+    }
+
+    public boolean isRunning() {
+        return currentRun.get() != null;
+    }
+
+    // ranges of rangeSize ids between the lowest and the highest id of the matching e-wallets of the current shard
+    private List<Range> insertRanges(int shard, String jobId, String currency) {
+        RowMapper<long[]> boundsMapper = (rs, rowNum) -> rs.getObject(1) == null ? null : new long[] {rs.getLong(1), rs.getLong(2)};
+        long[] bounds = currency == null
+                ? jdbcTemplate.queryForObject("SELECT MIN(id), MAX(id) FROM Ewallet", boundsMapper)
+                : jdbcTemplate.queryForObject("SELECT MIN(id), MAX(id) FROM Ewallet WHERE currency = ?", boundsMapper, currency);
+        List<Range> ranges = new ArrayList<>();
+        if (bounds == null) {
+            return ranges;
+        }
+        for (long fromId = bounds[0] - 1; fromId < bounds[1]; fromId += rangeSize) {
+            ranges.add(new Range(shard, fromId, Math.min(fromId + rangeSize, bounds[1]), fromId));
+        }
+        List<Object[]> rows = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            rows.add(new Object[] {jobId, range.fromId, range.toId, range.lastId});
+        }
+        jdbcTemplate.batchUpdate(INSERT_RANGE, rows);
+        return ranges;
+    }
+
+    private void launch(Run run, PostingRule rule, List<Range> ranges) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> post(run, rule, range), workers);
+        }
+        CompletableFuture.allOf(futures).whenComplete((result, ex) -> finish(run, ex));
+    }
+
+    private void post(Run run, PostingRule rule, Range range) {
+        try {
+            long lastId = range.lastId;
+            while (lastId < range.toId && !run.failed) {
+                long afterId = lastId;
+                PostingChunk chunk = shardRouter.onShard(range.shard,
+                        () -> transactionTemplate.execute(status -> postChunk(run.jobId, rule, range, afterId)));
+                run.rows.addAndGet(chunk.getRows());
+                lastId = chunk.getLastId();
+            }
+        } catch (RuntimeException ex) {
+            // the other workers stop after their current chunk
+            run.failed = true;
+            throw ex;
+        }
+    }
+
+    private PostingChunk postChunk(String jobId, PostingRule rule, Range range, long afterId) {
+        PostingChunk chunk = ewalletService.applyPosting(rule, afterId, range.toId, chunkSize);
+        long checkpoint = chunk.getRows() < chunkSize ? range.toId : chunk.getLastId();
+        if (jdbcTemplate.update(MOVE_CHECKPOINT, checkpoint, chunk.getPosted(), chunk.getRows() - chunk.getPosted(),
+                jobId, range.fromId, afterId) != 1) {
+            throw new IllegalStateException("Checkpoint of posting job " + jobId + " was moved by another run");
+        }
+        return new PostingChunk(checkpoint, chunk.getRows(), chunk.getPosted());
+    }
+
+    private void finish(Run run, Throwable ex) {
+        Throwable cause = ex != null && ex.getCause() != null ? ex.getCause() : ex;
+        String error = cause == null ? null : String.valueOf(cause.getMessage());
+        try {
+            shardRouter.onShard(0, () -> jdbcTemplate.update(FINISH_JOB,
+                    (cause == null ? PostingJobState.COMPLETED : PostingJobState.FAILED).name(),
+                    error == null || error.length() <= 255 ? error : error.substring(0, 255),
+                    Timestamp.valueOf(LocalDateTime.now()), run.jobId));
+        } catch (RuntimeException finishEx) {
+            log.error("State of posting job {} not saved", run.jobId, finishEx);
+        } finally {
+            run.finishNanos = System.nanoTime();
+            lastRun = run;
+            currentRun.set(null);
+        }
+        if (cause == null) {
+            log.info("Posting job {} completed, {} e-wallets at {} per second", run.jobId, run.rows.get(),
+                    Math.round(run.getRowsPerSecond()));
+        } else {
+            log.error("Posting job {} failed, it can be resumed", run.jobId, cause);
+        }
+    }
+
+    private Job findJob(String jobId) {
+        List<Job> jobs = shardRouter.onShard(0, () -> jdbcTemplate.query(FIND_JOB, this::mapJob, jobId));
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    private Job mapJob(ResultSet rs, int rowNum) throws SQLException {
+        BigDecimal amount = rs.getBigDecimal(4);
+        BigDecimal percent = rs.getBigDecimal(5);
+        PostingRule rule = new PostingRule(rs.getString(2), OperationType.valueOf(rs.getString(3)),
+                amount == null ? null : Money.of(amount), percent == null ? null : percent.stripTrailingZeros());
+        Timestamp start = rs.getTimestamp(8);
+        Timestamp finish = rs.getTimestamp(9);
+        return new Job(rule, PostingJobState.valueOf(rs.getString(6)), rs.getString(7),
+                start == null ? null : start.toLocalDateTime(), finish == null ? null : finish.toLocalDateTime());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // an interrupted job stays RUNNING in Posting_job and is resumed from its checkpoints
+        workers.shutdownNow();
+    }
+
+    private static class Job {
+        private final PostingRule rule;
+        private final PostingJobState state;
+        private final String error;
+        private final LocalDateTime startDateTime;
+        private final LocalDateTime finishDateTime;
+
+        private Job(PostingRule rule, PostingJobState state, String error, LocalDateTime startDateTime,
+                    LocalDateTime finishDateTime) {
+            this.rule = rule;
+            this.state = state;
+            this.error = error;
+            this.startDateTime = startDateTime;
+            this.finishDateTime = finishDateTime;
+        }
+    }
+
+    // e-wallets with fromId < id <= toId of a shard, posted up to lastId
+    private static class Range {
+        private final int shard;
+        private final long fromId;
+        private final long toId;
+        private final long lastId;
+
+        private Range(int shard, long fromId, long toId, long lastId) {
+            this.shard = shard;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.lastId = lastId;
+        }
+    }
+
+    private static class Run {
+        private final String jobId;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong rows = new AtomicLong();
+        private volatile boolean failed;
+        private volatile long finishNanos;
+
+        private Run(String jobId) {
+            this.jobId = jobId;
+        }
+
+        private double getRowsPerSecond() {
+            long nanos = (finishNanos != 0 ? finishNanos : System.nanoTime()) - startNanos;
+            return rows.get() * 1.0 / Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)) * 1000;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.AnomalyType;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.ReconciliationAnomaly;
+import kn.testtask.ewallet.domain.ReconciliationReport;
+import kn.testtask.ewallet.domain.ReconciliationTotal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that no balance is negative and that every balance, and so every currency total,
+ * equals its snapshot plus the deposits minus the withdrawals journaled after it.
+ * The e-wallet id range is split into chunks scanned in parallel by a worker pool with keyset pages in read-only
+ * transactions, which go to the replica when there is one, pausing between pages so that the scan can run next
+ * to live traffic. Suspect balances are checked again on the primary.
+ */
+@Slf4j
+@Service
+public class ReconciliationService {
+
+    private static final String SIGNED_AMOUNT = "CASE WHEN j.type = 'WITHDRAW' THEN -j.amount ELSE j.amount END";
+
+    private static final String REBUILT_BALANCES =
+            "SELECT e.id, e.currency, e.amount, COALESCE(MAX(s.amount), 0) + COALESCE(SUM(" + SIGNED_AMOUNT + "), 0) " +
+            "FROM (%s) e LEFT JOIN Balance_snapshot s ON s.ewallet_id = e.id " +
+            "LEFT JOIN Operation_journal j ON j.ewallet_id = e.id AND j.id > COALESCE(s.journal_id, 0) " +
+            "GROUP BY e.id, e.currency, e.amount ORDER BY e.id";
+
+    // an e-wallet without amount has a balance of zero
+    private static final String FIND_PAGE = String.format(REBUILT_BALANCES,
+            "SELECT id, currency, COALESCE(amount, 0) AS amount FROM Ewallet WHERE id > :afterId AND id <= :toId ORDER BY id LIMIT :limit");
+
+    private static final String FIND_BY_IDS = String.format(REBUILT_BALANCES,
+            "SELECT id, currency, COALESCE(amount, 0) AS amount FROM Ewallet WHERE id IN (:ids)");
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    private final OperationJournalWriter journalWriter;
+
+    private final ShardRouter shardRouter;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final long chunkSize;
+
+    private final int pageSize;
+
+    private final long pagePauseMillis;
+
+    private final int maxAnomalies;
+
+    private final ExecutorService workers;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicReference<ReconciliationReport> lastReport = new AtomicReference<>();
+
+    public ReconciliationService(JdbcTemplate jdbcTemplate,
+                                 OperationJournalWriter journalWriter,
+                                 ShardRouter shardRouter,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${ewallet.reconciliation.chunk-size:10000}") long chunkSize,
+                                 @Value("${ewallet.reconciliation.page-size:500}") int pageSize,
+                                 @Value("${ewallet.reconciliation.page-pause-ms:5}") long pagePauseMillis,
+                                 @Value("${ewallet.reconciliation.parallelism:2}") int parallelism,
+                                 @Value("${ewallet.reconciliation.max-anomalies:1000}") int maxAnomalies) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.journalWriter = journalWriter;
+        this.shardRouter = shardRouter;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.chunkSize = chunkSize;
+        this.pageSize = pageSize;
+        this.pagePauseMillis = pagePauseMillis;
+        this.maxAnomalies = maxAnomalies;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "reconciliation-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Scheduled(initialDelayString = "${ewallet.reconciliation.interval-ms:3600000}",
+            fixedDelayString = "${ewallet.reconciliation.interval-ms:3600000}")
+    public void reconcileOnSchedule() {
+        ReconciliationReport report = reconcile();
+        if (report != null && report.getAnomalyCount() > 0) {
+            log.warn("Reconciliation found {} anomalies", report.getAnomalyCount());
+        }
+    }
+
+    /**
+     * Runs a reconciliation and keeps its report as the last one. Returns null if one is already running.
+     */
+    public ReconciliationReport reconcile() {
+        if (!running.compareAndSet(false, true)) {
+            return null;
+        }
+        try {
+            LocalDateTime startDateTime = LocalDateTime.now();
+            long startNanos = System.nanoTime();
+            ChunkResult result = new ChunkResult();
+            for (Future<ChunkResult> chunk : workers.invokeAll(chunks())) {
+                result.merge(chunk.get());
+            }
+            ReconciliationReport report = result.toReport(startDateTime,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), maxAnomalies);
+            lastReport.set(report);
+            log.info("Reconciliation of {} e-wallets in {} chunks took {} ms, {} anomalies",
+                    report.getEwalletsScanned(), report.getChunks(), report.getMillis(), report.getAnomalyCount());
+            return report;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reconciling e-wallets", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Could not reconcile e-wallets", ex.getCause());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // scans of the e-wallets of every shard in chunks of chunkSize ids
+    private List<Callable<ChunkResult>> chunks() {
+        List<Callable<ChunkResult>> chunks = new ArrayList<>();
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int chunkShard = shard;
+            long[] bounds = shardRouter.onShard(shard, () -> readOnlyTransaction.execute(status -> jdbcTemplate.queryForObject(
+                    "SELECT MIN(id), MAX(id) FROM Ewallet",
+                    (rs, rowNum) -> rs.getObject(1) == null ? null : new long[] {rs.getLong(1), rs.getLong(2)})));
+            if (bounds == null) {
+                continue;
+            }
+            for (long afterId = bounds[0] - 1; afterId < bounds[1]; afterId += chunkSize) {
+                long chunkAfterId = afterId;
+                long chunkToId = Math.min(bounds[1], afterId + chunkSize);
+                chunks.add(() -> shardRouter.onShard(chunkShard, () -> scan(chunkAfterId, chunkToId)));
+            }
+        }
+        return chunks;
+    }
+
+    public ReconciliationReport getLastReport() {
+        return lastReport.get();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private ChunkResult scan(long afterId, long toId) {
+        ChunkResult result = new ChunkResult();
+        result.chunks = 1;
+        List<Long> suspects = readOnlyTransaction.execute(status -> scanPages(afterId, toId, result));
+        if (!suspects.isEmpty()) {
+            // the journal is written behind the balance, so a live change may not be in it yet;
+            // the suspects are read again outside the read-only transaction, so on the primary
+            journalWriter.flush();
+            for (BalanceRow row : namedJdbcTemplate.query(FIND_BY_IDS, new MapSqlParameterSource("ids", suspects), this::mapRow)) {
+                result.add(row);
+                if (!row.amount.equals(row.expectedAmount)) {
+                    result.anomalies.add(new ReconciliationAnomaly(AnomalyType.BALANCE_MISMATCH, row.ewalletId,
+                            row.currency, row.amount, row.expectedAmount));
+                }
+            }
+        }
+        return result;
+    }
+
+    // adds the matching balances of the chunk to the result, returns the ids of the others
+    private List<Long> scanPages(long afterId, long toId, ChunkResult result) {
+        List<Long> suspects = new ArrayList<>();
+        long lastId = afterId;
+        while (true) {
+            MapSqlParameterSource parameters = new MapSqlParameterSource()
+                    .addValue("afterId", lastId)
+                    .addValue("toId", toId)
+                    .addValue("limit", pageSize);
+            List<BalanceRow> page = namedJdbcTemplate.query(FIND_PAGE, parameters, this::mapRow);
+            for (BalanceRow row : page) {
+                if (row.amount.equals(row.expectedAmount)) {
+                    result.add(row);
+                } else {
+                    suspects.add(row.ewalletId);
+                }
+            }
+            if (page.size() < pageSize) {
+                return suspects;
+            }
+            lastId = page.get(page.size() - 1).ewalletId;
+            pause();
+        }
+    }
+
+    private BalanceRow mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new BalanceRow(rs.getLong(1), rs.getString(2), Money.of(rs.getBigDecimal(3)), Money.of(rs.getBigDecimal(4)));
+    }
+
+    private void pause() {
+        if (pagePauseMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(pagePauseMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reconciling e-wallets", ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private static class BalanceRow {
+        private final long ewalletId;
+        private final String currency;
+        private final Money amount;
+        private final Money expectedAmount;
+
+        private BalanceRow(long ewalletId, String currency, Money amount, Money expectedAmount) {
+            this.ewalletId = ewalletId;
+            this.currency = currency;
+            this.amount = amount;
+            this.expectedAmount = expectedAmount;
+        }
+    }
+
+    private static class ChunkResult {
+        // currency -> {e-wallet count, balances, expected balances}, amounts in minor units
+        private final Map<String, long[]> totals = new TreeMap<>();
+        private final List<ReconciliationAnomaly> anomalies = new ArrayList<>();
+        private int chunks;
+        private long scanned;
+
+        private void add(BalanceRow row) {
+            long[] total = totals.computeIfAbsent(String.valueOf(row.currency), currency -> new long[3]);
+            total[0]++;
+            total[1] = Math.addExact(total[1], row.amount.getMinorUnits());
+            total[2] = Math.addExact(total[2], row.expectedAmount.getMinorUnits());
+            scanned++;
+            if (row.amount.isNegative()) {
+                anomalies.add(new ReconciliationAnomaly(AnomalyType.NEGATIVE_BALANCE, row.ewalletId, row.currency,
+                        row.amount, null));
+            }
+        }
+
+        private void merge(ChunkResult other) {
+            other.totals.forEach((currency, total) -> {
+                long[] merged = totals.computeIfAbsent(currency, key -> new long[3]);
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] = Math.addExact(merged[i], total[i]);
+                }
+            });
+            anomalies.addAll(other.anomalies);
+            chunks += other.chunks;
+            scanned += other.scanned;
+        }
+
+        private ReconciliationReport toReport(LocalDateTime startDateTime, long millis, int maxAnomalies) {
+            List<ReconciliationTotal> currencyTotals = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = entry.getValue();
+                Money amount = Money.ofMinorUnits(total[1]);
+                Money expectedAmount = Money.ofMinorUnits(total[2]);
+                currencyTotals.add(new ReconciliationTotal(entry.getKey(), total[0], amount, expectedAmount));
+                if (!amount.equals(expectedAmount)) {
+                    anomalies.add(new ReconciliationAnomaly(AnomalyType.CURRENCY_TOTAL_MISMATCH, null, entry.getKey(),
+                            amount, expectedAmount));
+                }
+            }
+            List<ReconciliationAnomaly> reported = anomalies.size() > maxAnomalies
+                    ? new ArrayList<>(anomalies.subList(0, maxAnomalies))
+                    : anomalies;
+            return new ReconciliationReport(startDateTime, millis, chunks, scanned, currencyTotals, anomalies.size(), reported);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.config.ReadWriteRoutingDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Measures how far the replica is behind the primary: a heartbeat time is written to the primary
+ * every heartbeat-ms, and the replica has every change committed before the heartbeat it has read back.
+ * The replica is usable for reads while that heartbeat is at most max-lag-ms old, so it also stops
+ * being usable when the replica can not be read or the measurement stops.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("${ewallet.datasource.replica.enabled:false} and ${ewallet.shard.count:1} == 1")
+public class ReplicaLagMonitor {
+
+    private static final String WRITE_HEARTBEAT = "MERGE INTO Replication_heartbeat (id, beat_date_time) KEY (id) VALUES (1, ?)";
+
+    private static final String READ_HEARTBEAT = "SELECT beat_date_time FROM Replication_heartbeat WHERE id = 1";
+
+    private final JdbcTemplate primaryJdbcTemplate;
+
+    private final JdbcTemplate replicaJdbcTemplate;
+
+    private final long maxLagMillis;
+
+    // latest heartbeat read from the replica, 0 until the first one and while the replica can not be read
+    private volatile long replicaBeatMillis;
+
+    public ReplicaLagMonitor(ReadWriteRoutingDataSource routingDataSource,
+                             @Value("${ewallet.datasource.replica.max-lag-ms:2000}") long maxLagMillis) {
+        this.primaryJdbcTemplate = new JdbcTemplate(routingDataSource.getPrimary());
+        this.replicaJdbcTemplate = new JdbcTemplate(routingDataSource.getReplica());
+        this.maxLagMillis = maxLagMillis;
+        routingDataSource.setReplicaUsable(this::isReplicaUsable);
+    }
+
+    @Scheduled(fixedDelayString = "${ewallet.datasource.replica.heartbeat-ms:200}")
+    public void measureLag() {
+        try {
+            long now = System.currentTimeMillis();
+            primaryJdbcTemplate.update(WRITE_HEARTBEAT, new Timestamp(now));
+            List<Timestamp> beats = replicaJdbcTemplate.queryForList(READ_HEARTBEAT, Timestamp.class);
+            replicaBeatMillis = beats.isEmpty() || beats.get(0) == null ? 0 : beats.get(0).getTime();
+        } catch (Exception ex) {
+            if (replicaBeatMillis > 0) {
+                log.warn("Replica lag can not be measured, reads go to the primary: {}", ex.getMessage());
+            }
+            replicaBeatMillis = 0;
+        }
+    }
+
+    public boolean isReplicaUsable() {
+        long lag = getLagMillis();
+        return lag >= 0 && lag <= maxLagMillis;
+    }
+
+    // -1 if unknown
+    public long getLagMillis() {
+        long beatMillis = replicaBeatMillis;
+        return beatMillis == 0 ? -1 : Math.max(0, System.currentTimeMillis() - beatMillis);
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+}
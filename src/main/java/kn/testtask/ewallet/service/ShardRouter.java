@@ -0,0 +1,295 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.config.ShardContext;
+import kn.testtask.ewallet.config.ShardRoutingDataSource;
+import kn.testtask.ewallet.domain.Operation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Routes work to the shards of ewallet.shard.count. An owner is placed on the shard of the hash of its email,
+ * its e-wallets are on the shard of the owner, and the shard of an owner or an e-wallet is known from its id.
+ * Reads over all owners or e-wallets are run on every shard in parallel and merged in their order.
+ * With one shard everything runs on the calling thread, as without sharding.
+ */
+@Service
+public class ShardRouter {
+
+    private final int shardCount;
+
+    private final int mergeBufferSize;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    private final ExecutorService shardExecutor;
+
+    public ShardRouter(PlatformTransactionManager transactionManager,
+                       @Value("${ewallet.shard.count:1}") int shardCount,
+                       @Value("${ewallet.shard.merge-buffer-size:500}") int mergeBufferSize) {
+        this.shardCount = Math.max(1, shardCount);
+        this.mergeBufferSize = mergeBufferSize;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.shardExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shard-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean isSharded() {
+        return shardCount > 1;
+    }
+
+    public int shardOfId(Long id) {
+        return id == null ? 0 : ShardRoutingDataSource.shardOfId(id, shardCount);
+    }
+
+    public int shardOfEmail(String email) {
+        if (email == null) {
+            return 0;
+        }
+        // the hash of String mixes the last characters poorly, emails of one domain end alike
+        int hash = 0x811c9dc5;
+        for (byte b : email.toLowerCase().getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return Math.floorMod(hash, shardCount);
+    }
+
+    // the shard of all e-wallets of the operations, -1 if they are on different shards
+    public int shardOfOperations(Operation... operations) {
+        if (operations == null) {
+            return 0;
+        }
+        int shard = -1;
+        for (Operation operation : operations) {
+            if (operation == null || operation.getEwalletId() == null) {
+                continue;
+            }
+            int operationShard = shardOfId(operation.getEwalletId());
+            if (shard >= 0 && operationShard != shard) {
+                return -1;
+            }
+            shard = operationShard;
+        }
+        return Math.max(shard, 0);
+    }
+
+    public <T> T onShard(int shard, Supplier<T> action) {
+        return isSharded() ? ShardContext.execute(shard, action) : action.get();
+    }
+
+    public <T> T onShardOf(Long id, Supplier<T> action) {
+        return onShard(shardOfId(id), action);
+    }
+
+    public Map<Integer, List<Long>> groupByShard(Collection<Long> ids) {
+        return ids.stream().collect(Collectors.groupingBy(this::shardOfId, TreeMap::new, Collectors.toList()));
+    }
+
+    // the action gets the ids of one shard at a time
+    public <T> List<T> onShardsOf(Collection<Long> ids, Function<List<Long>, List<T>> action) {
+        if (!isSharded()) {
+            return action.apply(new ArrayList<>(ids));
+        }
+        List<T> results = new ArrayList<>();
+        groupByShard(ids).forEach((shard, shardIds) -> results.addAll(onShard(shard, () -> action.apply(shardIds))));
+        return results;
+    }
+
+    // results in shard order
+    public <T> List<T> onEveryShard(IntFunction<T> action) {
+        if (!isSharded()) {
+            return Collections.singletonList(action.apply(0));
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            int current = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> ShardContext.execute(current, () -> action.apply(current)), shardExecutor));
+        }
+        List<T> results = new ArrayList<>(shardCount);
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException ex) {
+            futures.forEach(future -> future.cancel(true));
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+        return results;
+    }
+
+    // the first limit elements of lists which are each sorted by the comparator, merged through a heap of their heads
+    public static <T> List<T> mergeSorted(List<List<T>> lists, Comparator<? super T> comparator, int limit) {
+        List<Iterator<T>> iterators = new ArrayList<>(lists.size());
+        PriorityQueue<Head<T>> heads = new PriorityQueue<>(Math.max(1, lists.size()), (a, b) -> comparator.compare(a.row, b.row));
+        for (List<T> list : lists) {
+            Iterator<T> iterator = list.iterator();
+            if (iterator.hasNext()) {
+                heads.add(new Head<>(iterators.size(), iterator.next()));
+            }
+            iterators.add(iterator);
+        }
+        List<T> merged = new ArrayList<>();
+        while (merged.size() < limit && !heads.isEmpty()) {
+            Head<T> head = heads.poll();
+            merged.add(head.row);
+            Iterator<T> iterator = iterators.get(head.shard);
+            if (iterator.hasNext()) {
+                heads.add(new Head<>(head.shard, iterator.next()));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * One stream in comparator order of the streams of every shard, which are each in comparator order.
+     * Every shard stream is read by a thread of its own in a read-only transaction into a buffer of mergeBufferSize rows,
+     * so memory use does not grow with the tables. Closing the merged stream stops the readers.
+     */
+    public <T> Stream<T> streamMerged(IntFunction<Stream<T>> shardStreams, Comparator<? super T> comparator) {
+        List<BlockingQueue<Object>> buffers = new ArrayList<>(shardCount);
+        List<Future<?>> readers = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(mergeBufferSize);
+            buffers.add(buffer);
+            int current = shard;
+            readers.add(shardExecutor.submit(() -> read(current, shardStreams, buffer)));
+        }
+        Iterator<T> merged = new MergingIterator<>(buffers, comparator);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> readers.forEach(reader -> reader.cancel(true)));
+    }
+
+    private <T> void read(int shard, IntFunction<Stream<T>> shardStreams, BlockingQueue<Object> buffer) {
+        try {
+            ShardContext.execute(shard, () -> readOnlyTransaction.execute(status -> {
+                try (Stream<T> rows = shardStreams.apply(shard)) {
+                    Iterator<T> iterator = rows.iterator();
+                    while (iterator.hasNext()) {
+                        buffer.put(iterator.next());
+                    }
+                    buffer.put(END);
+                } catch (InterruptedException ex) {
+                    // the merged stream was closed
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }));
+        } catch (RuntimeException ex) {
+            buffer.clear();
+            buffer.offer(new ReadFailure(ex));
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private static class ReadFailure {
+        private final RuntimeException cause;
+
+        private ReadFailure(RuntimeException cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static class MergingIterator<T> implements Iterator<T> {
+        private final List<BlockingQueue<Object>> buffers;
+        private final PriorityQueue<Head<T>> heads;
+        private boolean started;
+
+        private MergingIterator(List<BlockingQueue<Object>> buffers, Comparator<? super T> comparator) {
+            this.buffers = buffers;
+            this.heads = new PriorityQueue<>(buffers.size(), (a, b) -> comparator.compare(a.row, b.row));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!started) {
+                for (int shard = 0; shard < buffers.size(); shard++) {
+                    take(shard);
+                }
+                started = true;
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Head<T> head = heads.poll();
+            take(head.shard);
+            return head.row;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void take(int shard) {
+            Object next;
+            try {
+                next = buffers.get(shard).take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while merging shard " + shard, ex);
+            }
+            if (next instanceof ReadFailure) {
+                throw ((ReadFailure) next).cause;
+            }
+            if (next != END) {
+                heads.add(new Head<>(shard, (T) next));
+            }
+        }
+    }
+
+    private static class Head<T> {
+        private final int shard;
+        private final T row;
+
+        private Head(int shard, T row) {
+            this.shard = shard;
+            this.row = row;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shardExecutor.shutdownNow();
+    }
+}
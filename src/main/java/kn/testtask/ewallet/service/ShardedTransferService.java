@@ -0,0 +1,326 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.FxConversion;
+import kn.testtask.ewallet.domain.FxRateSnapshot;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.TransferLeg;
+import kn.testtask.ewallet.domain.TransferSagaState;
+import kn.testtask.ewallet.domain.TransferStep;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Transfers between e-wallets of one shard are one local transaction. A transfer across shards runs as a saga
+ * without a distributed lock: the debit of the first paying shard commits together with the saga row, the outbox
+ * of the transfer, then the other paying shards are debited and the receiving shards credited, each step in a local
+ * transaction of its shard that also writes the step to the Transfer_inbox of the shard, so a repeated step
+ * is not applied twice. A refused debit refunds the shards debited so far. Once every debit is committed the transfer
+ * counts as done, and a saga stopped halfway is finished by the recovery: a crediting one forward, any other by refunds.
+ */
+@Slf4j
+@Service
+public class ShardedTransferService {
+
+    private static final String INSERT_SAGA =
+            "INSERT INTO Transfer_saga (transfer_id, state, legs, create_date_time, update_date_time) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String CHANGE_STATE =
+            "UPDATE Transfer_saga SET state = ?, update_date_time = ? WHERE transfer_id = ? AND state = ?";
+
+    private static final String FIND_STALLED =
+            "SELECT transfer_id, state, legs FROM Transfer_saga " +
+            "WHERE state IN ('DEBITING', 'CREDITING', 'CANCELLING') AND update_date_time < ? ORDER BY update_date_time";
+
+    private static final String COUNT_OPEN =
+            "SELECT COUNT(*) FROM Transfer_saga WHERE state IN ('DEBITING', 'CREDITING', 'CANCELLING')";
+
+    private static final String FIND_STEPS = "SELECT step FROM Transfer_inbox WHERE transfer_id = ?";
+
+    private static final String INSERT_STEP = "INSERT INTO Transfer_inbox (transfer_id, step, create_date_time) VALUES (?, ?, ?)";
+
+    private static final TypeReference<List<TransferLeg>> LEGS = new TypeReference<List<TransferLeg>>() {
+    };
+
+    private final EwalletService ewalletService;
+
+    private final EwalletRepository ewalletRepository;
+
+    private final FxRateService fxRateService;
+
+    private final ShardRouter shardRouter;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final long recoveryAfterMillis;
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong cancelled = new AtomicLong();
+
+    private final AtomicLong recovered = new AtomicLong();
+
+    public ShardedTransferService(EwalletService ewalletService,
+                                  EwalletRepository ewalletRepository,
+                                  FxRateService fxRateService,
+                                  ShardRouter shardRouter,
+                                  JdbcTemplate jdbcTemplate,
+                                  PlatformTransactionManager transactionManager,
+                                  ObjectMapper objectMapper,
+                                  @Value("${ewallet.shard.saga.recovery-after-ms:60000}") long recoveryAfterMillis) {
+        this.ewalletService = ewalletService;
+        this.ewalletRepository = ewalletRepository;
+        this.fxRateService = fxRateService;
+        this.shardRouter = shardRouter;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.objectMapper = objectMapper;
+        this.recoveryAfterMillis = recoveryAfterMillis;
+    }
+
+    public boolean processEwalletTransfer(Operation[] operations) {
+        int shard = shardRouter.shardOfOperations(operations);
+        if (shard >= 0) {
+            return shardRouter.onShard(shard, () -> ewalletService.processEwalletTransfer(operations));
+        }
+        return transferAcrossShards(operations);
+    }
+
+    private boolean transferAcrossShards(Operation[] operations) {
+        Map<Long, Long> changes = EwalletService.getTransferChanges(operations);
+        if (changes == null) {
+            return false;
+        }
+        // read without locks: every step checks the balances of its shard again under row locks
+        Map<Long, Ewallet> ewallets = new HashMap<>();
+        shardRouter.onShardsOf(changes.keySet(), ewalletRepository::findAllById)
+                .forEach(ewallet -> ewallets.put(ewallet.getId(), ewallet));
+        FxRateSnapshot rates = fxRateService.getSnapshot();
+        List<FxConversion> conversions = new ArrayList<>();
+        Map<Long, Money> amounts = EwalletService.getEwalletChanges(operations, ewallets, changes, rates, conversions);
+        if (amounts == null) {
+            return false;
+        }
+        List<TransferLeg> legs = new ArrayList<>(amounts.size());
+        amounts.forEach((ewalletId, amount) -> legs.add(new TransferLeg(ewalletId, amount)));
+
+        String transferId = UUID.randomUUID().toString();
+        Map<Integer, List<TransferLeg>> debits = legsByShard(legs, true);
+        int homeShard = debits.keySet().iterator().next();
+        String legsJson = toJson(legs);
+        boolean debited = shardRouter.onShard(homeShard, () -> transactionTemplate.execute(status -> {
+            if (!applyStep(transferId, TransferStep.DEBIT, debits.get(homeShard))) {
+                status.setRollbackOnly();
+                return false;
+            }
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            jdbcTemplate.update(INSERT_SAGA, transferId, TransferSagaState.DEBITING.name(), legsJson, now, now);
+            if (!conversions.isEmpty()) {
+                fxRateService.recordConversions(conversions);
+            }
+            return true;
+        }));
+        if (!debited) {
+            return false;
+        }
+        started.incrementAndGet();
+
+        TransferSagaState state = TransferSagaState.DEBITING;
+        try {
+            for (Map.Entry<Integer, List<TransferLeg>> debit : debits.entrySet()) {
+                if (debit.getKey() != homeShard && !runStep(debit.getKey(), transferId, TransferStep.DEBIT, debit.getValue())) {
+                    cancel(homeShard, transferId, TransferSagaState.DEBITING, legs);
+                    return false;
+                }
+            }
+            if (!changeState(homeShard, transferId, TransferSagaState.DEBITING, TransferSagaState.CREDITING)) {
+                // the recovery took the saga over and cancels it
+                return false;
+            }
+            state = TransferSagaState.CREDITING;
+            credit(homeShard, transferId, legs);
+            return true;
+        } catch (RuntimeException ex) {
+            if (state == TransferSagaState.CREDITING) {
+                log.warn("Credits of transfer {} are left to the recovery", transferId, ex);
+                return true;
+            }
+            log.warn("Transfer {} failed while debiting, the recovery refunds it", transferId, ex);
+            return false;
+        }
+    }
+
+    // runs in the transaction of the shard of the step
+    private boolean applyStep(String transferId, TransferStep step, List<TransferLeg> legs) {
+        // the row locks of the e-wallets serialize a step with a concurrent debit or refund of the same legs by the recovery
+        ewalletRepository.findByIdInOrderByIdAsc(legs.stream().map(TransferLeg::getEwalletId).collect(Collectors.toList()));
+        List<String> done = jdbcTemplate.queryForList(FIND_STEPS, String.class, transferId);
+        if (done.contains(step.name())) {
+            return true;
+        }
+        if (step == TransferStep.DEBIT && done.contains(TransferStep.REFUND.name())) {
+            // the saga was cancelled before this debit arrived
+            return false;
+        }
+        // a refund of a debit that never happened only leaves its mark, so that a late debit is refused
+        if (step != TransferStep.REFUND || done.contains(TransferStep.DEBIT.name())) {
+            if (!ewalletService.applyTransferLegs(step == TransferStep.REFUND ? negate(legs) : legs)) {
+                return false;
+            }
+        }
+        jdbcTemplate.update(INSERT_STEP, transferId, step.name(), new Timestamp(System.currentTimeMillis()));
+        return true;
+    }
+
+    private boolean runStep(int shard, String transferId, TransferStep step, List<TransferLeg> legs) {
+        return shardRouter.onShard(shard, () -> transactionTemplate.execute(status -> {
+            boolean applied = applyStep(transferId, step, legs);
+            if (!applied) {
+                status.setRollbackOnly();
+            }
+            return applied;
+        }));
+    }
+
+    private void credit(int homeShard, String transferId, List<TransferLeg> legs) {
+        for (Map.Entry<Integer, List<TransferLeg>> credit : legsByShard(legs, false).entrySet()) {
+            if (!runStep(credit.getKey(), transferId, TransferStep.CREDIT, credit.getValue())) {
+                // only a deleted e-wallet refuses money, the recovery tries again
+                log.error("Credit of transfer {} was refused on shard {}", transferId, credit.getKey());
+                return;
+            }
+        }
+        if (changeState(homeShard, transferId, TransferSagaState.CREDITING, TransferSagaState.COMPLETED)) {
+            completed.incrementAndGet();
+        }
+    }
+
+    private void cancel(int homeShard, String transferId, TransferSagaState state, List<TransferLeg> legs) {
+        if (state == TransferSagaState.DEBITING
+                && !changeState(homeShard, transferId, TransferSagaState.DEBITING, TransferSagaState.CANCELLING)) {
+            return;
+        }
+        for (Map.Entry<Integer, List<TransferLeg>> debit : legsByShard(legs, true).entrySet()) {
+            if (!runStep(debit.getKey(), transferId, TransferStep.REFUND, debit.getValue())) {
+                log.error("Refund of transfer {} was refused on shard {}", transferId, debit.getKey());
+                return;
+            }
+        }
+        if (changeState(homeShard, transferId, TransferSagaState.CANCELLING, TransferSagaState.CANCELLED)) {
+            cancelled.incrementAndGet();
+        }
+    }
+
+    private boolean changeState(int homeShard, String transferId, TransferSagaState from, TransferSagaState to) {
+        return shardRouter.onShard(homeShard, () -> jdbcTemplate.update(CHANGE_STATE, to.name(),
+                new Timestamp(System.currentTimeMillis()), transferId, from.name())) == 1;
+    }
+
+    /**
+     * Finishes sagas whose state did not change for recovery-after-ms: a crediting saga is credited,
+     * a debiting or cancelling one is refunded.
+     */
+    @Scheduled(initialDelayString = "${ewallet.shard.saga.recovery-interval-ms:10000}",
+            fixedDelayString = "${ewallet.shard.saga.recovery-interval-ms:10000}")
+    public void recoverStalledSagas() {
+        if (!shardRouter.isSharded()) {
+            return;
+        }
+        Timestamp stalledBefore = new Timestamp(System.currentTimeMillis() - recoveryAfterMillis);
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int homeShard = shard;
+            List<Object[]> stalled = shardRouter.onShard(shard, () -> jdbcTemplate.query(FIND_STALLED,
+                    (rs, rowNum) -> new Object[] {rs.getString(1), TransferSagaState.valueOf(rs.getString(2)), rs.getString(3)},
+                    stalledBefore));
+            for (Object[] saga : stalled) {
+                String transferId = (String) saga[0];
+                TransferSagaState state = (TransferSagaState) saga[1];
+                try {
+                    List<TransferLeg> legs = objectMapper.readValue((String) saga[2], LEGS);
+                    if (state == TransferSagaState.CREDITING) {
+                        credit(homeShard, transferId, legs);
+                    } else {
+                        cancel(homeShard, transferId, state, legs);
+                    }
+                    recovered.incrementAndGet();
+                } catch (JsonProcessingException | RuntimeException ex) {
+                    log.error("Could not recover transfer {} in state {}", transferId, state, ex);
+                }
+            }
+        }
+    }
+
+    public long countOpenSagas() {
+        return shardRouter.onEveryShard(shard -> jdbcTemplate.queryForObject(COUNT_OPEN, Long.class))
+                .stream().mapToLong(Long::longValue).sum();
+    }
+
+    // legs of the paying or of the receiving e-wallets, by shard in shard order
+    private Map<Integer, List<TransferLeg>> legsByShard(List<TransferLeg> legs, boolean paying) {
+        Map<Integer, List<TransferLeg>> byShard = new TreeMap<>();
+        for (TransferLeg leg : legs) {
+            if (leg.getAmount().isNegative() == paying) {
+                byShard.computeIfAbsent(shardRouter.shardOfId(leg.getEwalletId()), shard -> new ArrayList<>()).add(leg);
+            }
+        }
+        return byShard;
+    }
+
+    private static List<TransferLeg> negate(List<TransferLeg> legs) {
+        List<TransferLeg> negated = new ArrayList<>(legs.size());
+        for (TransferLeg leg : legs) {
+            negated.add(new TransferLeg(leg.getEwalletId(), leg.getAmount().negate()));
+        }
+        return negated;
+    }
+
+    private String toJson(List<TransferLeg> legs) {
+        try {
+            return objectMapper.writeValueAsString(legs);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Could not write transfer legs", ex);
+        }
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getRecovered() {
+        return recovered.get();
+    }
+}
@@ -1,10 +1,18 @@
-INSERT INTO Owner (name, email) VALUES ('John', 'john@beatles.com');
-INSERT INTO Owner (name, email) VALUES ('Paul', 'paul@beatles.com');
-INSERT INTO Owner (name, email) VALUES ('Ringo', 'ringo@beatles.com');
-
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(1, 'USD', 100.0, 'Johns USD wallet');
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(1, 'EUR', 100.0, 'Johns EUR wallet');
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(1, 'EUR', 200.0, 'Johns second EUR wallet');
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(2, 'EUR', 0.0, 'Pauls EUR wallet');
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(3, 'USD', 56.70, 'Ringos USD wallet');
-INSERT INTO Ewallet (owner, currency, amount, name) VALUES(3, 'EUR', 20.0, 'Ringos EUR wallet');
\ No newline at end of file
+INSERT INTO Owner (id, name, email) VALUES (1, 'John', 'john@beatles.com');
+INSERT INTO Owner (id, name, email) VALUES (2, 'Paul', 'paul@beatles.com');
+INSERT INTO Owner (id, name, email) VALUES (3, 'Ringo', 'ringo@beatles.com');
+
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(1, 1, 'USD', 100.0, 'Johns USD wallet');
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(2, 1, 'EUR', 100.0, 'Johns EUR wallet');
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(3, 1, 'EUR', 200.0, 'Johns second EUR wallet');
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(4, 2, 'EUR', 0.0, 'Pauls EUR wallet');
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(5, 3, 'USD', 56.70, 'Ringos USD wallet');
+INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES(6, 3, 'EUR', 20.0, 'Ringos EUR wallet');
+
+INSERT INTO Balance_snapshot (ewallet_id, journal_id, amount, create_date_time) SELECT id, 0, amount, CURRENT_TIMESTAMP() FROM Ewallet;
+
+INSERT INTO Owner_balance_summary (owner, currency, amount, ewallet_count, update_date_time)
+SELECT owner, currency, SUM(amount), COUNT(*), CURRENT_TIMESTAMP() FROM Ewallet GROUP BY owner, currency;
+
+INSERT INTO Fx_rate (version, base_currency, quote_currency, rate, create_date_time) VALUES (1, 'EUR', 'USD', 1.1800, CURRENT_TIMESTAMP());
+INSERT INTO Fx_rate (version, base_currency, quote_currency, rate, create_date_time) VALUES (1, 'USD', 'EUR', 0.8475, CURRENT_TIMESTAMP());
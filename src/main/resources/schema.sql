@@ -1,5 +1,10 @@
+-- ids are taken from the sequences in blocks of 50 (pooled-lo), so inserts of new entities can be batched;
+-- rows inserted without id get a sequence value of their own
+CREATE SEQUENCE ewallet_seq START WITH 1000 INCREMENT BY 50;
+CREATE SEQUENCE owner_seq START WITH 1000 INCREMENT BY 50;
+
 CREATE TABLE Ewallet(
-  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  id BIGINT DEFAULT NEXT VALUE FOR ewallet_seq PRIMARY KEY,
   owner BIGINT NOT NULL,
   currency CHAR(3),
   amount DECIMAL(20, 2),
@@ -8,9 +13,131 @@ CREATE TABLE Ewallet(
 );
 
 CREATE TABLE Owner(
-  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  id BIGINT DEFAULT NEXT VALUE FOR owner_seq PRIMARY KEY,
   name VARCHAR(64),
   email VARCHAR(64) NOT NULL UNIQUE
 );
 
-ALTER TABLE Ewallet ADD FOREIGN KEY (owner) REFERENCES Owner(id);
\ No newline at end of file
+ALTER TABLE Ewallet ADD FOREIGN KEY (owner) REFERENCES Owner(id);
+
+CREATE TABLE Operation_journal(
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  ewallet_id BIGINT NOT NULL,
+  currency CHAR(3),
+  type VARCHAR(16) NOT NULL,
+  amount DECIMAL(20, 2) NOT NULL,
+  create_date_time TIMESTAMP
+);
+
+CREATE INDEX operation_journal_ewallet_idx ON Operation_journal(ewallet_id, id);
+
+-- balance of an e-wallet after all journal entries up to journal_id
+CREATE TABLE Balance_snapshot(
+  ewallet_id BIGINT PRIMARY KEY,
+  journal_id BIGINT NOT NULL,
+  amount DECIMAL(20, 2) NOT NULL,
+  create_date_time TIMESTAMP
+);
+
+-- list by owner and the (owner, currency, amount, id) keyset order read from the index instead of a scan,
+-- it also serves owner-only lookups, so no separate Ewallet(owner) index is needed
+CREATE INDEX ewallet_owner_currency_amount_idx ON Ewallet(owner, currency, amount, id);
+
+-- responses of requests sent with an Idempotency-Key header, status is IN_PROGRESS or COMPLETED;
+-- an IN_PROGRESS key past its lease_date_time has an unknown outcome
+CREATE TABLE Idempotency_key(
+  idempotency_key VARCHAR(128) PRIMARY KEY,
+  fingerprint VARCHAR(64) NOT NULL,
+  status VARCHAR(16) NOT NULL,
+  response_status INT,
+  response_body CLOB,
+  create_date_time TIMESTAMP,
+  lease_date_time TIMESTAMP,
+  expire_date_time TIMESTAMP NOT NULL
+);
+
+CREATE INDEX idempotency_key_expire_idx ON Idempotency_key(expire_date_time);
+
+-- totals of the e-wallets of every owner per currency, changed in the same transaction as the e-wallets
+CREATE TABLE Owner_balance_summary(
+  owner BIGINT NOT NULL,
+  currency CHAR(3) NOT NULL,
+  amount DECIMAL(20, 2) NOT NULL,
+  ewallet_count INT NOT NULL,
+  update_date_time TIMESTAMP,
+  PRIMARY KEY (owner, currency)
+);
+
+-- FX rate sets, every PUT /fx/rates writes a complete set under the next version
+CREATE TABLE Fx_rate(
+  version BIGINT NOT NULL,
+  base_currency CHAR(3) NOT NULL,
+  quote_currency CHAR(3) NOT NULL,
+  rate DECIMAL(20, 10) NOT NULL,
+  create_date_time TIMESTAMP,
+  PRIMARY KEY (version, base_currency, quote_currency)
+);
+
+-- received legs of cross-currency transfers with the rate and the rate set version they were converted with
+CREATE TABLE Fx_conversion(
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  ewallet_id BIGINT NOT NULL,
+  from_currency CHAR(3) NOT NULL,
+  to_currency CHAR(3) NOT NULL,
+  amount DECIMAL(20, 2) NOT NULL,
+  converted_amount DECIMAL(20, 2) NOT NULL,
+  rate DECIMAL(20, 10) NOT NULL,
+  rate_version BIGINT NOT NULL,
+  create_date_time TIMESTAMP
+);
+
+-- written to the primary by ReplicaLagMonitor, the age of the row read from the replica is the replica lag
+CREATE TABLE Replication_heartbeat(
+  id INT PRIMARY KEY,
+  beat_date_time TIMESTAMP
+);
+
+-- transfers across shards, on the shard of the first paying e-wallet; legs is the JSON list of e-wallet changes.
+-- The row is inserted together with the first debit, so a committed debit always has a saga to finish it
+CREATE TABLE Transfer_saga(
+  transfer_id VARCHAR(36) PRIMARY KEY,
+  state VARCHAR(16) NOT NULL,
+  legs CLOB NOT NULL,
+  create_date_time TIMESTAMP,
+  update_date_time TIMESTAMP NOT NULL
+);
+
+CREATE INDEX transfer_saga_state_idx ON Transfer_saga(state, update_date_time);
+
+-- saga steps applied on this shard, a repeated step is found here and not applied twice
+CREATE TABLE Transfer_inbox(
+  transfer_id VARCHAR(36) NOT NULL,
+  step VARCHAR(16) NOT NULL,
+  create_date_time TIMESTAMP,
+  PRIMARY KEY (transfer_id, step)
+);
+
+-- bulk-posting jobs, on shard 0; the rule is amount or percent of type for the e-wallets of currency (null for all)
+CREATE TABLE Posting_job(
+  job_id VARCHAR(36) PRIMARY KEY,
+  currency CHAR(3),
+  type VARCHAR(16) NOT NULL,
+  amount DECIMAL(20, 2),
+  percent DECIMAL(20, 10),
+  state VARCHAR(16) NOT NULL,
+  error VARCHAR(255),
+  start_date_time TIMESTAMP,
+  finish_date_time TIMESTAMP
+);
+
+-- e-wallet id ranges from_id < id <= to_id of a job on this shard; last_id is the checkpoint, committed with
+-- every chunk of postings, the range is done when last_id = to_id
+CREATE TABLE Posting_job_range(
+  job_id VARCHAR(36) NOT NULL,
+  from_id BIGINT NOT NULL,
+  to_id BIGINT NOT NULL,
+  last_id BIGINT NOT NULL,
+  posted BIGINT NOT NULL,
+  skipped BIGINT NOT NULL,
+  PRIMARY KEY (job_id, from_id)
+);
@@ -0,0 +1,235 @@
+package kn.testtask.ewallet;
+
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.service.JournalService;
+import kn.testtask.ewallet.service.OwnerSummaryService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives deposits, withdrawals and transfers over HTTP from many client threads
+ * and checks that the money per currency equals the seeded money plus applied deposits minus applied withdrawals.
+ * Excluded from the default build, run with: mvn -P stress test -Dstress.threads=64 -Dstress.owners=10000
+ */
+@Slf4j
+@Tag("stress")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.datasource.url=jdbc:h2:mem:stress")
+class EwalletStressTest {
+
+    private static final String[] CURRENCIES = {"EUR", "USD"};
+
+    private enum Request { DEPOSIT, WITHDRAW, TRANSFER }
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private JournalService journalService;
+
+    @Autowired
+    private OwnerSummaryService ownerSummaryService;
+
+    @Value("${stress.owners:1000}")
+    private int ownerCount;
+
+    @Value("${stress.threads:32}")
+    private int threadCount;
+
+    @Value("${stress.operations-per-thread:1000}")
+    private int operationsPerThread;
+
+    // id, owner id and currency of every seeded e-wallet
+    private long[] ewalletIds;
+
+    private long[] ewalletOwners;
+
+    private String[] ewalletCurrencies;
+
+    // applied deposits minus applied withdrawals per currency
+    private final Map<String, BigDecimal> expectedChange = new ConcurrentHashMap<>();
+
+    @Test
+    void testThat_MoneyIsConservedUnderConcurrentLoad() throws Exception {
+        seed();
+        Map<String, BigDecimal> initialTotals = totalsByCurrency();
+        Arrays.stream(CURRENCIES).forEach(currency -> expectedChange.put(currency, BigDecimal.ZERO));
+
+        ExecutorService clients = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<Request, long[]>>> results = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            results.add(clients.submit(() -> {
+                start.await();
+                return runClient();
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        Map<Request, List<long[]>> latencies = new EnumMap<>(Request.class);
+        for (Future<Map<Request, long[]>> result : results) {
+            result.get().forEach((request, nanos) -> latencies.computeIfAbsent(request, r -> new ArrayList<>()).add(nanos));
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        clients.shutdown();
+
+        report(latencies, elapsedNanos);
+
+        Map<String, BigDecimal> finalTotals = totalsByCurrency();
+        for (String currency : CURRENCIES) {
+            assertEquals(0, initialTotals.get(currency).add(expectedChange.get(currency)).compareTo(finalTotals.get(currency)),
+                    "Money of " + currency + " is not conserved");
+        }
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE amount < 0", Integer.class));
+        assertTrue(journalService.verifyBalances().isEmpty(), "Journal does not match balances");
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM (SELECT owner, currency, SUM(amount) amount, COUNT(*) n " +
+                "FROM Ewallet GROUP BY owner, currency) e LEFT JOIN Owner_balance_summary s " +
+                "ON s.owner = e.owner AND s.currency = e.currency " +
+                "WHERE s.owner IS NULL OR s.amount <> e.amount OR s.ewallet_count <> e.n", Integer.class),
+                "Owner summaries do not match balances");
+    }
+
+    // returns latencies in nanoseconds per request type
+    private Map<Request, long[]> runClient() {
+        Map<Request, long[]> latencies = new EnumMap<>(Request.class);
+        Map<Request, Integer> counts = new EnumMap<>(Request.class);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < operationsPerThread; i++) {
+            Request request = Request.values()[random.nextInt(Request.values().length)];
+            BigDecimal amount = BigDecimal.valueOf(random.nextInt(1, 5000), 2);
+            long startNanos = System.nanoTime();
+            switch (request) {
+                case DEPOSIT:
+                case WITHDRAW:
+                    int index = random.nextInt(ewalletIds.length);
+                    OperationType type = request == Request.DEPOSIT ? OperationType.DEPOSIT : OperationType.WITHDRAW;
+                    ResponseEntity<String> response = restTemplate.exchange("/ewallet/" + type.name().toLowerCase(),
+                            HttpMethod.PUT, new HttpEntity<>(operation(index, null, Money.of(amount))), String.class);
+                    if (response.getStatusCode().is2xxSuccessful()) {
+                        BigDecimal change = type == OperationType.DEPOSIT ? amount : amount.negate();
+                        expectedChange.merge(ewalletCurrencies[index], change, BigDecimal::add);
+                    }
+                    break;
+                case TRANSFER:
+                    int from = random.nextInt(ewalletIds.length);
+                    int to = sameCurrencyEwallet(from, random);
+                    restTemplate.exchange("/ewallet/transfer", HttpMethod.PUT,
+                            new HttpEntity<>(new Operation[] {operation(from, OperationType.WITHDRAW, Money.of(amount)), operation(to, null, null)}),
+                            String.class);
+                    break;
+            }
+            long[] nanos = latencies.computeIfAbsent(request, r -> new long[operationsPerThread]);
+            int count = counts.merge(request, 1, Integer::sum);
+            nanos[count - 1] = System.nanoTime() - startNanos;
+        }
+        counts.forEach((request, count) -> latencies.put(request, Arrays.copyOf(latencies.get(request), count)));
+        return latencies;
+    }
+
+    private int sameCurrencyEwallet(int from, ThreadLocalRandom random) {
+        // e-wallets are seeded as EUR, USD per owner, so the same currency is at the same parity
+        int to = from;
+        while (to == from) {
+            to = random.nextInt(ewalletIds.length / CURRENCIES.length) * CURRENCIES.length + from % CURRENCIES.length;
+        }
+        return to;
+    }
+
+    private Operation operation(int index, OperationType type, Money amount) {
+        Operation operation = new Operation();
+        operation.setOwnerId(ewalletOwners[index]);
+        operation.setEwalletId(ewalletIds[index]);
+        operation.setType(type);
+        operation.setAmount(amount);
+        return operation;
+    }
+
+    private void seed() {
+        List<Object[]> owners = new ArrayList<>(ownerCount);
+        for (int i = 0; i < ownerCount; i++) {
+            owners.add(new Object[] {"Owner " + i, "owner" + i + "@stress.test"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO Owner (name, email) VALUES (?, ?)", owners);
+        List<Long> ownerIds = jdbcTemplate.queryForList(
+                "SELECT id FROM Owner WHERE email LIKE '%@stress.test' ORDER BY id", Long.class);
+
+        List<Object[]> ewallets = new ArrayList<>(ownerIds.size() * CURRENCIES.length);
+        for (Long ownerId : ownerIds) {
+            for (String currency : CURRENCIES) {
+                ewallets.add(new Object[] {ownerId, currency, new BigDecimal("100.00"), "Stress " + currency + " wallet"});
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, ?, ?, ?)", ewallets);
+        jdbcTemplate.update("INSERT INTO Balance_snapshot (ewallet_id, journal_id, amount, create_date_time) " +
+                "SELECT e.id, 0, e.amount, CURRENT_TIMESTAMP() FROM Ewallet e " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Balance_snapshot s WHERE s.ewallet_id = e.id)");
+        ownerSummaryService.rebuildSummaries();
+
+        List<Object[]> rows = jdbcTemplate.query("SELECT e.id, e.owner, e.currency FROM Ewallet e " +
+                        "JOIN Owner o ON o.id = e.owner WHERE o.email LIKE '%@stress.test' ORDER BY e.owner, e.currency",
+                (rs, rowNum) -> new Object[] {rs.getLong(1), rs.getLong(2), rs.getString(3)});
+        ewalletIds = rows.stream().mapToLong(row -> (Long) row[0]).toArray();
+        ewalletOwners = rows.stream().mapToLong(row -> (Long) row[1]).toArray();
+        ewalletCurrencies = rows.stream().map(row -> (String) row[2]).toArray(String[]::new);
+    }
+
+    private Map<String, BigDecimal> totalsByCurrency() {
+        Map<String, BigDecimal> totals = new TreeMap<>();
+        jdbcTemplate.query("SELECT currency, SUM(amount) FROM Ewallet GROUP BY currency",
+                rs -> { totals.put(rs.getString(1), rs.getBigDecimal(2)); });
+        return totals;
+    }
+
+    private void report(Map<Request, List<long[]>> latencies, long elapsedNanos) {
+        long total = 0;
+        for (Map.Entry<Request, List<long[]>> entry : latencies.entrySet()) {
+            long[] nanos = entry.getValue().stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            total += nanos.length;
+            log.info("{}: {} requests, p50 {} ms, p99 {} ms, p999 {} ms, max {} ms", entry.getKey(), nanos.length,
+                    millis(percentile(nanos, 0.50)), millis(percentile(nanos, 0.99)),
+                    millis(percentile(nanos, 0.999)), millis(nanos[nanos.length - 1]));
+        }
+        log.info("{} requests from {} threads over {} e-wallets in {} ms, {} requests/s", total, threadCount,
+                ewalletIds.length, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                String.format("%.1f", total * 1e9 / elapsedNanos));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
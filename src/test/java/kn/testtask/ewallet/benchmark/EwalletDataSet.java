@@ -0,0 +1,84 @@
+package kn.testtask.ewallet.benchmark;
+
+import kn.testtask.ewallet.TesttaskEwalletApplication;
+import kn.testtask.ewallet.service.OwnerSummaryService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Application context on its own in-memory H2 database, seeded with walletCount e-wallets.
+ * Every owner has two EUR e-wallets, so any owner can make a transfer between its own e-wallets.
+ * With probability skew an operation goes to the hot 1% of owners instead of a uniformly chosen one.
+ */
+@State(Scope.Benchmark)
+public class EwalletDataSet {
+
+    @Param({"1000", "100000"})
+    public int walletCount;
+
+    @Param({"0.0", "0.9"})
+    public double skew;
+
+    public ConfigurableApplicationContext context;
+
+    // ewallets[2 * i] and ewallets[2 * i + 1] belong to owners[i]
+    public long[] owners;
+
+    public long[] ewallets;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = SpringApplication.run(TesttaskEwalletApplication.class,
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:benchmark-" + UUID.randomUUID(),
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN");
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+
+        int ownerCount = Math.max(1, walletCount / 2);
+        List<Object[]> ownerRows = new ArrayList<>(ownerCount);
+        for (int i = 0; i < ownerCount; i++) {
+            ownerRows.add(new Object[] {"Owner " + i, "owner" + i + "@benchmark.test"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO Owner (name, email) VALUES (?, ?)", ownerRows);
+        List<Long> ownerIds = jdbcTemplate.queryForList(
+                "SELECT id FROM Owner WHERE email LIKE '%@benchmark.test' ORDER BY id", Long.class);
+
+        List<Object[]> ewalletRows = new ArrayList<>(ownerIds.size() * 2);
+        for (Long ownerId : ownerIds) {
+            ewalletRows.add(new Object[] {ownerId, "EUR", 1_000_000, "Benchmark EUR wallet"});
+            ewalletRows.add(new Object[] {ownerId, "EUR", 1_000_000, "Benchmark second EUR wallet"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, ?, ?, ?)", ewalletRows);
+        context.getBean(OwnerSummaryService.class).rebuildSummaries();
+        List<Long> ewalletIds = jdbcTemplate.queryForList(
+                "SELECT e.id FROM Ewallet e JOIN Owner o ON o.id = e.owner " +
+                "WHERE o.email LIKE '%@benchmark.test' ORDER BY e.owner, e.id", Long.class);
+
+        owners = ownerIds.stream().mapToLong(Long::longValue).toArray();
+        ewallets = ewalletIds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    public int nextOwnerIndex() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int hotOwners = Math.max(1, owners.length / 100);
+        return random.nextDouble() < skew ? random.nextInt(hotOwners) : random.nextInt(owners.length);
+    }
+}
@@ -0,0 +1,69 @@
+package kn.testtask.ewallet.benchmark;
+
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerView;
+import kn.testtask.ewallet.service.EwalletQueryService;
+import kn.testtask.ewallet.service.OwnerQueryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Services behind the GET endpoints of /ewallet and /owner against the seeded H2 data set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EwalletQueryBenchmark {
+
+    private EwalletQueryService ewalletQueryService;
+
+    private OwnerQueryService ownerQueryService;
+
+    @Setup(Level.Trial)
+    public void setUp(EwalletDataSet dataSet) {
+        ewalletQueryService = dataSet.context.getBean(EwalletQueryService.class);
+        ownerQueryService = dataSet.context.getBean(OwnerQueryService.class);
+    }
+
+    @Benchmark
+    public Money balance(EwalletDataSet dataSet) {
+        return ewalletQueryService.getBalance(dataSet.ewallets[2 * dataSet.nextOwnerIndex()]);
+    }
+
+    @Benchmark
+    public List<EwalletView> ewalletsOfOwner(EwalletDataSet dataSet) {
+        return ewalletQueryService.getEwalletsByOwner(dataSet.owners[dataSet.nextOwnerIndex()]);
+    }
+
+    @Benchmark
+    public OwnerView owner(EwalletDataSet dataSet) {
+        return ownerQueryService.getOwnerById(dataSet.owners[dataSet.nextOwnerIndex()]);
+    }
+
+    @Benchmark
+    public KeysetPage<EwalletView> firstEwalletsPage() {
+        return ewalletQueryService.getEwalletsPage(null, 100);
+    }
+
+    @Benchmark
+    public KeysetPage<OwnerView> firstOwnersPage() {
+        return ownerQueryService.getOwnersPage(null, 100);
+    }
+}
@@ -0,0 +1,85 @@
+package kn.testtask.ewallet.benchmark;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.service.EwalletService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write paths of EwalletService against the seeded H2 data set.
+ * Run with the benchmark profile: mvn -P benchmark verify -Djmh.threads=8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EwalletServiceBenchmark {
+
+    private static final Money AMOUNT = Money.of("0.01");
+
+    private EwalletService ewalletService;
+
+    @Setup(Level.Trial)
+    public void setUp(EwalletDataSet dataSet) {
+        ewalletService = dataSet.context.getBean(EwalletService.class);
+    }
+
+    @Benchmark
+    public Ewallet deposit(EwalletDataSet dataSet) {
+        int ownerIndex = dataSet.nextOwnerIndex();
+        return ewalletService.processEwalletOperation(operation(dataSet, ownerIndex, 2 * ownerIndex, OperationType.DEPOSIT));
+    }
+
+    @Benchmark
+    public Ewallet withdraw(EwalletDataSet dataSet) {
+        int ownerIndex = dataSet.nextOwnerIndex();
+        return ewalletService.processEwalletOperation(operation(dataSet, ownerIndex, 2 * ownerIndex, OperationType.WITHDRAW));
+    }
+
+    @Benchmark
+    public boolean transfer(EwalletDataSet dataSet) {
+        int ownerIndex = dataSet.nextOwnerIndex();
+        // random direction keeps both e-wallets of the owner funded
+        int from = 2 * ownerIndex + ThreadLocalRandom.current().nextInt(2);
+        int to = from % 2 == 0 ? from + 1 : from - 1;
+        return ewalletService.processEwalletTransfer(new Operation[] {
+                operation(dataSet, ownerIndex, from, OperationType.WITHDRAW),
+                operation(dataSet, ownerIndex, to, OperationType.DEPOSIT)
+        });
+    }
+
+    @Benchmark
+    public Ewallet addEwallet(EwalletDataSet dataSet) {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setOwner(dataSet.owners[dataSet.nextOwnerIndex()]);
+        ewallet.setCurrency("USD");
+        ewallet.setName("Benchmark USD wallet");
+        return ewalletService.addEwallet(ewallet);
+    }
+
+    private static Operation operation(EwalletDataSet dataSet, int ownerIndex, int ewalletIndex, OperationType type) {
+        Operation operation = new Operation();
+        operation.setOwnerId(dataSet.owners[ownerIndex]);
+        operation.setEwalletId(dataSet.ewallets[ewalletIndex]);
+        operation.setType(type);
+        operation.setAmount(AMOUNT);
+        return operation;
+    }
+}
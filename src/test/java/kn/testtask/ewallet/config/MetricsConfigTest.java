@@ -0,0 +1,56 @@
+package kn.testtask.ewallet.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsConfigTest {
+
+    private HikariDataSource primary;
+
+    private HikariDataSource replica;
+
+    @BeforeEach
+    public void setUp() {
+        this.primary = pool("primary");
+        this.replica = pool("replica");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        primary.close();
+        replica.close();
+    }
+
+    private static HikariDataSource pool(String name) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setJdbcUrl("jdbc:h2:mem:metrics-" + name);
+        pool.setPoolName(name);
+        return pool;
+    }
+
+    @Test
+    void testThat_EveryRoutedPoolGetsItsConnectionGauges() throws SQLException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+        new MetricsConfig().connectionPoolMetrics(new ReadWriteRoutingDataSource(primary, replica)).bindTo(registry);
+        try (Connection connection = replica.getConnection()) {
+            assertEquals(1, registry.get("hikaricp.connections.active").tag("pool", "replica").gauge().value());
+        }
+        try (Connection connection = primary.getConnection()) {
+            assertNotNull(registry.get("hikaricp.connections.max").tag("pool", "primary").gauge());
+        }
+    }
+
+    @Test
+    void testThat_PlainPoolIsLeftToTheActuator() {
+        assertTrue(MetricsConfig.routedPools(primary).isEmpty());
+    }
+}
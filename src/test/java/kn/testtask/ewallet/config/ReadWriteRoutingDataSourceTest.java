@@ -0,0 +1,68 @@
+package kn.testtask.ewallet.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadWriteRoutingDataSourceTest {
+
+    private DataSource primary;
+
+    private DataSource replica;
+
+    private ReadWriteRoutingDataSource routingDataSource;
+
+    private final AtomicBoolean replicaUsable = new AtomicBoolean(true);
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        this.primary = Mockito.mock(DataSource.class);
+        this.replica = Mockito.mock(DataSource.class);
+        Mockito.when(primary.getConnection()).thenReturn(Mockito.mock(Connection.class));
+        Mockito.when(replica.getConnection()).thenReturn(Mockito.mock(Connection.class));
+        this.routingDataSource = new ReadWriteRoutingDataSource(primary, replica);
+        this.routingDataSource.setReplicaUsable(replicaUsable::get);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+    }
+
+    // the target connection is taken on the first statement
+    private void execute() throws SQLException {
+        try (Connection connection = routingDataSource.getConnection()) {
+            connection.createStatement();
+        }
+    }
+
+    @Test
+    void testThat_OnlyReadOnlyTransactionsGoToTheReplica() throws SQLException {
+        execute();
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        execute();
+
+        Mockito.verify(replica, Mockito.times(1)).getConnection();
+        assertEquals(1, routingDataSource.getReplicaConnections());
+        assertEquals(1, routingDataSource.getPrimaryConnections());
+    }
+
+    @Test
+    void testThat_ReadOnlyTransactionsGoToThePrimaryWhileReplicaLagsTooMuch() throws SQLException {
+        replicaUsable.set(false);
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        execute();
+
+        Mockito.verify(replica, Mockito.never()).getConnection();
+        assertEquals(0, routingDataSource.getReplicaConnections());
+    }
+}
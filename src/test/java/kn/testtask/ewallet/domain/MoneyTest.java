@@ -0,0 +1,57 @@
+package kn.testtask.ewallet.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoneyTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testThat_DecimalIsStoredAsMinorUnits() {
+        assertEquals(1050, Money.of("10.5").getMinorUnits());
+        assertEquals(1050, Money.of(new BigDecimal("10.500")).getMinorUnits());
+        assertEquals(-100, Money.of(BigDecimal.ONE.negate()).getMinorUnits());
+    }
+
+    @Test
+    void testThat_MoreThanTwoDecimalsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Money.of("10.505"));
+    }
+
+    @Test
+    void testThat_ArithmeticWorksOnMinorUnits() {
+        assertEquals(Money.of("0.30"), Money.of("0.10").plus(Money.of("0.20")));
+        assertEquals(Money.of("-0.10"), Money.of("0.10").minus(Money.of("0.20")));
+        assertTrue(Money.of("0.01").compareTo(Money.ZERO) > 0);
+        assertThrows(ArithmeticException.class, () -> Money.ofMinorUnits(Long.MAX_VALUE).plus(Money.of("0.01")));
+    }
+
+    @Test
+    void testThat_AmountMustFitMinorUnitOfCurrency() {
+        assertTrue(Money.of("10.55").fitsCurrency("EUR"));
+        assertTrue(Money.of("10").fitsCurrency("JPY"));
+        assertFalse(Money.of("10.50").fitsCurrency("JPY"));
+        assertTrue(Money.of("10.50").fitsCurrency("unknown"));
+    }
+
+    @Test
+    void testThat_ConvertedAmountIsRoundedToMinorUnitOfCurrency() {
+        assertEquals(Money.of("11.85"), Money.of("10").convert(new BigDecimal("1.1850"), "USD"));
+        assertEquals(Money.of("0.02"), Money.of("0.01").convert(new BigDecimal("2.5"), "USD"));
+        assertEquals(Money.of("1602"), Money.of("10.01").convert(new BigDecimal("160.0500"), "JPY"));
+        assertTrue(Money.of("1602").fitsCurrency("JPY"));
+    }
+
+    @Test
+    void testThat_JsonIsPlainDecimal() throws Exception {
+        assertEquals("10.50", objectMapper.writeValueAsString(Money.of("10.5")));
+        assertEquals(Money.of("10.5"), objectMapper.readValue("10.5", Money.class));
+        assertEquals(Money.of("7"), objectMapper.readValue("7", Money.class));
+        assertEquals(Money.of("10.5"), objectMapper.readValue("\"10.50\"", Money.class));
+    }
+}
@@ -0,0 +1,63 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.AdmissionLimits;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    private AdmissionControl admissionControl;
+
+    @BeforeEach
+    public void setUp() {
+        // 1 token per second with a burst of 2, so nothing is refilled during a test
+        this.admissionControl = new AdmissionControl(true, 1, 2, 10, 64);
+    }
+
+    private String admit(Long... ownerIds) {
+        return admissionControl.executeAdmitted(Arrays.asList(ownerIds), () -> "done");
+    }
+
+    @Test
+    void testThat_OwnerOverItsRateIsRejectedAndOthersAreNot() {
+        assertEquals("done", admit(1l));
+        assertEquals("done", admit(1l));
+        AdmissionRejectedException ex = assertThrows(AdmissionRejectedException.class, () -> admit(1l));
+        assertTrue(ex.getRetryAfterMillis() > 0 && ex.getRetryAfterMillis() <= 1000);
+        assertEquals("done", admit(2l));
+        assertEquals(1, admissionControl.getRejectedByRate());
+        assertEquals(3, admissionControl.getAdmitted());
+    }
+
+    @Test
+    void testThat_RejectedTransferTakesNoTokenOfOtherOwner() {
+        admit(2l);
+        admit(2l);
+        assertThrows(AdmissionRejectedException.class, () -> admit(1l, 2l));
+        // owner 1 still has its burst of 2
+        assertEquals("done", admit(1l));
+        assertEquals("done", admit(1l));
+    }
+
+    @Test
+    void testThat_ConcurrencyAndLimitsCanBeChangedAtRuntime() {
+        assertNotNull(admissionControl.updateLimits(new AdmissionLimits(true, 1, 2, 1)));
+
+        AdmissionRejectedException ex = assertThrows(AdmissionRejectedException.class,
+                () -> admissionControl.executeAdmitted(Collections.singletonList(1l), () -> admit(2l)));
+        assertEquals(1000, ex.getRetryAfterMillis());
+        assertEquals(1, admissionControl.getRejectedByConcurrency());
+        assertEquals(0, admissionControl.getInProgress());
+
+        assertNull(admissionControl.updateLimits(new AdmissionLimits(true, 0, 2, 1)));
+        assertNotNull(admissionControl.updateLimits(new AdmissionLimits(false, 1, 2, 1)));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("done", admit(3l));
+        }
+    }
+}
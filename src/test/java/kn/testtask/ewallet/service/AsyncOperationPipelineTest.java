@@ -0,0 +1,206 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.AsyncOperationState;
+import kn.testtask.ewallet.domain.AsyncOperationStatus;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
+import kn.testtask.ewallet.domain.OperationType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncOperationPipelineTest {
+
+    private AsyncOperationPipeline pipeline;
+
+    @Mock
+    private EwalletService ewalletService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private DepositCoalescer depositCoalescer;
+
+    @BeforeEach
+    public void setUp() {
+        this.ewalletService = Mockito.mock(EwalletService.class);
+        this.transactionManager = Mockito.mock(PlatformTransactionManager.class);
+        this.depositCoalescer = Mockito.mock(DepositCoalescer.class);
+        // one worker and a long linger, so everything submitted at once lands in one group
+        this.pipeline = new AsyncOperationPipeline(this.ewalletService, new EwalletLockRegistry(64, 5000), new AdmissionControl(false, 1, 1, 1, 1), this.depositCoalescer,
+                new ShardRouter(this.transactionManager, 1, 500), Mockito.mock(ShardedTransferService.class), this.transactionManager, 2, 10, 64, 300, 1, 60000, true);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        this.pipeline.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_QueuedOperationsAreAppliedInOneTransaction() throws InterruptedException {
+        Mockito.when(ewalletService.processEwalletOperations(ArgumentMatchers.anyList())).thenAnswer(invocation -> {
+            List<OperationResult> results = new ArrayList<>();
+            List<Operation> operations = invocation.getArgument(0);
+            for (int i = 0; i < operations.size(); i++) {
+                results.add(i == 0
+                        ? OperationResult.applied(i, operations.get(i).getEwalletId(), Money.of("11"))
+                        : OperationResult.rejected(i, operations.get(i).getEwalletId(), "Not enough funds."));
+            }
+            return results;
+        });
+
+        String deposit = pipeline.submitOperation(operation(1l, OperationType.DEPOSIT));
+        String withdraw = pipeline.submitOperation(operation(2l, OperationType.WITHDRAW));
+        assertEquals(AsyncOperationState.PENDING, pipeline.getStatus(deposit).getState());
+
+        AsyncOperationStatus depositStatus = awaitCompletion(deposit);
+        AsyncOperationStatus withdrawStatus = awaitCompletion(withdraw);
+
+        assertEquals(AsyncOperationState.APPLIED, depositStatus.getState());
+        assertEquals(Money.of("11"), depositStatus.getAmount());
+        assertEquals(AsyncOperationState.REJECTED, withdrawStatus.getState());
+        assertEquals("Not enough funds.", withdrawStatus.getMessage());
+        Mockito.verify(ewalletService, Mockito.times(1)).processEwalletOperations(ArgumentMatchers.anyList());
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+        // the coalesced deposits of the withdrawn e-wallet are applied first
+        InOrder inOrder = Mockito.inOrder(depositCoalescer, ewalletService);
+        inOrder.verify(depositCoalescer).flush(Collections.singletonList(2l));
+        inOrder.verify(ewalletService).processEwalletOperations(ArgumentMatchers.anyList());
+    }
+
+    @Test
+    void testThat_TransferIsAppliedInQueueOrder() throws InterruptedException {
+        Mockito.when(ewalletService.processEwalletTransfer(ArgumentMatchers.any())).thenReturn(true);
+
+        String transfer = pipeline.submitTransfer(new Operation[] {operation(1l, OperationType.WITHDRAW), operation(2l, OperationType.DEPOSIT)});
+
+        assertEquals(AsyncOperationState.APPLIED, awaitCompletion(transfer).getState());
+        Mockito.verify(ewalletService, Mockito.never()).processEwalletOperations(ArgumentMatchers.anyList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_AllEwalletsOfTheGroupAreLockedInIdOrderFirst() throws InterruptedException {
+        Mockito.when(ewalletService.processEwalletOperations(ArgumentMatchers.anyList()))
+                .thenReturn(Collections.singletonList(OperationResult.applied(0, 9l, Money.of("1"))));
+        Mockito.when(ewalletService.processEwalletTransfer(ArgumentMatchers.any())).thenReturn(true);
+
+        String deposit = pipeline.submitOperation(operation(9l, OperationType.DEPOSIT));
+        String transfer = pipeline.submitTransfer(new Operation[] {operation(7l, OperationType.WITHDRAW), operation(2l, OperationType.DEPOSIT)});
+        awaitCompletion(deposit);
+        awaitCompletion(transfer);
+
+        InOrder inOrder = Mockito.inOrder(ewalletService);
+        inOrder.verify(ewalletService).lockEwallets(ArgumentMatchers.argThat(ids -> new ArrayList<>(ids).equals(Arrays.asList(2l, 7l, 9l))));
+        inOrder.verify(ewalletService).processEwalletOperations(ArgumentMatchers.anyList());
+        inOrder.verify(ewalletService).processEwalletTransfer(ArgumentMatchers.any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_FullQueueRejectsSubmission() throws InterruptedException {
+        pipeline.shutdown();
+        pipeline = new AsyncOperationPipeline(this.ewalletService, new EwalletLockRegistry(64, 5000), new AdmissionControl(false, 1, 1, 1, 1), this.depositCoalescer,
+                new ShardRouter(this.transactionManager, 1, 500), Mockito.mock(ShardedTransferService.class), this.transactionManager, 2, 1, 64, 0, 1, 60000, true);
+        CountDownLatch applying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(ewalletService.processEwalletOperations(ArgumentMatchers.anyList())).thenAnswer(invocation -> {
+            applying.countDown();
+            release.await();
+            return Collections.singletonList(OperationResult.applied(0, 1l, Money.of("1")));
+        });
+
+        assertNotNull(pipeline.submitOperation(operation(1l, OperationType.DEPOSIT)));
+        assertTrue(applying.await(5, TimeUnit.SECONDS));
+        // the worker is busy, so the queue of 2 fills up
+        assertNotNull(pipeline.submitOperation(operation(1l, OperationType.DEPOSIT)));
+        assertNotNull(pipeline.submitOperation(operation(1l, OperationType.DEPOSIT)));
+        assertNull(pipeline.submitOperation(operation(1l, OperationType.DEPOSIT)));
+        release.countDown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_GroupSpansAtMostMaxStripes() throws InterruptedException {
+        pipeline.shutdown();
+        pipeline = new AsyncOperationPipeline(this.ewalletService, new EwalletLockRegistry(64, 5000), new AdmissionControl(false, 1, 1, 1, 1), this.depositCoalescer,
+                new ShardRouter(this.transactionManager, 1, 500), Mockito.mock(ShardedTransferService.class), this.transactionManager, 10, 10, 2, 300, 1, 60000, true);
+        List<Integer> groupSizes = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(ewalletService.processEwalletOperations(ArgumentMatchers.anyList())).thenAnswer(invocation -> {
+            List<Operation> operations = invocation.getArgument(0);
+            groupSizes.add(operations.size());
+            List<OperationResult> results = new ArrayList<>();
+            for (int i = 0; i < operations.size(); i++) {
+                results.add(OperationResult.applied(i, operations.get(i).getEwalletId(), Money.of("1")));
+            }
+            return results;
+        });
+
+        // e-wallets 1, 2 and 3 are on three stripes, the second deposit to 1 adds none
+        String last = null;
+        for (long ewalletId : new long[] {1, 2, 1, 3}) {
+            last = pipeline.submitOperation(operation(ewalletId, OperationType.DEPOSIT));
+        }
+
+        assertEquals(AsyncOperationState.APPLIED, awaitCompletion(last).getState());
+        assertEquals(java.util.Arrays.asList(3, 1), groupSizes);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_SubmissionOverOwnerRateIsRejectedBeforeQueueing() throws InterruptedException {
+        pipeline.shutdown();
+        // a bucket of one token, refilled once a second
+        pipeline = new AsyncOperationPipeline(this.ewalletService, new EwalletLockRegistry(64, 5000), new AdmissionControl(true, 1, 1, 10, 64), this.depositCoalescer,
+                new ShardRouter(this.transactionManager, 1, 500), Mockito.mock(ShardedTransferService.class), this.transactionManager, 10, 10, 64, 300, 1, 60000, true);
+        Mockito.when(ewalletService.processEwalletOperations(ArgumentMatchers.anyList()))
+                .thenReturn(Collections.singletonList(OperationResult.applied(0, 1l, Money.of("1"))));
+
+        String deposit = pipeline.submitOperation(operation(1l, OperationType.DEPOSIT));
+        assertThrows(AdmissionRejectedException.class, () -> pipeline.submitOperation(operation(2l, OperationType.WITHDRAW)));
+        assertThrows(AdmissionRejectedException.class, () -> pipeline.submitTransfer(
+                new Operation[] {operation(1l, OperationType.WITHDRAW), operation(2l, OperationType.DEPOSIT)}));
+
+        assertEquals(AsyncOperationState.APPLIED, awaitCompletion(deposit).getState());
+        Mockito.verify(ewalletService).processEwalletOperations(ArgumentMatchers.argThat(operations -> operations.size() == 1));
+        Mockito.verify(ewalletService, Mockito.never()).processEwalletTransfer(ArgumentMatchers.any());
+    }
+
+    private AsyncOperationStatus awaitCompletion(String operationId) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            AsyncOperationStatus status = pipeline.getStatus(operationId);
+            if (status.getState() != AsyncOperationState.PENDING) {
+                return status;
+            }
+            Thread.sleep(20);
+        }
+        fail("Operation " + operationId + " was not applied");
+        return null;
+    }
+
+    private Operation operation(Long ewalletId, OperationType type) {
+        Operation operation = new Operation();
+        operation.setEwalletId(ewalletId);
+        operation.setOwnerId(1l);
+        operation.setType(type);
+        operation.setAmount(Money.of("1"));
+        return operation;
+    }
+}
@@ -0,0 +1,115 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OperationType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceStreamBrokerTest {
+
+    private BalanceStreamBroker balanceStreamBroker;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() {
+        this.balanceStreamBroker = new BalanceStreamBroker(Mockito.mock(EwalletQueryService.class), 2, 2, 60000, 1, 60000, 100);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        this.balanceStreamBroker.shutdown();
+    }
+
+    private static BalanceChangedEvent deposit(Long ownerId) {
+        return new BalanceChangedEvent(1l, ownerId, "EUR", OperationType.DEPOSIT, Money.of("1"), Money.of("1"));
+    }
+
+    // counts the events written to the client, the first write blocks until released when blocking
+    private SseEmitter emitter(AtomicInteger sent, boolean blocking) {
+        return new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) throws IOException {
+                if (blocking) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                sent.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    void testThat_OnlySubscribersOfTheOwnerGetTheChange() throws InterruptedException {
+        AtomicInteger ownerSent = new AtomicInteger();
+        AtomicInteger otherSent = new AtomicInteger();
+        balanceStreamBroker.register(1l, emitter(ownerSent, false));
+        balanceStreamBroker.register(2l, emitter(otherSent, false));
+
+        balanceStreamBroker.onBalanceChanged(deposit(1l));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ownerSent.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, ownerSent.get());
+        assertEquals(0, otherSent.get());
+        assertEquals(1, balanceStreamBroker.getSentEvents());
+    }
+
+    @Test
+    void testThat_SlowSubscriberIsDroppedWithoutBlockingTheWriter() {
+        BalanceStreamBroker.Subscriber slow = balanceStreamBroker.register(1l, emitter(new AtomicInteger(), true));
+
+        // the sender blocks on the first event, two more fill the buffer, the fourth one drops the subscriber
+        for (int i = 0; i < 4; i++) {
+            balanceStreamBroker.onBalanceChanged(deposit(1l));
+        }
+
+        assertTrue(slow.isClosed());
+        assertEquals(1, balanceStreamBroker.getDroppedSubscribers());
+        assertEquals(0, balanceStreamBroker.getSubscriberCount());
+    }
+
+    @Test
+    void testThat_StalledSubscriberIsDroppedAndFreesTheSender() throws InterruptedException {
+        BalanceStreamBroker.Subscriber stalled = balanceStreamBroker.register(1l, emitter(new AtomicInteger(), true));
+        balanceStreamBroker.onBalanceChanged(deposit(1l));
+
+        // the only sender is blocked by the stalled write until the send timeout drops the subscriber
+        AtomicInteger otherSent = new AtomicInteger();
+        balanceStreamBroker.register(2l, emitter(otherSent, false));
+        balanceStreamBroker.onBalanceChanged(deposit(2l));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (otherSent.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(stalled.isClosed());
+        assertEquals(1, balanceStreamBroker.getDroppedSubscribers());
+        assertEquals(1, otherSent.get());
+        assertEquals(1, balanceStreamBroker.getSubscriberCount());
+    }
+
+    @Test
+    void testThat_SubscribersAreLimited() {
+        assertNotNull(balanceStreamBroker.register(1l, emitter(new AtomicInteger(), false)));
+        assertNotNull(balanceStreamBroker.register(2l, emitter(new AtomicInteger(), false)));
+        assertNull(balanceStreamBroker.register(3l, emitter(new AtomicInteger(), false)));
+    }
+}
@@ -0,0 +1,68 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BulkFormat;
+import kn.testtask.ewallet.domain.BulkResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:bulk", "ewallet.bulk.chunk-size=2"})
+class BulkDataServiceTest {
+
+    @Autowired
+    private BulkDataService bulkDataService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private static ByteArrayInputStream input(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testThat_ImportedOwnersAndEwalletsAreExported() throws IOException {
+        BulkResult owners = bulkDataService.importOwners(BulkFormat.NDJSON, input(
+                "{\"name\":\"George\",\"email\":\"george@bulk.test\"}\n" +
+                "{\"name\":\"Brian\",\"email\":\"brian@bulk.test\"}\n" +
+                "{\"name\":\"Pete\",\"email\":\"pete@bulk.test\"}\n"));
+        assertNull(owners.getError());
+        assertEquals(3, owners.getRows());
+        assertEquals(2, owners.getChunks());
+
+        BulkResult ewallets = bulkDataService.importEwallets(BulkFormat.CSV, input(
+                "name,ownerEmail,currency,amount\n" +
+                "George EUR,george@bulk.test,EUR,12.50\n" +
+                "Pete USD,pete@bulk.test,USD,0\n"));
+        assertNull(ewallets.getError());
+        assertEquals(2, ewallets.getRows());
+        assertEquals(new BigDecimal("12.50"), jdbcTemplate.queryForObject(
+                "SELECT e.amount FROM Ewallet e JOIN Owner o ON o.id = e.owner WHERE o.email = 'george@bulk.test'",
+                BigDecimal.class));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BulkResult export = bulkDataService.exportEwallets(BulkFormat.CSV, out);
+        String csv = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(csv.startsWith("id,owner,ownerEmail,currency,amount,name\n"));
+        assertTrue(csv.contains(",george@bulk.test,EUR,12.50,\"George EUR\""));
+        assertEquals(csv.split("\n").length - 1, export.getRows());
+    }
+
+    @Test
+    void testThat_ImportStopsAtWrongRow() {
+        BulkResult result = bulkDataService.importEwallets(BulkFormat.NDJSON, input(
+                "{\"ownerEmail\":\"nobody@bulk.test\",\"currency\":\"EUR\",\"amount\":1,\"name\":\"Nobodys wallet\"}\n"));
+
+        assertEquals(0, result.getRows());
+        assertTrue(result.getError().contains("row 1 has no known owner"));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE name = 'Nobodys wallet'", Integer.class));
+    }
+}
@@ -0,0 +1,111 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DepositCoalescerTest {
+
+    private DepositCoalescer depositCoalescer;
+
+    @Mock
+    private EwalletService ewalletService;
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(4);
+
+    private final Ewallet ewallet = new Ewallet();
+
+    private final ShardRouter shardRouter = new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.ewalletService = Mockito.mock(EwalletService.class);
+        // a long window, so everything submitted at once lands in one batch
+        this.depositCoalescer = new DepositCoalescer(this.ewalletService, new EwalletLockRegistry(64, 5000), this.shardRouter,
+                true, 300, 100, true);
+        this.ewallet.setId(1l);
+        Mockito.when(ewalletService.processCoalescedDeposits(ArgumentMatchers.eq(1l), ArgumentMatchers.anyList())).thenAnswer(invocation -> {
+            List<Ewallet> results = new ArrayList<>();
+            for (Operation operation : (List<Operation>) invocation.getArgument(1)) {
+                results.add(operation.getOwnerId().equals(1l) ? ewallet : null);
+            }
+            return results;
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    private Operation deposit(Long ownerId) {
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(ownerId);
+        operation.setType(OperationType.DEPOSIT);
+        operation.setAmount(Money.of("1"));
+        return operation;
+    }
+
+    @Test
+    void testThat_DepositsOfOneWindowAreAppliedTogether() throws Exception {
+        List<Future<Ewallet>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Long ownerId = i == 3 ? 2l : 1l;
+            results.add(callers.submit(() -> depositCoalescer.deposit(deposit(ownerId))));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(ewallet, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertNull(results.get(3).get(5, TimeUnit.SECONDS));
+        Mockito.verify(ewalletService, Mockito.times(1)).processCoalescedDeposits(ArgumentMatchers.eq(1l), ArgumentMatchers.anyList());
+        assertEquals(4, depositCoalescer.getCoalescedDeposits());
+        assertEquals(1, depositCoalescer.getAppliedBatches());
+    }
+
+    @Test
+    void testThat_FlushAppliesPendingDepositsWithoutWaitingForTheWindow() throws Exception {
+        DepositCoalescer slowCoalescer = new DepositCoalescer(this.ewalletService, new EwalletLockRegistry(64, 5000), this.shardRouter,
+                true, 60000, 100, true);
+        Future<Ewallet> result = callers.submit(() -> slowCoalescer.deposit(deposit(1l)));
+        while (slowCoalescer.getPendingBatches() == 0) {
+            Thread.sleep(1);
+        }
+
+        slowCoalescer.flush(Collections.singletonList(1l));
+
+        assertEquals(1, slowCoalescer.getAppliedBatches());
+        assertSame(ewallet, result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testThat_FlushDoesNothingIfCoalescingIsDisabled() {
+        DepositCoalescer disabledCoalescer = new DepositCoalescer(this.ewalletService, new EwalletLockRegistry(64, 5000), this.shardRouter,
+                false, 300, 100, true);
+
+        disabledCoalescer.flush(Collections.singletonList(1l));
+
+        assertFalse(disabledCoalescer.isEnabled());
+        Mockito.verifyNoInteractions(ewalletService);
+    }
+}
@@ -0,0 +1,93 @@
+package kn.testtask.ewallet.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EwalletLockRegistryTest {
+
+    @Test
+    void testThat_OperationsOnTheSameEwalletDoNotOverlap() throws Exception {
+        EwalletLockRegistry lockRegistry = new EwalletLockRegistry(16, 5000);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] futures = new Future<?>[200];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(() -> lockRegistry.executeLocked(Collections.singletonList(1l), () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    running.decrementAndGet();
+                    return null;
+                }, null));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, maxRunning.get());
+        assertEquals(200, lockRegistry.getAcquisitions());
+    }
+
+    @Test
+    void testThat_OperationsOnDifferentEwalletsRunInParallel() throws Exception {
+        EwalletLockRegistry lockRegistry = new EwalletLockRegistry(16, 5000);
+        CountDownLatch bothInside = new CountDownLatch(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> first = executor.submit(() -> lockRegistry.executeLocked(Collections.singletonList(1l),
+                    () -> meetQuietly(bothInside), false));
+            Future<Boolean> second = executor.submit(() -> lockRegistry.executeLocked(Collections.singletonList(2l),
+                    () -> meetQuietly(bothInside), false));
+            assertTrue(first.get(10, TimeUnit.SECONDS));
+            assertTrue(second.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testThat_ExecuteLockedReturnsTimeoutValueIfStripeIsBusy() throws Exception {
+        EwalletLockRegistry lockRegistry = new EwalletLockRegistry(16, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> lockRegistry.executeLocked(Collections.singletonList(1l), () -> {
+                holding.countDown();
+                return awaitQuietly(release);
+            }, false));
+            assertTrue(holding.await(10, TimeUnit.SECONDS));
+            assertEquals("timeout", lockRegistry.executeLocked(Arrays.asList(2l, 1l), () -> "done", "timeout"));
+            assertEquals(1, lockRegistry.getTimeouts());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean meetQuietly(CountDownLatch latch) {
+        latch.countDown();
+        return awaitQuietly(latch);
+    }
+
+    private static boolean awaitQuietly(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
+import kn.testtask.ewallet.domain.OperationType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EwalletOperationGatewayTest {
+
+    private EwalletOperationGateway gateway;
+
+    @Mock
+    private EwalletService ewalletService;
+
+    @BeforeEach
+    public void setUp() {
+        this.ewalletService = Mockito.mock(EwalletService.class);
+        // a bucket of one token per owner, refilled once a second
+        this.gateway = new EwalletOperationGateway(this.ewalletService, new EwalletLockRegistry(64, 5000),
+                Mockito.mock(DepositCoalescer.class), new AdmissionControl(true, 1, 1, 10, 64),
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), Mockito.mock(ShardedTransferService.class));
+    }
+
+    @Test
+    void testThat_BatchOperationOverOwnerRateIsRejectedInItsResult() {
+        Operation first = operation(1l, 10l);
+        Operation other = operation(2l, 20l);
+        Mockito.when(ewalletService.processEwalletOperations(Arrays.asList(first, other))).thenReturn(Arrays.asList(
+                OperationResult.applied(0, 10l, Money.of("1")), OperationResult.applied(1, 20l, Money.of("1"))));
+
+        List<OperationResult> results = gateway.processEwalletOperations(Arrays.asList(first, operation(1l, 11l), other));
+
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(1, results.get(1).getIndex());
+        assertEquals(11l, results.get(1).getEwalletId());
+        assertTrue(results.get(2).isSuccess());
+        assertEquals(2, results.get(2).getIndex());
+    }
+
+    @Test
+    void testThat_BatchOfOwnerWithoutTokensIsNotApplied() {
+        Operation deposit = operation(1l, 10l);
+        Mockito.when(ewalletService.processEwalletOperations(Collections.singletonList(deposit)))
+                .thenReturn(Collections.singletonList(OperationResult.applied(0, 10l, Money.of("1"))));
+
+        assertTrue(gateway.processEwalletOperations(Collections.singletonList(deposit)).get(0).isSuccess());
+        assertFalse(gateway.processEwalletOperations(Collections.singletonList(deposit)).get(0).isSuccess());
+
+        Mockito.verify(ewalletService, Mockito.times(1)).processEwalletOperations(Mockito.anyList());
+    }
+
+    @Test
+    void testThat_BatchWaitsForTheStripesOfItsEwallets() throws Exception {
+        EwalletLockRegistry lockRegistry = new EwalletLockRegistry(64, 100);
+        gateway = new EwalletOperationGateway(this.ewalletService, lockRegistry, Mockito.mock(DepositCoalescer.class),
+                new AdmissionControl(false, 1, 1, 1, 1), new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500),
+                Mockito.mock(ShardedTransferService.class));
+        ReflectionTestUtils.setField(gateway, "lockEnabled", true);
+        Operation deposit = operation(1l, 10l);
+        Mockito.when(ewalletService.processEwalletOperations(Collections.singletonList(deposit)))
+                .thenReturn(Collections.singletonList(OperationResult.applied(0, 10l, Money.of("1"))));
+
+        assertTrue(gateway.processEwalletOperations(Collections.singletonList(deposit)).get(0).isSuccess());
+        assertEquals(1, lockRegistry.getAcquisitions());
+
+        // another operation holds the stripe of e-wallet 10 longer than the wait timeout
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> lockRegistry.executeLocked(Collections.singletonList(10l), () -> {
+                locked.countDown();
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    return false;
+                }
+            }, false));
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+            OperationResult busy = gateway.processEwalletOperations(Collections.singletonList(deposit)).get(0);
+
+            assertFalse(busy.isSuccess());
+            assertEquals(1, lockRegistry.getTimeouts());
+            Mockito.verify(ewalletService, Mockito.times(1)).processEwalletOperations(Mockito.anyList());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_BatchWithdrawWaitsForPendingCoalescedDeposit() throws Exception {
+        // a long window, so the deposit is still pending when the batch comes
+        DepositCoalescer depositCoalescer = new DepositCoalescer(this.ewalletService, new EwalletLockRegistry(64, 5000),
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), true, 5000, 100, true);
+        gateway = new EwalletOperationGateway(this.ewalletService, new EwalletLockRegistry(64, 5000), depositCoalescer,
+                new AdmissionControl(false, 1, 1, 1, 1), new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500),
+                Mockito.mock(ShardedTransferService.class));
+        Ewallet ewallet = new Ewallet();
+        ewallet.setId(10l);
+        Mockito.when(ewalletService.processCoalescedDeposits(ArgumentMatchers.eq(10l), ArgumentMatchers.anyList()))
+                .thenReturn(Collections.singletonList(ewallet));
+        Operation deposit = operation(2l, 20l);
+        Operation withdraw = operation(1l, 10l);
+        withdraw.setType(OperationType.WITHDRAW);
+        Mockito.when(ewalletService.processEwalletOperations(Arrays.asList(deposit, withdraw))).thenReturn(Arrays.asList(
+                OperationResult.applied(0, 20l, Money.of("1")), OperationResult.applied(1, 10l, Money.of("0"))));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Ewallet> pending = executor.submit(() -> gateway.processEwalletOperation(operation(1l, 10l)));
+            while (depositCoalescer.getPendingBatches() == 0) {
+                Thread.sleep(5);
+            }
+
+            List<OperationResult> results = gateway.processEwalletOperations(Arrays.asList(deposit, withdraw));
+
+            assertTrue(results.get(1).isSuccess());
+            assertEquals(ewallet, pending.get(5, TimeUnit.SECONDS));
+            InOrder inOrder = Mockito.inOrder(ewalletService);
+            inOrder.verify(ewalletService).processCoalescedDeposits(ArgumentMatchers.eq(10l), ArgumentMatchers.anyList());
+            inOrder.verify(ewalletService).processEwalletOperations(Arrays.asList(deposit, withdraw));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Operation operation(Long ownerId, Long ewalletId) {
+        Operation operation = new Operation();
+        operation.setOwnerId(ownerId);
+        operation.setEwalletId(ewalletId);
+        operation.setType(OperationType.DEPOSIT);
+        operation.setAmount(Money.of("1"));
+        return operation;
+    }
+}
@@ -0,0 +1,229 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerView;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EwalletQueryServiceTest {
+
+    private EwalletQueryService ewalletQueryService;
+
+    @Mock
+    private EwalletRepository ewalletRepository;
+
+    @BeforeEach
+    public void setUp() {
+        this.ewalletRepository = Mockito.mock(EwalletRepository.class);
+        this.ewalletQueryService = new EwalletQueryService(this.ewalletRepository, null,
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), 1000, true, 100, 60000, false, 0);
+    }
+
+    @Test
+    void testThat_GetBalanceReadsEwalletOnlyOnce() {
+        Mockito.when(ewalletRepository.findAmountById(1l)).thenReturn(java.util.Optional.of(Money.of(BigDecimal.TEN)));
+
+        assertEquals(Money.of(BigDecimal.TEN), this.ewalletQueryService.getBalance(1l));
+        assertEquals(Money.of(BigDecimal.TEN), this.ewalletQueryService.getBalance(1l));
+
+        Mockito.verify(ewalletRepository, Mockito.times(1)).findAmountById(1l);
+        assertEquals(1, this.ewalletQueryService.getBalanceCacheStats().hitCount());
+        assertEquals(1, this.ewalletQueryService.getBalanceCacheStats().missCount());
+    }
+
+    @Test
+    void testThat_GetBalanceReturnsZeroIfEwalletDoesNotExist() {
+        Mockito.when(ewalletRepository.findAmountById(1l)).thenReturn(java.util.Optional.empty());
+        assertEquals(Money.ZERO, this.ewalletQueryService.getBalance(1l));
+    }
+
+    @Test
+    void testThat_BalanceChangeInvalidatesCachedBalance() {
+        Mockito.when(ewalletRepository.findAmountById(1l))
+                .thenReturn(java.util.Optional.of(Money.of(BigDecimal.TEN)))
+                .thenReturn(java.util.Optional.of(Money.of(BigDecimal.ONE)));
+        this.ewalletQueryService.getBalance(1l);
+
+        this.ewalletQueryService.onBalanceChanged(
+                new BalanceChangedEvent(1l, 1l, "EUR", OperationType.WITHDRAW, Money.of("9"), Money.of(BigDecimal.ONE)));
+
+        assertEquals(Money.of(BigDecimal.ONE), this.ewalletQueryService.getBalance(1l));
+        Mockito.verify(ewalletRepository, Mockito.times(2)).findAmountById(1l);
+    }
+
+    @Test
+    void testThat_EwalletsOfOwnerAreReadAsProjections() {
+        EwalletView ewallet = new EwalletView(1l, 1l, "EUR", Money.of(BigDecimal.TEN), "main", null);
+        Mockito.when(ewalletRepository.findViewsByOwner(1l)).thenReturn(java.util.Arrays.asList(ewallet));
+
+        assertEquals(java.util.Arrays.asList(ewallet), this.ewalletQueryService.getEwalletsByOwner(1l));
+        assertEquals(java.util.Arrays.asList(ewallet), this.ewalletQueryService.getEwalletsByOwner(1l));
+
+        Mockito.verify(ewalletRepository, Mockito.times(1)).findViewsByOwner(1l);
+        Mockito.verify(ewalletRepository, Mockito.never()).findByOwner(ArgumentMatchers.any());
+    }
+
+    @Test
+    void testThat_PageSizeIsClampedToMaxPageSize() {
+        ewalletQueryService.getEwalletsPage(null, 5000);
+        ewalletQueryService.getEwalletsPage("", 0);
+
+        Mockito.verify(ewalletRepository).findFirstViewPage(PageRequest.of(0, 1000));
+        Mockito.verify(ewalletRepository).findFirstViewPage(PageRequest.of(0, 1));
+    }
+
+    @Test
+    void testThat_CursorOfFullPageStartsTheNextPageAfterItsLastEwallet() {
+        Mockito.when(ewalletRepository.findFirstViewPage(PageRequest.of(0, 2))).thenReturn(Arrays.asList(
+                new EwalletView(5l, 1l, "EUR", Money.of("1"), "a", null),
+                new EwalletView(3l, 1l, "EUR", Money.of("10.50"), "b", null)));
+
+        KeysetPage<EwalletView> page = ewalletQueryService.getEwalletsPage(null, 2);
+        assertNotNull(page.getNextCursor());
+        KeysetPage<EwalletView> next = ewalletQueryService.getEwalletsPage(page.getNextCursor(), 2);
+
+        Mockito.verify(ewalletRepository).findViewPageAfter(1l, "EUR", Money.of("10.50"), 3l, PageRequest.of(0, 2));
+        assertTrue(next.getItems().isEmpty());
+        assertNull(next.getNextCursor());
+    }
+
+    @Test
+    void testThat_CursorKeepsNullCurrencyAndAmount() {
+        Mockito.when(ewalletRepository.findFirstViewPage(PageRequest.of(0, 1)))
+                .thenReturn(Collections.singletonList(new EwalletView(7l, 2l, null, null, "n", null)));
+
+        String cursor = ewalletQueryService.getEwalletsPage(null, 1).getNextCursor();
+        ewalletQueryService.getEwalletsPage(cursor, 1);
+
+        Mockito.verify(ewalletRepository).findViewPageAfter(2l, null, null, 7l, PageRequest.of(0, 1));
+    }
+
+    @Test
+    void testThat_MalformedCursorIsRejected() {
+        String threeParts = Base64.getUrlEncoder().encodeToString("1:EUR:10".getBytes(StandardCharsets.UTF_8));
+        String notNumber = Base64.getUrlEncoder().encodeToString("x:EUR:10:1".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class, () -> ewalletQueryService.getEwalletsPage("not a cursor!", 10));
+        assertThrows(IllegalArgumentException.class, () -> ewalletQueryService.getEwalletsPage(threeParts, 10));
+        assertThrows(IllegalArgumentException.class, () -> ewalletQueryService.getEwalletsPage(notNumber, 10));
+    }
+
+    // the keyset queries and the streamed lists against the database
+    @Nested
+    @SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:ewallet-query", "ewallet.cache.enabled=false",
+            "ewallet.datasource.replica.enabled=false"})
+    class WithDatabase {
+
+        @Autowired
+        private EwalletQueryService queryService;
+
+        @Autowired
+        private OwnerQueryService ownerQueryService;
+
+        @Autowired
+        private JdbcTemplate jdbcTemplate;
+
+        @Autowired
+        private ObjectMapper objectMapper;
+
+        @BeforeEach
+        public void setUp() {
+            if (jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE name = 'query-test'", Integer.class) > 0) {
+                return;
+            }
+            jdbcTemplate.update("INSERT INTO Owner (name, email) VALUES ('Query', 'query@query.test')");
+            Long owner = jdbcTemplate.queryForObject("SELECT id FROM Owner WHERE email = 'query@query.test'", Long.class);
+            // NULL currencies and amounts next to equal amounts, so every column of the key decides somewhere
+            String[][] ewallets = {{null, null}, {null, "1.00"}, {"EUR", null}, {"EUR", "2.00"}, {"EUR", "2.00"},
+                    {"USD", null}, {"USD", "0.00"}, {null, null}};
+            for (String[] ewallet : ewallets) {
+                jdbcTemplate.update("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, ?, ?, 'query-test')",
+                        owner, ewallet[0], ewallet[1] == null ? null : new BigDecimal(ewallet[1]));
+            }
+        }
+
+        private List<EwalletView> readAllPages(int limit) {
+            List<EwalletView> ewallets = new ArrayList<>();
+            String cursor = null;
+            do {
+                KeysetPage<EwalletView> page = queryService.getEwalletsPage(cursor, limit);
+                ewallets.addAll(page.getItems());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            return ewallets;
+        }
+
+        @Test
+        void testThat_PagesReturnEveryEwalletOnceInListOrder() {
+            int count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet", Integer.class);
+            for (int limit : new int[] {1, 2, 3}) {
+                List<EwalletView> ewallets = readAllPages(limit);
+
+                assertEquals(count, ewallets.size());
+                for (int i = 1; i < ewallets.size(); i++) {
+                    assertTrue(EwalletQueryService.LIST_ORDER.compare(ewallets.get(i - 1), ewallets.get(i)) < 0);
+                }
+            }
+        }
+
+        @Test
+        void testThat_StreamedListsHaveEveryRowInOrder() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            queryService.writeAllEwallets(out);
+            List<Long> streamedIds = new ArrayList<>();
+            for (JsonNode ewallet : objectMapper.readTree(out.toByteArray())) {
+                streamedIds.add(ewallet.get("id").asLong());
+            }
+            List<Long> pagedIds = new ArrayList<>();
+            readAllPages(3).forEach(ewallet -> pagedIds.add(ewallet.getId()));
+            assertEquals(pagedIds, streamedIds);
+
+            out.reset();
+            ownerQueryService.writeAllOwners(out);
+            JsonNode owners = objectMapper.readTree(out.toByteArray());
+            List<OwnerView> pagedOwners = new ArrayList<>();
+            String cursor = null;
+            do {
+                KeysetPage<OwnerView> page = ownerQueryService.getOwnersPage(cursor, 2);
+                pagedOwners.addAll(page.getItems());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            assertEquals(pagedOwners.size(), owners.size());
+            int ewalletCount = 0;
+            for (int i = 0; i < owners.size(); i++) {
+                assertEquals(pagedOwners.get(i).getId().longValue(), owners.get(i).get("id").asLong());
+                assertEquals(pagedOwners.get(i).getEwallets().size(), owners.get(i).get("ewallets").size());
+                ewalletCount += owners.get(i).get("ewallets").size();
+            }
+            assertEquals(streamedIds.size(), ewalletCount);
+        }
+    }
+}
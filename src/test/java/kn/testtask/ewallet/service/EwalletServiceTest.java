@@ -1,15 +1,33 @@
 package kn.testtask.ewallet.service;
 
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
 import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.FxConversion;
+import kn.testtask.ewallet.domain.FxRate;
+import kn.testtask.ewallet.domain.FxRateSnapshot;
 import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationResult;
 import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Money;
 import kn.testtask.ewallet.repository.EwalletRepository;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -23,11 +41,26 @@ class EwalletServiceTest {
     @Mock
     private OwnerService ownerService;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private FxRateService fxRateService;
+
     @BeforeEach
     public void setUp() {
         this.ewalletRepository = Mockito.mock(EwalletRepository.class);
         this.ownerService = Mockito.mock(OwnerService.class);
-        this.ewalletService = new EwalletService(this.ewalletRepository, this.ownerService);
+        this.eventPublisher = Mockito.mock(ApplicationEventPublisher.class);
+        this.fxRateService = Mockito.mock(FxRateService.class);
+        Mockito.when(fxRateService.getSnapshot()).thenReturn(new FxRateSnapshot(7, null,
+                Collections.singletonList(new FxRate("EUR", "USD", new BigDecimal("1.1850")))));
+        this.ewalletService = new EwalletService(this.ewalletRepository, this.ownerService, this.eventPublisher, this.fxRateService);
+        ReflectionTestUtils.setField(this.ewalletService, "operationMode", OperationMode.READ_MODIFY_WRITE);
+    }
+
+    private void useAtomicUpdate() {
+        ReflectionTestUtils.setField(this.ewalletService, "operationMode", OperationMode.ATOMIC_UPDATE);
     }
 
     @Test
@@ -45,7 +78,7 @@ class EwalletServiceTest {
     void testThat_ProcessEwalletOperationReturnsNullIfEwalletIsNull() {
         Operation operation = new Operation();
         operation.setEwalletId(1l);
-        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(new Ewallet()));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Arrays.asList(new Ewallet()));
         assertNull(this.ewalletService.processEwalletOperation(operation));
     }
 
@@ -56,7 +89,7 @@ class EwalletServiceTest {
         operation.setOwnerId(1l);
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(2l);
-        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewallet));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Arrays.asList(ewallet));
         assertNull(this.ewalletService.processEwalletOperation(operation));
     }
 
@@ -66,12 +99,12 @@ class EwalletServiceTest {
         operation.setEwalletId(1l);
         operation.setOwnerId(1l);
         operation.setType(OperationType.DEPOSIT);
-        operation.setAmount(BigDecimal.ONE);
+        operation.setAmount(Money.of(BigDecimal.ONE));
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(1l);
         ewallet.setId(1l);
-        ewallet.setAmount(BigDecimal.ZERO);
-        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewallet));
+        ewallet.setAmount(Money.of(BigDecimal.ZERO));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Arrays.asList(ewallet));
         Mockito.when(ewalletRepository.saveAndFlush(ewallet)).thenReturn(ewallet);
         Ewallet ewallet1 = this.ewalletService.processEwalletOperation(operation);
         assertEquals(this.ewalletService.processEwalletOperation(operation).getOwner(), 1l);
@@ -83,11 +116,11 @@ class EwalletServiceTest {
         operation.setEwalletId(1l);
         operation.setOwnerId(1l);
         operation.setType(OperationType.WITHDRAW);
-        operation.setAmount(BigDecimal.ONE);
+        operation.setAmount(Money.of(BigDecimal.ONE));
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(1l);
-        ewallet.setAmount(BigDecimal.ONE);
-        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewallet));
+        ewallet.setAmount(Money.of(BigDecimal.ONE));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Arrays.asList(ewallet));
         Mockito.when(ewalletRepository.saveAndFlush(ewallet)).thenReturn(ewallet);
         assertEquals(this.ewalletService.processEwalletOperation(operation).getOwner(), 1l);
     }
@@ -98,12 +131,67 @@ class EwalletServiceTest {
         operation.setEwalletId(1l);
         operation.setOwnerId(1l);
         operation.setType(OperationType.WITHDRAW);
-        operation.setAmount(BigDecimal.ONE);
+        operation.setAmount(Money.of(BigDecimal.ONE));
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(1l);
-        ewallet.setAmount(BigDecimal.ZERO);
-        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewallet));
+        ewallet.setAmount(Money.of(BigDecimal.ZERO));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Arrays.asList(ewallet));
+        assertNull(this.ewalletService.processEwalletOperation(operation));
+    }
+
+    @Test
+    void testThat_AtomicProcessEwalletOperationReturnsNullIfOwnerIsNull() {
+        useAtomicUpdate();
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setType(OperationType.DEPOSIT);
+        operation.setAmount(Money.of(BigDecimal.ONE));
+        assertNull(this.ewalletService.processEwalletOperation(operation));
+        Mockito.verifyNoInteractions(ewalletRepository);
+    }
+
+    @Test
+    void testThat_AtomicProcessEwalletOperationReturnsNullIfAmountIsNegative() {
+        useAtomicUpdate();
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(1l);
+        operation.setType(OperationType.DEPOSIT);
+        operation.setAmount(Money.of(BigDecimal.ONE.negate()));
+        assertNull(this.ewalletService.processEwalletOperation(operation));
+        Mockito.verifyNoInteractions(ewalletRepository);
+    }
+
+    @Test
+    void testThat_AtomicProcessEwalletOperationReturnsNullIfUpdateIsRejected() {
+        useAtomicUpdate();
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(1l);
+        operation.setType(OperationType.WITHDRAW);
+        operation.setAmount(Money.of(BigDecimal.ONE));
+        Mockito.when(ewalletRepository.addToAmount(ArgumentMatchers.eq(1l), ArgumentMatchers.eq(1l),
+                ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(0);
         assertNull(this.ewalletService.processEwalletOperation(operation));
+        Mockito.verify(ewalletRepository, Mockito.never()).findById(1l);
+    }
+
+    @Test
+    void testThat_AtomicProcessEwalletOperationSubtractsWithdrawAmount() {
+        useAtomicUpdate();
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(1l);
+        operation.setType(OperationType.WITHDRAW);
+        operation.setAmount(Money.of(BigDecimal.ONE));
+        Ewallet ewallet = new Ewallet();
+        ewallet.setOwner(1l);
+        ewallet.setAmount(Money.of(BigDecimal.ZERO));
+        Mockito.when(ewalletRepository.addToAmount(ArgumentMatchers.eq(1l), ArgumentMatchers.eq(1l),
+                ArgumentMatchers.eq(new BigDecimal("-1.00")), ArgumentMatchers.any(), ArgumentMatchers.any())).thenReturn(1);
+        Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewallet));
+        assertEquals(this.ewalletService.processEwalletOperation(operation).getOwner(), 1l);
+        Mockito.verify(eventPublisher).publishEvent(ArgumentMatchers.any(BalanceChangedEvent.class));
     }
 
     @Test
@@ -118,13 +206,25 @@ class EwalletServiceTest {
     }
 
     @Test
-    void testThat_processEwalletTransferReturnsFalseIfOperationsLengthIsNot2() {
+    void testThat_processEwalletTransferReturnsFalseIfOnlyOneLeg() {
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(1l);
+        operation.setType(OperationType.WITHDRAW);
+        operation.setAmount(Money.of(BigDecimal.ONE));
+
+        assertFalse(this.ewalletService.processEwalletTransfer(new Operation[] {operation}));
+        Mockito.verifyNoInteractions(ewalletRepository);
+    }
+
+    @Test
+    void testThat_processEwalletTransferReturnsFalseIfALegIsNull() {
         Operation[] operations = new Operation[3];
         Operation operation = new Operation();
         operation.setEwalletId(1l);
         operation.setOwnerId(1l);
         operation.setType(OperationType.WITHDRAW);
-        operation.setAmount(BigDecimal.ONE);
+        operation.setAmount(Money.of(BigDecimal.ONE));
 
         operations[0] = operation;
         operations[1] = operation;
@@ -138,7 +238,7 @@ class EwalletServiceTest {
         operation.setEwalletId(1l);
         operation.setOwnerId(1l);
         operation.setType(OperationType.WITHDRAW);
-        operation.setAmount(BigDecimal.ONE);
+        operation.setAmount(Money.of(BigDecimal.ONE));
         operations[0] = operation;
         operations[1] = operation;
         assertFalse(this.ewalletService.processEwalletTransfer(operations));
@@ -151,29 +251,241 @@ class EwalletServiceTest {
         operationW.setEwalletId(1l);
         operationW.setOwnerId(1l);
         operationW.setType(OperationType.WITHDRAW);
-        operationW.setAmount(BigDecimal.ONE);
+        operationW.setAmount(Money.of(BigDecimal.ONE));
 
         Operation operationD = new Operation();
         operationD.setEwalletId(2l);
         operationD.setOwnerId(2l);
         operationD.setType(OperationType.DEPOSIT);
-        operationD.setAmount(BigDecimal.ONE);
+        operationD.setAmount(Money.of(BigDecimal.ONE));
 
         operations[0] = operationW;
         operations[1] = operationD;
         Ewallet ewalletW = new Ewallet();
         ewalletW.setOwner(1l);
-        ewalletW.setAmount(BigDecimal.ONE);
+        ewalletW.setAmount(Money.of(BigDecimal.ONE));
         ewalletW.setCurrency("EUR");
         Mockito.when(ewalletRepository.findById(1l)).thenReturn(java.util.Optional.of(ewalletW));
         Ewallet ewalletD = new Ewallet();
         ewalletD.setOwner(2l);
-        ewalletD.setAmount(BigDecimal.ZERO);
+        ewalletD.setAmount(Money.of(BigDecimal.ZERO));
         ewalletD.setCurrency("EUR");
         Mockito.when(ewalletRepository.findById(2l)).thenReturn(java.util.Optional.of(ewalletD));
         assertFalse(this.ewalletService.processEwalletTransfer(operations));
     }
 
+    @Test
+    void testThat_processEwalletTransferAppliesAllLegs() {
+        Ewallet payer = new Ewallet();
+        payer.setId(1l);
+        payer.setOwner(1l);
+        payer.setAmount(Money.of(BigDecimal.TEN));
+        payer.setCurrency("EUR");
+        Ewallet firstPayee = new Ewallet();
+        firstPayee.setId(2l);
+        firstPayee.setOwner(2l);
+        firstPayee.setAmount(Money.of(BigDecimal.ZERO));
+        firstPayee.setCurrency("EUR");
+        Ewallet secondPayee = new Ewallet();
+        secondPayee.setId(3l);
+        secondPayee.setOwner(3l);
+        secondPayee.setAmount(Money.of(BigDecimal.ZERO));
+        secondPayee.setCurrency("EUR");
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any()))
+                .thenReturn(Arrays.asList(payer, firstPayee, secondPayee));
+
+        Operation[] operations = new Operation[] {
+                transferLeg(1l, 1l, OperationType.WITHDRAW, "6"),
+                transferLeg(2l, 2l, OperationType.DEPOSIT, "4"),
+                transferLeg(3l, 3l, OperationType.DEPOSIT, "2")
+        };
+
+        assertTrue(this.ewalletService.processEwalletTransfer(operations));
+        assertEquals(0, payer.getAmount().compareTo(Money.of(new BigDecimal("4"))));
+        assertEquals(0, firstPayee.getAmount().compareTo(Money.of(new BigDecimal("4"))));
+        assertEquals(0, secondPayee.getAmount().compareTo(Money.of(new BigDecimal("2"))));
+        Mockito.verify(ewalletRepository, Mockito.never()).findById(ArgumentMatchers.any());
+    }
+
+    @Test
+    void testThat_processEwalletTransferReturnsFalseIfLegsAreNotBalanced() {
+        Operation[] operations = new Operation[] {
+                transferLeg(1l, 1l, OperationType.WITHDRAW, "6"),
+                transferLeg(2l, 2l, OperationType.DEPOSIT, "4")
+        };
+        assertFalse(this.ewalletService.processEwalletTransfer(operations));
+        Mockito.verifyNoInteractions(ewalletRepository);
+    }
+
+    @Test
+    void testThat_processEwalletTransferReturnsFalseIfPayerHasNotEnoughFunds() {
+        Ewallet payer = new Ewallet();
+        payer.setId(1l);
+        payer.setOwner(1l);
+        payer.setAmount(Money.of(BigDecimal.ONE));
+        payer.setCurrency("EUR");
+        Ewallet payee = new Ewallet();
+        payee.setId(2l);
+        payee.setOwner(2l);
+        payee.setAmount(Money.of(BigDecimal.ZERO));
+        payee.setCurrency("EUR");
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any()))
+                .thenReturn(Arrays.asList(payer, payee));
+
+        Operation[] operations = new Operation[] {
+                transferLeg(1l, 1l, OperationType.WITHDRAW, "2"),
+                transferLeg(2l, 2l, OperationType.DEPOSIT, "2")
+        };
+
+        assertFalse(this.ewalletService.processEwalletTransfer(operations));
+        assertEquals(0, payer.getAmount().compareTo(Money.of(BigDecimal.ONE)));
+        assertEquals(0, payee.getAmount().compareTo(Money.of(BigDecimal.ZERO)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_processEwalletTransferConvertsReceivedAmountToCurrencyOfEwallet() {
+        Ewallet payer = new Ewallet();
+        payer.setId(1l);
+        payer.setOwner(1l);
+        payer.setAmount(Money.of(BigDecimal.TEN));
+        payer.setCurrency("EUR");
+        Ewallet payee = new Ewallet();
+        payee.setId(2l);
+        payee.setOwner(2l);
+        payee.setAmount(Money.of(BigDecimal.ZERO));
+        payee.setCurrency("USD");
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any()))
+                .thenReturn(Arrays.asList(payer, payee));
+
+        Operation[] operations = new Operation[] {
+                transferLeg(1l, 1l, OperationType.WITHDRAW, "3.33"),
+                transferLeg(2l, 2l, OperationType.DEPOSIT, "3.33")
+        };
+
+        assertTrue(this.ewalletService.processEwalletTransfer(operations));
+        assertEquals(Money.of("6.67"), payer.getAmount());
+        // 3.33 * 1.1850 = 3.946 rounds half-even to 3.95
+        assertEquals(Money.of("3.95"), payee.getAmount());
+        ArgumentCaptor<List<FxConversion>> conversions = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(fxRateService).recordConversions(conversions.capture());
+        assertEquals(1, conversions.getValue().size());
+        assertEquals(7, conversions.getValue().get(0).getRateVersion());
+        assertEquals(Money.of("3.95"), conversions.getValue().get(0).getConvertedAmount());
+    }
+
+    @Test
+    void testThat_processEwalletTransferReturnsFalseIfThereIsNoRate() {
+        Ewallet payer = new Ewallet();
+        payer.setId(1l);
+        payer.setOwner(1l);
+        payer.setAmount(Money.of(BigDecimal.TEN));
+        payer.setCurrency("USD");
+        Ewallet payee = new Ewallet();
+        payee.setId(2l);
+        payee.setOwner(2l);
+        payee.setAmount(Money.of(BigDecimal.ZERO));
+        payee.setCurrency("EUR");
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any()))
+                .thenReturn(Arrays.asList(payer, payee));
+
+        Operation[] operations = new Operation[] {
+                transferLeg(1l, 1l, OperationType.WITHDRAW, "2"),
+                transferLeg(2l, 2l, OperationType.DEPOSIT, "2")
+        };
+
+        assertFalse(this.ewalletService.processEwalletTransfer(operations));
+        assertEquals(Money.of(BigDecimal.TEN), payer.getAmount());
+        Mockito.verify(fxRateService, Mockito.never()).recordConversions(ArgumentMatchers.any());
+    }
+
+    private Operation transferLeg(Long ewalletId, Long ownerId, OperationType type, String amount) {
+        Operation operation = new Operation();
+        operation.setEwalletId(ewalletId);
+        operation.setOwnerId(ownerId);
+        operation.setType(type);
+        operation.setAmount(Money.of(amount));
+        return operation;
+    }
+
+    @Test
+    void testThat_processEwalletOperationsReportsEveryOperation() {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setId(1l);
+        ewallet.setOwner(1l);
+        ewallet.setAmount(Money.of(BigDecimal.ONE));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any())).thenReturn(Arrays.asList(ewallet));
+
+        Operation deposit = new Operation();
+        deposit.setEwalletId(1l);
+        deposit.setOwnerId(1l);
+        deposit.setType(OperationType.DEPOSIT);
+        deposit.setAmount(Money.of(BigDecimal.ONE));
+        Operation tooBigWithdraw = new Operation();
+        tooBigWithdraw.setEwalletId(1l);
+        tooBigWithdraw.setOwnerId(1l);
+        tooBigWithdraw.setType(OperationType.WITHDRAW);
+        tooBigWithdraw.setAmount(Money.of(BigDecimal.TEN));
+        Operation unknownEwallet = new Operation();
+        unknownEwallet.setEwalletId(2l);
+        unknownEwallet.setOwnerId(1l);
+        unknownEwallet.setType(OperationType.DEPOSIT);
+        unknownEwallet.setAmount(Money.of(BigDecimal.ONE));
+        Operation withdraw = new Operation();
+        withdraw.setEwalletId(1l);
+        withdraw.setOwnerId(1l);
+        withdraw.setType(OperationType.WITHDRAW);
+        withdraw.setAmount(Money.of(new BigDecimal("2")));
+
+        List<OperationResult> results = this.ewalletService.processEwalletOperations(
+                Arrays.asList(deposit, tooBigWithdraw, null, unknownEwallet, withdraw));
+
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(0, results.get(0).getAmount().compareTo(Money.of(new BigDecimal("2"))));
+        assertFalse(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+        assertFalse(results.get(3).isSuccess());
+        assertTrue(results.get(4).isSuccess());
+        assertEquals(0, ewallet.getAmount().compareTo(Money.of(BigDecimal.ZERO)));
+        Mockito.verify(ewalletRepository, Mockito.times(1)).findByIdInOrderByIdAsc(ArgumentMatchers.any());
+    }
+
+    @Test
+    void testThat_processCoalescedDepositsGivesEveryAppliedDepositTheFinalBalance() {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setId(1l);
+        ewallet.setOwner(1l);
+        ewallet.setCurrency("EUR");
+        ewallet.setAmount(Money.of(BigDecimal.ONE));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(ArgumentMatchers.any())).thenReturn(Arrays.asList(ewallet));
+
+        Operation deposit = new Operation();
+        deposit.setEwalletId(1l);
+        deposit.setOwnerId(1l);
+        deposit.setType(OperationType.DEPOSIT);
+        deposit.setAmount(Money.of(BigDecimal.ONE));
+        Operation wrongOwner = new Operation();
+        wrongOwner.setEwalletId(1l);
+        wrongOwner.setOwnerId(2l);
+        wrongOwner.setType(OperationType.DEPOSIT);
+        wrongOwner.setAmount(Money.of(BigDecimal.ONE));
+        Operation secondDeposit = new Operation();
+        secondDeposit.setEwalletId(1l);
+        secondDeposit.setOwnerId(1l);
+        secondDeposit.setType(OperationType.DEPOSIT);
+        secondDeposit.setAmount(Money.of(BigDecimal.TEN));
+
+        List<Ewallet> results = this.ewalletService.processCoalescedDeposits(1l, Arrays.asList(deposit, wrongOwner, secondDeposit));
+
+        assertSame(ewallet, results.get(0));
+        assertNull(results.get(1));
+        assertSame(ewallet, results.get(2));
+        assertEquals(Money.of("12"), ewallet.getAmount());
+        Mockito.verify(ewalletRepository, Mockito.times(1)).flush();
+        Mockito.verify(eventPublisher, Mockito.times(2)).publishEvent(ArgumentMatchers.any(BalanceChangedEvent.class));
+    }
+
     @Test
     void testThat_addEwalletReturnsNullIfEwallettIsNull() {
         assertNull(this.ewalletService.addEwallet(null));
@@ -183,7 +495,7 @@ class EwalletServiceTest {
     void testThat_addEwalletReturnsNullIfOwnerDoesNotExists() {
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(1l);
-        ewallet.setAmount(BigDecimal.ONE);
+        ewallet.setAmount(Money.of(BigDecimal.ONE));
         ewallet.setCurrency("EUR");
         Mockito.when(ownerService.existsOwner(1l)).thenReturn(false);
         assertNull(this.ewalletService.addEwallet(ewallet));
@@ -193,13 +505,72 @@ class EwalletServiceTest {
     void testThat_addEwalletReturnsEwalletIfCorrectSettings() {
         Ewallet ewallet = new Ewallet();
         ewallet.setOwner(1l);
-        ewallet.setAmount(BigDecimal.ONE);
+        ewallet.setAmount(Money.of(BigDecimal.ONE));
         ewallet.setCurrency("EUR");
         ewallet.setName("Test Ewallet");
         Mockito.when(ownerService.existsOwner(1l)).thenReturn(true);
         Mockito.when(ewalletRepository.save(ewallet)).thenReturn(ewallet);
         Mockito.when(ewalletRepository.saveAndFlush(ewallet)).thenReturn(ewallet);
         assertNotNull(this.ewalletService.addEwallet(ewallet));
-        assertEquals(ewallet.getAmount().compareTo(BigDecimal.ZERO), 0);
+        assertEquals(ewallet.getAmount().compareTo(Money.of(BigDecimal.ZERO)), 0);
+    }
+
+    @Nested
+    @SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:ewallet-modes", "ewallet.cache.enabled=false"})
+    class WithDatabase {
+
+        @Autowired
+        private EwalletService ewalletService;
+
+        @Autowired
+        private JdbcTemplate jdbcTemplate;
+
+        @Test
+        void testThat_BothOperationModesAcceptEwalletWithoutCurrency() {
+            for (OperationMode mode : OperationMode.values()) {
+                EwalletService target = AopTestUtils.getUltimateTargetObject(ewalletService);
+                ReflectionTestUtils.setField(target, "operationMode", mode);
+                String email = mode + "@ewallet-modes.test";
+                jdbcTemplate.update("INSERT INTO Owner (name, email) VALUES ('Modes', ?)", email);
+                Long ownerId = jdbcTemplate.queryForObject("SELECT id FROM Owner WHERE email = ?", Long.class, email);
+                jdbcTemplate.update("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, NULL, 0, 'no currency')", ownerId);
+                Long ewalletId = jdbcTemplate.queryForObject("SELECT id FROM Ewallet WHERE owner = ?", Long.class, ownerId);
+
+                // a whole amount and one with cents, which do not fit every currency
+                assertNotNull(ewalletService.processEwalletOperation(operation(ownerId, ewalletId, OperationType.DEPOSIT, "2")), mode.name());
+                assertNotNull(ewalletService.processEwalletOperation(operation(ownerId, ewalletId, OperationType.WITHDRAW, "0.25")), mode.name());
+
+                assertEquals(new BigDecimal("1.75"),
+                        jdbcTemplate.queryForObject("SELECT amount FROM Ewallet WHERE id = ?", BigDecimal.class, ewalletId), mode.name());
+            }
+        }
+
+        @Test
+        void testThat_AtomicUpdateTreatsEwalletWithoutAmountAsZeroBalance() {
+            EwalletService target = AopTestUtils.getUltimateTargetObject(ewalletService);
+            ReflectionTestUtils.setField(target, "operationMode", OperationMode.ATOMIC_UPDATE);
+            String email = "no-amount@ewallet-modes.test";
+            jdbcTemplate.update("INSERT INTO Owner (name, email) VALUES ('Modes', ?)", email);
+            Long ownerId = jdbcTemplate.queryForObject("SELECT id FROM Owner WHERE email = ?", Long.class, email);
+            jdbcTemplate.update("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, 'EUR', NULL, 'no amount')", ownerId);
+            Long ewalletId = jdbcTemplate.queryForObject("SELECT id FROM Ewallet WHERE owner = ?", Long.class, ownerId);
+
+            assertNull(ewalletService.processEwalletOperation(operation(ownerId, ewalletId, OperationType.WITHDRAW, "1")));
+            Ewallet deposited = ewalletService.processEwalletOperation(operation(ownerId, ewalletId, OperationType.DEPOSIT, "2"));
+
+            assertNotNull(deposited);
+            assertEquals(Money.of("2"), deposited.getAmount());
+            assertEquals(new BigDecimal("2.00"),
+                    jdbcTemplate.queryForObject("SELECT amount FROM Ewallet WHERE id = ?", BigDecimal.class, ewalletId));
+        }
+
+        private Operation operation(Long ownerId, Long ewalletId, OperationType type, String amount) {
+            Operation operation = new Operation();
+            operation.setOwnerId(ownerId);
+            operation.setEwalletId(ewalletId);
+            operation.setType(type);
+            operation.setAmount(Money.of(amount));
+            return operation;
+        }
     }
-}
\ No newline at end of file
+}
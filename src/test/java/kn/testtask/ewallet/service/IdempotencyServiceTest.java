@@ -0,0 +1,152 @@
+package kn.testtask.ewallet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.Money;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyServiceTest {
+
+    private IdempotencyService idempotencyService;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        this.jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        this.idempotencyService = new IdempotencyService(this.jdbcTemplate, new ObjectMapper(), 60000, 1000, 100);
+    }
+
+    @Test
+    void testThat_RequestWithoutKeyIsAlwaysExecuted() {
+        Operation operation = operation();
+        idempotencyService.execute(null, "deposit", operation, this::apply);
+        idempotencyService.execute(null, "deposit", operation, this::apply);
+
+        assertEquals(2, calls.get());
+        Mockito.verifyNoInteractions(jdbcTemplate);
+    }
+
+    @Test
+    void testThat_ReplayIsServedFromCacheWithoutExecuting() {
+        Operation operation = operation();
+        ResponseEntity<Object> first = idempotencyService.execute("key-1", "deposit", operation, this::apply);
+        ResponseEntity<Object> replay = idempotencyService.execute("key-1", "deposit", operation, this::apply);
+
+        assertEquals(1, calls.get());
+        assertEquals(HttpStatus.OK, replay.getStatusCode());
+        assertEquals("true", replay.getHeaders().getFirst(IdempotencyService.REPLAYED_HEADER));
+        assertEquals(new ObjectMapper().valueToTree(first.getBody()), replay.getBody());
+        assertEquals(1, idempotencyService.getCacheStats().hitCount());
+    }
+
+    @Test
+    void testThat_KeyReusedForAnotherRequestIsRejected() {
+        idempotencyService.execute("key-1", "deposit", operation(), this::apply);
+        ResponseEntity<Object> response = idempotencyService.execute("key-1", "withdraw", operation(), this::apply);
+
+        assertEquals(1, calls.get());
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_KeyInProgressGetsConflict() {
+        Mockito.when(jdbcTemplate.update(ArgumentMatchers.startsWith("INSERT"), ArgumentMatchers.<Object>any()))
+                .thenThrow(new DuplicateKeyException("claimed"));
+        Mockito.when(jdbcTemplate.query(ArgumentMatchers.anyString(), ArgumentMatchers.any(RowMapper.class), ArgumentMatchers.<Object>any()))
+                .thenReturn(Collections.emptyList());
+
+        ResponseEntity<Object> response = idempotencyService.execute("key-1", "deposit", operation(), this::apply);
+
+        assertEquals(0, calls.get());
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+    }
+
+    @Test
+    void testThat_KeyInProgressWithinLeaseGetsRetryAfter() throws SQLException {
+        claimedBy(System.currentTimeMillis() + 1000);
+
+        ResponseEntity<Object> response = idempotencyService.execute("key-1", "deposit", operation(), this::apply);
+
+        assertEquals(0, calls.get());
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals("1", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_KeyInProgressAfterLeaseGetsUnknownOutcome() throws SQLException {
+        // the first request died before its response was stored
+        claimedBy(System.currentTimeMillis() - 1);
+
+        ResponseEntity<Object> response = idempotencyService.execute("key-1", "deposit", operation(), this::apply);
+
+        assertEquals(0, calls.get());
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals("UNKNOWN", ((Map<String, String>) response.getBody()).get("outcome"));
+        assertNull(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    // another request with the same fingerprint holds the key until leaseEndMillis
+    @SuppressWarnings("unchecked")
+    private void claimedBy(long leaseEndMillis) throws SQLException {
+        ResultSet row = Mockito.mock(ResultSet.class);
+        Mockito.when(row.getString(2)).thenReturn("IN_PROGRESS");
+        Mockito.when(row.getTimestamp(5)).thenReturn(new Timestamp(leaseEndMillis));
+        Mockito.when(jdbcTemplate.update(ArgumentMatchers.startsWith("INSERT"), ArgumentMatchers.<Object>any())).thenAnswer(invocation -> {
+            String fingerprint = (String) invocation.getArguments()[2];
+            Mockito.when(row.getString(1)).thenReturn(fingerprint);
+            throw new DuplicateKeyException("claimed");
+        });
+        Mockito.when(jdbcTemplate.query(ArgumentMatchers.anyString(), ArgumentMatchers.any(RowMapper.class), ArgumentMatchers.<Object>any()))
+                .thenAnswer(invocation -> Collections.singletonList(((RowMapper<Object>) invocation.getArgument(1)).mapRow(row, 0)));
+    }
+
+    @Test
+    void testThat_FailedRequestReleasesKey() {
+        assertThrows(IllegalArgumentException.class, () -> idempotencyService.execute("key-1", "deposit", operation(), () -> {
+            throw new IllegalArgumentException("rejected");
+        }));
+
+        Mockito.verify(jdbcTemplate).update(ArgumentMatchers.startsWith("DELETE"), ArgumentMatchers.eq("key-1"));
+        idempotencyService.execute("key-1", "deposit", operation(), this::apply);
+        assertEquals(1, calls.get());
+    }
+
+    private ResponseEntity<?> apply() {
+        calls.incrementAndGet();
+        return new ResponseEntity<Object>(Collections.singletonMap("amount", new BigDecimal("10.00")), HttpStatus.OK);
+    }
+
+    private Operation operation() {
+        Operation operation = new Operation();
+        operation.setEwalletId(1l);
+        operation.setOwnerId(1l);
+        operation.setAmount(Money.of(BigDecimal.TEN));
+        return operation;
+    }
+}
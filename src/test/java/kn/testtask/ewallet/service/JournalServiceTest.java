@@ -0,0 +1,137 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceMismatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalServiceTest {
+
+    private EmbeddedDatabase database;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private OperationJournalWriter journalWriter;
+
+    private JournalService journalService;
+
+    @BeforeEach
+    public void setUp() {
+        this.database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("journal-" + UUID.randomUUID())
+                .addScript("schema.sql")
+                .build();
+        this.jdbcTemplate = new JdbcTemplate(this.database);
+        this.journalWriter = Mockito.mock(OperationJournalWriter.class);
+        // ranges of 2 e-wallet ids, so 5 e-wallets are refreshed and verified in 3 ranges
+        this.journalService = new JournalService(this.jdbcTemplate, this.journalWriter,
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), 2, 2);
+
+        jdbcTemplate.update("INSERT INTO Owner (id, name, email) VALUES (1, 'John', 'john@beatles.com')");
+        for (int id = 1; id <= 5; id++) {
+            jdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (?, 1, 'EUR', 0, 'w')", id);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.journalService.shutdown();
+        this.database.shutdown();
+    }
+
+    // journals the operation and applies it to the stored balance
+    private void apply(long ewalletId, String type, String amount) {
+        jdbcTemplate.update("INSERT INTO Operation_journal (ewallet_id, currency, type, amount) VALUES (?, 'EUR', ?, ?)",
+                ewalletId, type, new BigDecimal(amount));
+        jdbcTemplate.update("UPDATE Ewallet SET amount = amount " + ("WITHDRAW".equals(type) ? "-" : "+") + " ? WHERE id = ?",
+                new BigDecimal(amount), ewalletId);
+    }
+
+    private BigDecimal snapshot(long ewalletId) {
+        List<BigDecimal> amounts = jdbcTemplate.queryForList("SELECT amount FROM Balance_snapshot WHERE ewallet_id = ?",
+                BigDecimal.class, ewalletId);
+        return amounts.isEmpty() ? null : amounts.get(0);
+    }
+
+    @Test
+    void testThat_SnapshotsOfAllRangesFoldInTheJournal() {
+        apply(1, "DEPOSIT", "10.00");
+        apply(1, "WITHDRAW", "4.00");
+        apply(3, "DEPOSIT", "2.50");
+        apply(5, "DEPOSIT", "7.00");
+
+        journalService.refreshSnapshots();
+
+        assertEquals(new BigDecimal("6.00"), snapshot(1));
+        assertNull(snapshot(2));
+        assertEquals(new BigDecimal("2.50"), snapshot(3));
+        assertEquals(new BigDecimal("7.00"), snapshot(5));
+        assertEquals(jdbcTemplate.queryForObject("SELECT MAX(id) FROM Operation_journal WHERE ewallet_id = 1", Long.class),
+                jdbcTemplate.queryForObject("SELECT journal_id FROM Balance_snapshot WHERE ewallet_id = 1", Long.class));
+        Mockito.verify(journalWriter).flush();
+    }
+
+    @Test
+    void testThat_BalanceIsRebuiltFromSnapshotAndJournalTail() {
+        apply(1, "DEPOSIT", "10.00");
+        journalService.refreshSnapshots();
+        apply(1, "WITHDRAW", "2.25");
+        apply(1, "DEPOSIT", "1.00");
+
+        assertEquals(new BigDecimal("8.75"), journalService.rebuildBalance(1l));
+        assertEquals(new BigDecimal("10.00"), snapshot(1));
+
+        // a second refresh adds only the tail, entries already in the snapshot are not counted twice
+        journalService.refreshSnapshots();
+        assertEquals(new BigDecimal("8.75"), snapshot(1));
+        assertEquals(new BigDecimal("8.75"), journalService.rebuildBalance(1l));
+        assertEquals(0, journalService.rebuildBalance(2l).signum());
+    }
+
+    @Test
+    void testThat_VerificationFindsBalancesDifferingFromTheJournal() {
+        apply(2, "DEPOSIT", "5.00");
+        apply(4, "DEPOSIT", "3.00");
+        journalService.refreshSnapshots();
+        apply(4, "WITHDRAW", "1.00");
+        assertTrue(journalService.verifyBalances().isEmpty());
+
+        jdbcTemplate.update("UPDATE Ewallet SET amount = 9.00 WHERE id = 4");
+        jdbcTemplate.update("UPDATE Ewallet SET amount = 1.00 WHERE id = 5");
+
+        List<BalanceMismatch> mismatches = journalService.verifyBalances();
+        mismatches.sort((left, right) -> left.getEwalletId().compareTo(right.getEwalletId()));
+        assertEquals(2, mismatches.size());
+        assertEquals(4l, mismatches.get(0).getEwalletId());
+        assertEquals(new BigDecimal("9.00"), mismatches.get(0).getAmount());
+        assertEquals(0, new BigDecimal("2.00").compareTo(mismatches.get(0).getRebuiltAmount()));
+        assertEquals(5l, mismatches.get(1).getEwalletId());
+        assertEquals(0, mismatches.get(1).getRebuiltAmount().signum());
+    }
+
+    @Test
+    void testThat_VerificationFindsJournaledEwalletWithoutAmount() {
+        jdbcTemplate.update("UPDATE Ewallet SET amount = NULL WHERE id IN (1, 3)");
+        jdbcTemplate.update("INSERT INTO Operation_journal (ewallet_id, currency, type, amount) VALUES (3, 'EUR', 'DEPOSIT', 4.00)");
+
+        List<BalanceMismatch> mismatches = journalService.verifyBalances();
+
+        assertEquals(1, mismatches.size());
+        assertEquals(3l, mismatches.get(0).getEwalletId());
+        assertEquals(0, mismatches.get(0).getAmount().signum());
+        assertEquals(0, new BigDecimal("4.00").compareTo(mismatches.get(0).getRebuiltAmount()));
+    }
+}
@@ -0,0 +1,111 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OperationType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+
+class OperationJournalWriterTest {
+
+    private EmbeddedDatabase database;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private final ShardRouter shardRouter = new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500);
+
+    private OperationJournalWriter journalWriter;
+
+    @BeforeEach
+    public void setUp() {
+        this.database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("journal-writer-" + UUID.randomUUID())
+                .addScript("schema.sql")
+                .build();
+        this.jdbcTemplate = Mockito.spy(new JdbcTemplate(this.database));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (this.journalWriter != null) {
+            this.journalWriter.shutdown();
+        }
+        this.database.shutdown();
+    }
+
+    // the scheduled flush never runs during a test
+    private OperationJournalWriter writer(boolean enabled, int batchSize, int queueCapacity) {
+        this.journalWriter = new OperationJournalWriter(jdbcTemplate, shardRouter, enabled, batchSize, queueCapacity, 3600000);
+        return this.journalWriter;
+    }
+
+    private static BalanceChangedEvent event(long ewalletId, OperationType type, String amount) {
+        return new BalanceChangedEvent(ewalletId, 1l, "EUR", type, Money.of(amount), Money.of(amount));
+    }
+
+    private List<String> journal() {
+        return jdbcTemplate.queryForList("SELECT ewallet_id || ':' || type || ':' || amount FROM Operation_journal ORDER BY id",
+                String.class);
+    }
+
+    @Test
+    void testThat_QueuedEntriesAreWrittenInOrderInBatches() {
+        OperationJournalWriter writer = writer(true, 2, 10);
+        writer.onBalanceChanged(event(1, OperationType.DEPOSIT, "10"));
+        writer.onBalanceChanged(event(2, OperationType.DEPOSIT, "5"));
+        writer.onBalanceChanged(event(1, OperationType.WITHDRAW, "3"));
+        writer.onBalanceChanged(event(3, OperationType.DEPOSIT, "1.50"));
+        writer.onBalanceChanged(event(2, OperationType.WITHDRAW, "5"));
+
+        assertEquals(5, writer.getQueueSize());
+        assertTrue(journal().isEmpty());
+
+        writer.flush();
+
+        assertEquals(0, writer.getQueueSize());
+        assertEquals(Arrays.asList("1:DEPOSIT:10.00", "2:DEPOSIT:5.00", "1:WITHDRAW:3.00", "3:DEPOSIT:1.50", "2:WITHDRAW:5.00"),
+                journal());
+        // 2 + 2 + 1 entries
+        Mockito.verify(jdbcTemplate, Mockito.times(3)).batchUpdate(anyString(), anyList());
+    }
+
+    @Test
+    void testThat_CallerWritesItsOwnEntryWhenQueueIsFull() {
+        OperationJournalWriter writer = writer(true, 10, 1);
+        writer.onBalanceChanged(event(1, OperationType.DEPOSIT, "10"));
+        writer.onBalanceChanged(event(2, OperationType.DEPOSIT, "5"));
+
+        assertEquals(1, writer.getQueueSize());
+        assertEquals(Arrays.asList("2:DEPOSIT:5.00"), journal());
+
+        writer.flush();
+
+        assertEquals(Arrays.asList("2:DEPOSIT:5.00", "1:DEPOSIT:10.00"), journal());
+    }
+
+    @Test
+    void testThat_DisabledJournalWritesNothing() {
+        OperationJournalWriter writer = writer(false, 10, 10);
+        writer.onBalanceChanged(event(1, OperationType.DEPOSIT, "10"));
+        writer.flush();
+
+        assertEquals(0, writer.getQueueSize());
+        assertTrue(journal().isEmpty());
+    }
+}
@@ -0,0 +1,89 @@
+package kn.testtask.ewallet.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OperationMetricsAspectTest {
+
+    private EwalletService ewalletService;
+
+    private EwalletRepository ewalletRepository;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        this.ewalletRepository = Mockito.mock(EwalletRepository.class);
+        EwalletService target = new EwalletService(this.ewalletRepository, Mockito.mock(OwnerService.class),
+                Mockito.mock(ApplicationEventPublisher.class), Mockito.mock(FxRateService.class));
+        ReflectionTestUtils.setField(target, "operationMode", OperationMode.READ_MODIFY_WRITE);
+
+        this.meterRegistry = new SimpleMeterRegistry();
+        AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAspect(new OperationMetricsAspect(this.meterRegistry));
+        this.ewalletService = proxyFactory.getProxy();
+    }
+
+    @Test
+    void testThat_OperationIsTimedByTypeAndOutcome() {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setId(1l);
+        ewallet.setOwner(1l);
+        ewallet.setAmount(Money.of(BigDecimal.TEN));
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenReturn(Collections.singletonList(ewallet));
+        Mockito.when(ewalletRepository.saveAndFlush(ewallet)).thenReturn(ewallet);
+
+        this.ewalletService.processEwalletOperation(operation(OperationType.DEPOSIT, Money.of(BigDecimal.ONE)));
+        this.ewalletService.processEwalletOperation(operation(OperationType.WITHDRAW, Money.of("100")));
+
+        assertEquals(1, meterRegistry.get(OperationMetricsAspect.OPERATION_TIMER)
+                .tags("method", "processEwalletOperation", "type", "DEPOSIT", "outcome", "applied").timer().count());
+        assertEquals(1, meterRegistry.get(OperationMetricsAspect.OPERATION_TIMER)
+                .tags("method", "processEwalletOperation", "type", "WITHDRAW", "outcome", "rejected").timer().count());
+    }
+
+    @Test
+    void testThat_FailedOperationIsTimedAsError() {
+        Mockito.when(ewalletRepository.findByIdInOrderByIdAsc(Collections.singletonList(1l))).thenThrow(new IllegalStateException("database is down"));
+
+        assertThrows(IllegalStateException.class,
+                () -> this.ewalletService.processEwalletOperation(operation(OperationType.DEPOSIT, Money.of(BigDecimal.ONE))));
+
+        assertEquals(1, meterRegistry.get(OperationMetricsAspect.OPERATION_TIMER)
+                .tags("type", "DEPOSIT", "outcome", "error").timer().count());
+        assertEquals(0, meterRegistry.get("ewallet.operation.in.flight").gauge().value());
+    }
+
+    @Test
+    void testThat_TransferIsTimed() {
+        assertFalse(this.ewalletService.processEwalletTransfer(new Operation[0]));
+
+        assertEquals(1, meterRegistry.get(OperationMetricsAspect.OPERATION_TIMER)
+                .tags("method", "processEwalletTransfer", "outcome", "rejected").timer().count());
+    }
+
+    private Operation operation(OperationType type, Money amount) {
+        Operation operation = new Operation();
+        operation.setOwnerId(1l);
+        operation.setEwalletId(1l);
+        operation.setType(type);
+        operation.setAmount(amount);
+        return operation;
+    }
+}
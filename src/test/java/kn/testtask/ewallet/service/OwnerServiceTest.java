@@ -0,0 +1,147 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.EwalletDeletedEvent;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
+import kn.testtask.ewallet.repository.EwalletRepository;
+import kn.testtask.ewallet.repository.OwnerRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OwnerServiceTest {
+
+    private OwnerService ownerService;
+
+    @Mock
+    private OwnerRepository ownerRepository;
+
+    @Mock
+    private EwalletRepository ewalletRepository;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @BeforeEach
+    public void setUp() {
+        this.ownerRepository = Mockito.mock(OwnerRepository.class);
+        this.ewalletRepository = Mockito.mock(EwalletRepository.class);
+        this.eventPublisher = Mockito.mock(ApplicationEventPublisher.class);
+        this.ownerService = new OwnerService();
+        ReflectionTestUtils.setField(this.ownerService, "ownerRepository", this.ownerRepository);
+        ReflectionTestUtils.setField(this.ownerService, "ewalletRepository", this.ewalletRepository);
+        ReflectionTestUtils.setField(this.ownerService, "eventPublisher", this.eventPublisher);
+        ReflectionTestUtils.setField(this.ownerService, "deleteChunkSize", 2);
+    }
+
+    @Test
+    void testThat_deleteOwnerReturnsFalseIfOwnerIdIsNull() {
+        assertFalse(this.ownerService.deleteOwner(null));
+        Mockito.verifyNoInteractions(ownerRepository, ewalletRepository);
+    }
+
+    @Test
+    void testThat_deleteOwnersDeletesOnlyOwnersWithoutMoneyInChunks() {
+        Mockito.when(ownerRepository.findIdsWithoutMoney(Arrays.asList(1l, 2l), Money.ZERO)).thenReturn(Arrays.asList(2l));
+        Mockito.when(ownerRepository.findIdsWithoutMoney(Arrays.asList(3l), Money.ZERO)).thenReturn(Arrays.asList(3l));
+        Mockito.when(ewalletRepository.findIdsByOwnerIn(Arrays.asList(2l)))
+                .thenReturn(Collections.singletonList(new Object[] {4l, 2l, "EUR"}));
+        Mockito.when(ownerRepository.deleteWithoutEwalletsByIdIn(ArgumentMatchers.anyCollection())).thenReturn(1);
+
+        List<Long> deleted = this.ownerService.deleteOwners(Arrays.asList(1l, 2l, 2l, null, 3l));
+
+        assertEquals(Arrays.asList(2l, 3l), deleted);
+        Mockito.verify(ewalletRepository).deleteEmptyByOwnerIn(Arrays.asList(2l));
+        Mockito.verify(ewalletRepository).deleteEmptyByOwnerIn(Arrays.asList(3l));
+        Mockito.verify(eventPublisher).publishEvent(new OwnerDeletedEvent(2l, Arrays.asList(4l)));
+        Mockito.verify(eventPublisher).publishEvent(new OwnerDeletedEvent(3l, Collections.emptyList()));
+    }
+
+    @Test
+    void testThat_deleteOwnersKeepsOwnerWhoseEwalletGotMoneyAfterTheCheck() {
+        Mockito.when(ownerRepository.findIdsWithoutMoney(Arrays.asList(1l, 2l), Money.ZERO)).thenReturn(Arrays.asList(1l, 2l));
+        Mockito.when(ownerRepository.deleteWithoutEwalletsByIdIn(ArgumentMatchers.anyCollection())).thenReturn(1);
+        Mockito.when(ownerRepository.findExistingIds(ArgumentMatchers.anyCollection())).thenReturn(Arrays.asList(1l));
+
+        assertEquals(Arrays.asList(2l), this.ownerService.deleteOwners(Arrays.asList(1l, 2l)));
+        Mockito.verify(eventPublisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any(OwnerDeletedEvent.class));
+    }
+
+    @Test
+    void testThat_deleteOwnersAnnouncesEwalletsDeletedFromKeptOwner() {
+        Mockito.when(ownerRepository.findIdsWithoutMoney(Arrays.asList(1l, 2l), Money.ZERO)).thenReturn(Arrays.asList(1l, 2l));
+        Mockito.when(ewalletRepository.findIdsByOwnerIn(Arrays.asList(1l, 2l))).thenReturn(Arrays.asList(
+                new Object[] {10l, 1l, "EUR"}, new Object[] {11l, 1l, "USD"}, new Object[] {12l, 2l, "EUR"}));
+        // e-wallet 11 got money while its empty siblings were being deleted
+        Mockito.when(ewalletRepository.findIdsByOwnerIn(Arrays.asList(1l)))
+                .thenReturn(Collections.singletonList(new Object[] {11l, 1l, "USD"}));
+        Mockito.when(ownerRepository.deleteWithoutEwalletsByIdIn(ArgumentMatchers.anyCollection())).thenReturn(1);
+        Mockito.when(ownerRepository.findExistingIds(ArgumentMatchers.anyCollection())).thenReturn(Arrays.asList(1l));
+
+        assertEquals(Arrays.asList(2l), this.ownerService.deleteOwners(Arrays.asList(1l, 2l)));
+        Mockito.verify(eventPublisher).publishEvent(new OwnerDeletedEvent(2l, Arrays.asList(12l)));
+        Mockito.verify(eventPublisher).publishEvent(new EwalletDeletedEvent(10l, 1l, "EUR"));
+        Mockito.verify(eventPublisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any(EwalletDeletedEvent.class));
+    }
+
+    @Nested
+    @SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:ewallet-owner-delete", "ewallet.cache.enabled=false",
+            "ewallet.datasource.replica.enabled=false"})
+    class WithDatabase {
+
+        @Autowired
+        private EwalletRepository ewalletRepository;
+
+        @Autowired
+        private JdbcTemplate jdbcTemplate;
+
+        @Autowired
+        private PlatformTransactionManager transactionManager;
+
+        @Test
+        void testThat_ewalletDeleteSkipsOwnerWhoseEwalletGotMoneyAfterTheCheck() {
+            Long rich = insertOwner("rich@owner-delete.test");
+            Long poor = insertOwner("poor@owner-delete.test");
+            // both owners passed the check, then a deposit came to one e-wallet of the first
+            Long kept = insertEwallet(rich, "EUR", "0.00");
+            insertEwallet(rich, "USD", "5.00");
+            insertEwallet(poor, "EUR", "0.00");
+            insertEwallet(poor, "USD", null);
+
+            int deleted = new TransactionTemplate(transactionManager)
+                    .execute(status -> ewalletRepository.deleteEmptyByOwnerIn(Arrays.asList(rich, poor)));
+
+            assertEquals(2, deleted);
+            assertEquals(2, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE owner = ?", Integer.class, rich));
+            assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE id = ?", Integer.class, kept));
+            assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Ewallet WHERE owner = ?", Integer.class, poor));
+        }
+
+        private Long insertOwner(String email) {
+            jdbcTemplate.update("INSERT INTO Owner (name, email) VALUES ('Owner', ?)", email);
+            return jdbcTemplate.queryForObject("SELECT id FROM Owner WHERE email = ?", Long.class, email);
+        }
+
+        private Long insertEwallet(Long owner, String currency, String amount) {
+            jdbcTemplate.update("INSERT INTO Ewallet (owner, currency, amount, name) VALUES (?, ?, ?, 'owner-delete-test')",
+                    owner, currency, amount == null ? null : new java.math.BigDecimal(amount));
+            return jdbcTemplate.queryForObject("SELECT MAX(id) FROM Ewallet WHERE owner = ?", Long.class, owner);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.BalanceChangedEvent;
+import kn.testtask.ewallet.domain.CurrencySummary;
+import kn.testtask.ewallet.domain.EwalletCreatedEvent;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.OwnerDeletedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OwnerSummaryServiceTest {
+
+    private OwnerSummaryService ownerSummaryService;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    public void setUp() {
+        this.jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        this.ownerSummaryService = new OwnerSummaryService(this.jdbcTemplate, Mockito.mock(PlatformTransactionManager.class),
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), true, 10000, 1);
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        TransactionSynchronizationManager.clear();
+        this.ownerSummaryService.shutdown();
+    }
+
+    private void commit() {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        synchronizations.forEach(synchronization -> synchronization.beforeCommit(false));
+        synchronizations.forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_ChangesOfOneTransactionAreWrittenAsOneUpdatePerSummaryRow() {
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.anyString(), ArgumentMatchers.anyList())).thenReturn(new int[] {1, 1});
+
+        ownerSummaryService.onBalanceChanged(new BalanceChangedEvent(1l, 1l, "EUR", OperationType.DEPOSIT,
+                Money.of("10"), Money.of("10")));
+        ownerSummaryService.onBalanceChanged(new BalanceChangedEvent(2l, 1l, "EUR", OperationType.WITHDRAW,
+                Money.of("2.50"), Money.of("0")));
+        ownerSummaryService.onEwalletCreated(new EwalletCreatedEvent(3l, 1l, "USD"));
+        Mockito.verifyNoInteractions(jdbcTemplate);
+
+        commit();
+
+        ArgumentCaptor<List<Object[]>> rows = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate).batchUpdate(ArgumentMatchers.anyString(), rows.capture());
+        assertEquals(2, rows.getValue().size());
+        assertEquals(new BigDecimal("7.50"), rows.getValue().get(0)[0]);
+        assertEquals(0l, rows.getValue().get(0)[1]);
+        assertEquals("EUR", rows.getValue().get(0)[4]);
+        assertEquals(new BigDecimal("0.00"), rows.getValue().get(1)[0]);
+        assertEquals(1l, rows.getValue().get(1)[1]);
+        assertEquals("USD", rows.getValue().get(1)[4]);
+        assertNull(TransactionSynchronizationManager.getResource(ownerSummaryService));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testThat_MissingSummaryRowIsInserted() {
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.anyString(), ArgumentMatchers.anyList())).thenReturn(new int[] {0});
+
+        ownerSummaryService.onEwalletCreated(new EwalletCreatedEvent(3l, 1l, "USD"));
+        commit();
+
+        Mockito.verify(jdbcTemplate).update(ArgumentMatchers.startsWith("INSERT INTO Owner_balance_summary"),
+                ArgumentMatchers.<Object[]>any());
+    }
+
+    @Test
+    void testThat_DeletedOwnerLosesItsSummariesAndPendingChanges() {
+        ownerSummaryService.onBalanceChanged(new BalanceChangedEvent(1l, 1l, "EUR", OperationType.DEPOSIT,
+                Money.of("10"), Money.of("10")));
+        ownerSummaryService.onOwnerDeleted(new OwnerDeletedEvent(1l, Collections.singletonList(1l)));
+        commit();
+
+        Mockito.verify(jdbcTemplate).update("DELETE FROM Owner_balance_summary WHERE owner = ?", 1l);
+        Mockito.verifyNoMoreInteractions(jdbcTemplate);
+    }
+
+    @Test
+    void testThat_RebuildSkipsEwalletsWithoutCurrency() {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("summary-" + UUID.randomUUID())
+                .addScript("schema.sql")
+                .build();
+        JdbcTemplate databaseJdbcTemplate = new JdbcTemplate(database);
+        OwnerSummaryService rebuildingService = new OwnerSummaryService(databaseJdbcTemplate,
+                new DataSourceTransactionManager(database),
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500), true, 10000, 1);
+        try {
+            databaseJdbcTemplate.update("INSERT INTO Owner (id, name, email) VALUES (1, 'John', 'john@beatles.com')");
+            databaseJdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (1, 1, 'EUR', 10.00, 'w')");
+            databaseJdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (2, 1, 'EUR', NULL, 'w')");
+            databaseJdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (3, 1, NULL, 5.00, 'w')");
+
+            assertEquals(1, rebuildingService.rebuildSummaries());
+
+            List<CurrencySummary> summaries = rebuildingService.getOwnerSummary(1l);
+            assertEquals(1, summaries.size());
+            assertEquals("EUR", summaries.get(0).getCurrency());
+            assertEquals(Money.of("10.00"), summaries.get(0).getAmount());
+            assertEquals(2, summaries.get(0).getEwalletCount());
+        } finally {
+            rebuildingService.shutdown();
+            database.shutdown();
+        }
+    }
+}
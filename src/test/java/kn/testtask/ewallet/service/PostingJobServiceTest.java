@@ -0,0 +1,239 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Owner;
+import kn.testtask.ewallet.domain.PostingChunk;
+import kn.testtask.ewallet.domain.PostingJobProgress;
+import kn.testtask.ewallet.domain.PostingJobState;
+import kn.testtask.ewallet.domain.PostingRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:posting", "ewallet.posting.range-size=3",
+        "ewallet.posting.chunk-size=2", "ewallet.posting.workers=2"})
+class PostingJobServiceTest {
+
+    @Autowired
+    private PostingJobService postingJobService;
+
+    @Autowired
+    private OwnerService ownerService;
+
+    @Autowired
+    private EwalletService ewalletService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Owner owner;
+
+    @BeforeEach
+    public void setUp() {
+        Owner newOwner = new Owner();
+        newOwner.setName("Posting");
+        newOwner.setEmail(UUID.randomUUID() + "@posting.test");
+        this.owner = ownerService.addOwner(newOwner);
+    }
+
+    private Ewallet addEwallet(String currency, String amount) {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setOwner(owner.getId());
+        ewallet.setCurrency(currency);
+        ewallet.setName("Wallet");
+        Ewallet added = ewalletService.addEwallet(ewallet);
+        Operation deposit = new Operation();
+        deposit.setOwnerId(owner.getId());
+        deposit.setEwalletId(added.getId());
+        deposit.setType(OperationType.DEPOSIT);
+        deposit.setAmount(Money.of(amount));
+        ewalletService.processEwalletOperation(deposit);
+        return added;
+    }
+
+    private BigDecimal amount(Ewallet ewallet) {
+        return jdbcTemplate.queryForObject("SELECT amount FROM Ewallet WHERE id = ?", BigDecimal.class, ewallet.getId());
+    }
+
+    private PostingJobProgress awaitFinished(String jobId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (postingJobService.isRunning() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return postingJobService.getProgress(jobId);
+    }
+
+    @Test
+    void testThat_FeeIsPostedToEveryEwalletOfTheCurrencyWithEnoughMoney() throws InterruptedException {
+        Ewallet first = addEwallet("GBP", "10");
+        Ewallet poor = addEwallet("GBP", "0.50");
+        Ewallet other = addEwallet("CHF", "10");
+        Ewallet last = addEwallet("GBP", "20");
+
+        PostingJobProgress started = postingJobService.startJob(new PostingRule("GBP", OperationType.WITHDRAW, Money.of("1"), null));
+        PostingJobProgress progress = awaitFinished(started.getJobId());
+
+        assertEquals(PostingJobState.COMPLETED, progress.getState());
+        assertEquals(2, progress.getRowsPosted());
+        assertEquals(1, progress.getRowsSkipped());
+        assertTrue(progress.getRanges() > 1);
+        assertEquals(progress.getRanges(), progress.getRangesDone());
+        assertEquals(new BigDecimal("9.00"), amount(first));
+        assertEquals(new BigDecimal("0.50"), amount(poor));
+        assertEquals(new BigDecimal("10.00"), amount(other));
+        assertEquals(new BigDecimal("19.00"), amount(last));
+        assertNull(postingJobService.resumeJob(started.getJobId()));
+    }
+
+    @Test
+    void testThat_InterestIsRoundedHalfEvenToTheMinorUnit() throws InterruptedException {
+        Ewallet small = addEwallet("NOK", "10.10");
+        Ewallet large = addEwallet("NOK", "100");
+
+        PostingJobProgress started = postingJobService.startJob(
+                new PostingRule("NOK", OperationType.DEPOSIT, null, new BigDecimal("1.5")));
+        awaitFinished(started.getJobId());
+
+        // 0.1515 and 1.5
+        assertEquals(new BigDecimal("10.25"), amount(small));
+        assertEquals(new BigDecimal("101.50"), amount(large));
+    }
+
+    @Test
+    void testThat_EwalletWithoutAmountIsPostedAsZeroBalance() throws InterruptedException {
+        Ewallet first = addEwallet("DKK", "10");
+        Ewallet empty = addEwallet("DKK", "10");
+        Ewallet last = addEwallet("DKK", "10");
+        jdbcTemplate.update("UPDATE Ewallet SET amount = NULL WHERE id = ?", empty.getId());
+
+        PostingJobProgress fee = awaitFinished(postingJobService.startJob(
+                new PostingRule("DKK", OperationType.WITHDRAW, Money.of("1"), null)).getJobId());
+
+        assertEquals(PostingJobState.COMPLETED, fee.getState());
+        assertEquals(2, fee.getRowsPosted());
+        assertEquals(1, fee.getRowsSkipped());
+        assertNull(amount(empty));
+
+        PostingJobProgress payout = awaitFinished(postingJobService.startJob(
+                new PostingRule("DKK", OperationType.DEPOSIT, Money.of("2"), null)).getJobId());
+
+        assertEquals(PostingJobState.COMPLETED, payout.getState());
+        assertEquals(new BigDecimal("11.00"), amount(first));
+        assertEquals(new BigDecimal("2.00"), amount(empty));
+        assertEquals(new BigDecimal("11.00"), amount(last));
+    }
+
+    @Test
+    void testThat_InterruptedJobIsResumedAfterItsCheckpoint() throws InterruptedException {
+        Ewallet first = addEwallet("SEK", "10");
+        Ewallet second = addEwallet("SEK", "10");
+        Ewallet third = addEwallet("SEK", "10");
+        String jobId = UUID.randomUUID().toString();
+        // the process stopped after the chunk with the first e-wallet was committed
+        jdbcTemplate.update("INSERT INTO Posting_job (job_id, currency, type, amount, state, start_date_time) " +
+                "VALUES (?, 'SEK', 'DEPOSIT', 5, 'RUNNING', ?)", jobId, new Timestamp(System.currentTimeMillis()));
+        jdbcTemplate.update("INSERT INTO Posting_job_range (job_id, from_id, to_id, last_id, posted, skipped) VALUES (?, ?, ?, ?, 1, 0)",
+                jobId, first.getId() - 1, third.getId(), first.getId());
+
+        assertNotNull(postingJobService.resumeJob(jobId));
+        PostingJobProgress progress = awaitFinished(jobId);
+
+        assertEquals(PostingJobState.COMPLETED, progress.getState());
+        assertEquals(3, progress.getRowsPosted());
+        assertEquals(new BigDecimal("10.00"), amount(first));
+        assertEquals(new BigDecimal("15.00"), amount(second));
+        assertEquals(new BigDecimal("15.00"), amount(third));
+    }
+
+    @Test
+    void testThat_WrongRulesAreRejected() {
+        assertFalse(PostingJobService.isRuleCorrect(new PostingRule("EUR", null, Money.of("1"), null)));
+        assertFalse(PostingJobService.isRuleCorrect(new PostingRule("EUR", OperationType.DEPOSIT, null, null)));
+        assertFalse(PostingJobService.isRuleCorrect(new PostingRule("EUR", OperationType.DEPOSIT, Money.of("1"), BigDecimal.ONE)));
+        assertFalse(PostingJobService.isRuleCorrect(new PostingRule("JPY", OperationType.DEPOSIT, Money.of("1.50"), null)));
+        assertFalse(PostingJobService.isRuleCorrect(new PostingRule(null, OperationType.WITHDRAW, null, new BigDecimal("101"))));
+        assertTrue(PostingJobService.isRuleCorrect(new PostingRule(null, OperationType.WITHDRAW, null, new BigDecimal("100"))));
+        assertNull(postingJobService.startJob(new PostingRule("EUR", OperationType.WITHDRAW, Money.of("-1"), null)));
+    }
+
+    @Nested
+    @SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:posting-rmw", "ewallet.operation.mode=READ_MODIFY_WRITE"})
+    class WithReadModifyWrite {
+
+        @Autowired
+        private EwalletService ewalletService;
+
+        @Autowired
+        private OwnerService ownerService;
+
+        @Autowired
+        private PlatformTransactionManager transactionManager;
+
+        @Test
+        void testThat_DepositDoesNotOverwriteConcurrentPostingChunk() throws Exception {
+            Owner newOwner = new Owner();
+            newOwner.setName("Posting");
+            newOwner.setEmail(UUID.randomUUID() + "@posting.test");
+            Long ownerId = ownerService.addOwner(newOwner).getId();
+            Ewallet ewallet = new Ewallet();
+            ewallet.setOwner(ownerId);
+            ewallet.setCurrency("SEK");
+            ewallet.setName("Wallet");
+            Long ewalletId = ewalletService.addEwallet(ewallet).getId();
+            assertNotNull(ewalletService.processEwalletOperation(deposit(ownerId, ewalletId)));
+
+            CountDownLatch chunkLocked = new CountDownLatch(1);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // the chunk keeps its rows locked for a while after it posted the fee
+                Future<PostingChunk> posting = executor.submit(() -> new TransactionTemplate(transactionManager).execute(status -> {
+                    PostingChunk chunk = ewalletService.applyPosting(
+                            new PostingRule("SEK", OperationType.WITHDRAW, Money.of("1"), null), ewalletId - 1, ewalletId, 10);
+                    chunkLocked.countDown();
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return chunk;
+                }));
+                assertTrue(chunkLocked.await(5, TimeUnit.SECONDS));
+
+                Ewallet deposited = ewalletService.processEwalletOperation(deposit(ownerId, ewalletId));
+
+                assertEquals(1, posting.get(5, TimeUnit.SECONDS).getPosted());
+                assertEquals(Money.of("19"), deposited.getAmount());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        private Operation deposit(Long ownerId, Long ewalletId) {
+            Operation deposit = new Operation();
+            deposit.setOwnerId(ownerId);
+            deposit.setEwalletId(ewalletId);
+            deposit.setType(OperationType.DEPOSIT);
+            deposit.setAmount(Money.of("10"));
+            return deposit;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.AnomalyType;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.ReconciliationReport;
+import kn.testtask.ewallet.domain.ReconciliationTotal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconciliationServiceTest {
+
+    private EmbeddedDatabase database;
+
+    private JdbcTemplate jdbcTemplate;
+
+    // read-only flags of the transactions begun, in order
+    private List<Boolean> readOnlyTransactions;
+
+    private ReconciliationService reconciliationService;
+
+    @BeforeEach
+    public void setUp() {
+        this.database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("reconciliation-" + UUID.randomUUID())
+                .addScript("schema.sql")
+                .build();
+        this.jdbcTemplate = new JdbcTemplate(this.database);
+        this.readOnlyTransactions = new CopyOnWriteArrayList<>();
+        PlatformTransactionManager delegate = new DataSourceTransactionManager(this.database);
+        PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                readOnlyTransactions.add(definition.isReadOnly());
+                return delegate.getTransaction(definition);
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+                delegate.commit(status);
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                delegate.rollback(status);
+            }
+        };
+        // chunks of 2 e-wallets read in pages of 1, so both the split and the keyset paging are used
+        this.reconciliationService = new ReconciliationService(this.jdbcTemplate, Mockito.mock(OperationJournalWriter.class),
+                new ShardRouter(Mockito.mock(PlatformTransactionManager.class), 1, 500),
+                transactionManager, 2, 1, 0, 2, 10);
+
+        jdbcTemplate.update("INSERT INTO Owner (id, name, email) VALUES (1, 'John', 'john@beatles.com')");
+        String[] amounts = {"10.00", "5.00", "7.50", "1.00", "2.00"};
+        for (int i = 0; i < amounts.length; i++) {
+            jdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (?, 1, 'EUR', ?, 'w')",
+                    i + 1, new BigDecimal(amounts[i]));
+        }
+        jdbcTemplate.update("INSERT INTO Balance_snapshot (ewallet_id, journal_id, amount) SELECT id, 0, amount FROM Ewallet");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.reconciliationService.shutdown();
+        this.database.shutdown();
+    }
+
+    private void journal(long ewalletId, String type, String amount) {
+        jdbcTemplate.update("INSERT INTO Operation_journal (ewallet_id, currency, type, amount) VALUES (?, 'EUR', ?, ?)",
+                ewalletId, type, new BigDecimal(amount));
+    }
+
+    @Test
+    void testThat_ConsistentLedgerHasNoAnomalies() {
+        journal(1, "DEPOSIT", "3.00");
+        journal(1, "WITHDRAW", "1.00");
+        jdbcTemplate.update("UPDATE Ewallet SET amount = 12.00 WHERE id = 1");
+
+        ReconciliationReport report = reconciliationService.reconcile();
+
+        assertEquals(5, report.getEwalletsScanned());
+        assertTrue(report.getChunks() > 1);
+        assertEquals(0, report.getAnomalyCount());
+        ReconciliationTotal total = report.getTotals().get(0);
+        assertEquals("EUR", total.getCurrency());
+        assertEquals(5, total.getEwalletCount());
+        assertEquals(Money.of("27.50"), total.getAmount());
+        assertEquals(Money.of("27.50"), total.getExpectedAmount());
+        assertSame(report, reconciliationService.getLastReport());
+        // the bounds and every chunk are read in read-only transactions, so on the replica when there is one
+        assertEquals(1 + report.getChunks(), readOnlyTransactions.size());
+        assertFalse(readOnlyTransactions.contains(false));
+    }
+
+    @Test
+    void testThat_NegativeAndUnjournaledBalancesAreReported() {
+        jdbcTemplate.update("UPDATE Ewallet SET amount = 8.00 WHERE id = 3");
+        jdbcTemplate.update("UPDATE Ewallet SET amount = -1.00 WHERE id = 4");
+        journal(4, "WITHDRAW", "2.00");
+
+        ReconciliationReport report = reconciliationService.reconcile();
+
+        assertEquals(3, report.getAnomalyCount());
+        assertTrue(report.getAnomalies().stream().anyMatch(anomaly -> anomaly.getType() == AnomalyType.BALANCE_MISMATCH
+                && anomaly.getEwalletId() == 3l && anomaly.getExpectedAmount().equals(Money.of("7.50"))));
+        assertTrue(report.getAnomalies().stream().anyMatch(anomaly -> anomaly.getType() == AnomalyType.NEGATIVE_BALANCE
+                && anomaly.getEwalletId() == 4l));
+        assertTrue(report.getAnomalies().stream().anyMatch(anomaly -> anomaly.getType() == AnomalyType.CURRENCY_TOTAL_MISMATCH
+                && anomaly.getAmount().equals(Money.of("24.00")) && anomaly.getExpectedAmount().equals(Money.of("23.50"))));
+    }
+
+    @Test
+    void testThat_EwalletWithoutAmountIsReconciledAsZero() {
+        jdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (6, 1, 'EUR', NULL, 'w')");
+        jdbcTemplate.update("INSERT INTO Ewallet (id, owner, currency, amount, name) VALUES (7, 1, 'EUR', NULL, 'w')");
+        journal(7, "DEPOSIT", "4.00");
+
+        ReconciliationReport report = reconciliationService.reconcile();
+
+        assertEquals(7, report.getEwalletsScanned());
+        assertTrue(report.getAnomalies().stream().anyMatch(anomaly -> anomaly.getType() == AnomalyType.BALANCE_MISMATCH
+                && anomaly.getEwalletId() == 7l && anomaly.getAmount().equals(Money.of("0"))
+                && anomaly.getExpectedAmount().equals(Money.of("4.00"))));
+        assertTrue(report.getAnomalies().stream().noneMatch(anomaly -> Long.valueOf(6l).equals(anomaly.getEwalletId())));
+    }
+}
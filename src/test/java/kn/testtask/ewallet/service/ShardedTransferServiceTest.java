@@ -0,0 +1,178 @@
+package kn.testtask.ewallet.service;
+
+import kn.testtask.ewallet.domain.Ewallet;
+import kn.testtask.ewallet.domain.EwalletView;
+import kn.testtask.ewallet.domain.KeysetPage;
+import kn.testtask.ewallet.domain.Money;
+import kn.testtask.ewallet.domain.Operation;
+import kn.testtask.ewallet.domain.OperationType;
+import kn.testtask.ewallet.domain.Owner;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// two in-memory H2 databases stand in for the shards
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:shard-test-0", "ewallet.shard.count=2",
+        "ewallet.shard.urls=jdbc:h2:mem:shard-test-1", "ewallet.datasource.replica.enabled=false",
+        "ewallet.shard.saga.recovery-after-ms=0", "ewallet.shard.saga.recovery-interval-ms=3600000"})
+class ShardedTransferServiceTest {
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private OwnerService ownerService;
+
+    @Autowired
+    private EwalletService ewalletService;
+
+    @Autowired
+    private EwalletOperationGateway ewalletOperationGateway;
+
+    @Autowired
+    private ShardedTransferService shardedTransferService;
+
+    @Autowired
+    private EwalletQueryService ewalletQueryService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Owner addOwner(int shard) {
+        String email;
+        do {
+            email = UUID.randomUUID() + "@shard.test";
+        } while (shardRouter.shardOfEmail(email) != shard);
+        Owner owner = new Owner();
+        owner.setName("Owner");
+        owner.setEmail(email);
+        return shardRouter.onShard(shard, () -> ownerService.addOwner(owner));
+    }
+
+    private Ewallet addEwallet(Owner owner, String currency, String amount) {
+        Ewallet ewallet = new Ewallet();
+        ewallet.setOwner(owner.getId());
+        ewallet.setCurrency(currency);
+        ewallet.setName("Wallet");
+        Ewallet added = shardRouter.onShardOf(owner.getId(), () -> ewalletService.addEwallet(ewallet));
+        if (!Money.of(amount).isZero()) {
+            ewalletOperationGateway.processEwalletOperation(operation(added, OperationType.DEPOSIT, amount));
+        }
+        return added;
+    }
+
+    private static Operation operation(Ewallet ewallet, OperationType type, String amount) {
+        Operation operation = new Operation();
+        operation.setOwnerId(ewallet.getOwner());
+        operation.setEwalletId(ewallet.getId());
+        operation.setType(type);
+        operation.setAmount(Money.of(amount));
+        return operation;
+    }
+
+    private BigDecimal amount(Ewallet ewallet) {
+        return shardRouter.onShardOf(ewallet.getId(), () -> jdbcTemplate.queryForObject(
+                "SELECT amount FROM Ewallet WHERE id = ?", BigDecimal.class, ewallet.getId()));
+    }
+
+    private String sagaState(int shard, String transferId) {
+        return shardRouter.onShard(shard, () -> jdbcTemplate.queryForObject(
+                "SELECT state FROM Transfer_saga WHERE transfer_id = ?", String.class, transferId));
+    }
+
+    @Test
+    void testThat_OwnerAndItsEwalletsAreOnTheShardOfTheirIds() {
+        Owner owner = addOwner(1);
+        Ewallet ewallet = addEwallet(owner, "EUR", "0");
+
+        assertEquals(1, shardRouter.shardOfId(owner.getId()));
+        assertEquals(1, shardRouter.shardOfId(ewallet.getId()));
+        assertEquals(1, shardRouter.onShard(1, () -> jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM Ewallet WHERE id = ? AND owner = ?", Integer.class, ewallet.getId(), owner.getId())));
+        assertEquals(0, shardRouter.onShard(0, () -> jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM Owner WHERE id = ?", Integer.class, owner.getId())));
+    }
+
+    @Test
+    void testThat_TransferAcrossShardsMovesTheMoney() {
+        Ewallet payer = addEwallet(addOwner(0), "EUR", "10");
+        Ewallet receiver = addEwallet(addOwner(1), "EUR", "0");
+        long completed = shardedTransferService.getCompleted();
+
+        assertTrue(ewalletOperationGateway.processEwalletTransfer(new Operation[] {
+                operation(payer, OperationType.WITHDRAW, "4"), operation(receiver, OperationType.DEPOSIT, "4")}));
+        assertFalse(ewalletOperationGateway.processEwalletTransfer(new Operation[] {
+                operation(payer, OperationType.WITHDRAW, "7"), operation(receiver, OperationType.DEPOSIT, "7")}));
+
+        assertEquals(new BigDecimal("6.00"), amount(payer));
+        assertEquals(new BigDecimal("4.00"), amount(receiver));
+        assertEquals(completed + 1, shardedTransferService.getCompleted());
+    }
+
+    @Test
+    void testThat_StalledSagasAreFinishedByTheRecovery() {
+        Ewallet payer = addEwallet(addOwner(0), "EUR", "10");
+        Ewallet otherPayer = addEwallet(addOwner(1), "EUR", "10");
+        Ewallet receiver = addEwallet(addOwner(1), "EUR", "0");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        // the first debits of two sagas are committed, then the coordinator stopped
+        String crediting = UUID.randomUUID().toString();
+        String debiting = UUID.randomUUID().toString();
+        shardRouter.onShard(0, () -> {
+            jdbcTemplate.update("UPDATE Ewallet SET amount = amount - 5 WHERE id = ?", payer.getId());
+            jdbcTemplate.update("INSERT INTO Transfer_inbox (transfer_id, step) VALUES (?, 'DEBIT'), (?, 'DEBIT')",
+                    crediting, debiting);
+            jdbcTemplate.update("INSERT INTO Transfer_saga (transfer_id, state, legs, update_date_time) VALUES (?, 'CREDITING', ?, ?)",
+                    crediting, legs(payer, "-2", receiver, "2"), now);
+            return jdbcTemplate.update("INSERT INTO Transfer_saga (transfer_id, state, legs, update_date_time) VALUES (?, 'DEBITING', ?, ?)",
+                    debiting, "[{\"ewalletId\":" + payer.getId() + ",\"amount\":-3},{\"ewalletId\":" + otherPayer.getId() +
+                            ",\"amount\":-3},{\"ewalletId\":" + receiver.getId() + ",\"amount\":6}]", now);
+        });
+
+        shardedTransferService.recoverStalledSagas();
+
+        assertEquals("COMPLETED", sagaState(0, crediting));
+        assertEquals("CANCELLED", sagaState(0, debiting));
+        assertEquals(new BigDecimal("8.00"), amount(payer));
+        assertEquals(new BigDecimal("10.00"), amount(otherPayer));
+        assertEquals(new BigDecimal("2.00"), amount(receiver));
+        // the refund of the debit that never happened is kept, so that a late debit is refused
+        assertEquals(1, shardRouter.onShard(1, () -> jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM Transfer_inbox WHERE transfer_id = ? AND step = 'REFUND'", Integer.class, debiting)));
+    }
+
+    private static String legs(Ewallet payer, String paid, Ewallet receiver, String received) {
+        return "[{\"ewalletId\":" + payer.getId() + ",\"amount\":" + paid + "},{\"ewalletId\":" + receiver.getId() +
+                ",\"amount\":" + received + "}]";
+    }
+
+    @Test
+    void testThat_PagesOfAllShardsAreMergedInListOrder() {
+        for (int i = 0; i < 3; i++) {
+            addEwallet(addOwner(0), "USD", String.valueOf(i + 1));
+            addEwallet(addOwner(1), "EUR", String.valueOf(i + 1));
+        }
+        List<EwalletView> ewallets = new ArrayList<>();
+        String cursor = null;
+        do {
+            KeysetPage<EwalletView> page = ewalletQueryService.getEwalletsPage(cursor, 2);
+            ewallets.addAll(page.getItems());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertTrue(ewallets.stream().anyMatch(ewallet -> shardRouter.shardOfId(ewallet.getId()) == 0));
+        assertTrue(ewallets.stream().anyMatch(ewallet -> shardRouter.shardOfId(ewallet.getId()) == 1));
+        for (int i = 1; i < ewallets.size(); i++) {
+            assertTrue(EwalletQueryService.LIST_ORDER.compare(ewallets.get(i - 1), ewallets.get(i)) < 0);
+        }
+    }
+}